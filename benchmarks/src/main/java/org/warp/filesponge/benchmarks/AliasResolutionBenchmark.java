@@ -0,0 +1,114 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.warp.filesponge.DiskCacheOptions;
+import org.warp.filesponge.DiskMetadata;
+import org.warp.filesponge.Metadata;
+
+/**
+ * Cost of resolving the alias chain of a url before reading its metadata.
+ * A chain longer than one alias is compressed by its first resolution, so {@link #resolveChains(Blackhole)} resolves
+ * each chain once, while {@link #resolveCompressed()} measures the following resolutions
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+public class AliasResolutionBenchmark {
+
+	private static final int CHAINS = 4096;
+
+	@Param({"0", "1", "2", "4"})
+	public int depth;
+
+	/**
+	 * Resolved aliases kept in memory, 0 to resolve every alias from the database
+	 */
+	@Param({"0", "10000"})
+	public int aliasCacheSize;
+
+	private MemoryDiskCache memoryDiskCache;
+	private BenchmarkURL[] urls;
+	private int nextUrl;
+
+	@Setup
+	public void setup() {
+		memoryDiskCache = new MemoryDiskCache(DiskCacheOptions.DEFAULT.withAliasCacheSize(aliasCacheSize));
+		urls = new BenchmarkURL[CHAINS];
+	}
+
+	@Setup(Level.Iteration)
+	public void setupIteration() {
+		memoryDiskCache.clear();
+		for (int chain = 0; chain < CHAINS; chain++) {
+			var url = new BenchmarkURL("chain-" + chain + "-0");
+			urls[chain] = url;
+			for (int i = 1; i <= depth; i++) {
+				var aliasTo = new BenchmarkURL("chain-" + chain + "-" + i);
+				memoryDiskCache.putRawAlias(url, aliasTo);
+				url = aliasTo;
+			}
+			memoryDiskCache.diskCache().writeMetadataSync(url, new Metadata(1024), false);
+		}
+		nextUrl = 0;
+	}
+
+	@TearDown
+	public void tearDown() {
+		memoryDiskCache.diskCache().close();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SingleShotTime)
+	@OperationsPerInvocation(CHAINS)
+	@Warmup(iterations = 5)
+	@Measurement(iterations = 10)
+	public void resolveChains(Blackhole blackhole) {
+		var diskCache = memoryDiskCache.diskCache();
+		for (BenchmarkURL url : urls) {
+			blackhole.consume(diskCache.requestDiskMetadataSync(url));
+		}
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@Warmup(iterations = 3, time = 1)
+	@Measurement(iterations = 5, time = 1)
+	public DiskMetadata resolveCompressed() {
+		var url = urls[nextUrl];
+		nextUrl = (nextUrl + 1) % CHAINS;
+		return memoryDiskCache.diskCache().requestDiskMetadataSync(url);
+	}
+}
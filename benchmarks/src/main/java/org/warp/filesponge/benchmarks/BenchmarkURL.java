@@ -0,0 +1,39 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+import org.warp.filesponge.URL;
+import org.warp.filesponge.URLSerializer;
+import org.warp.filesponge.URLStringSerializer;
+
+record BenchmarkURL(String id) implements URL {
+
+	private static final URLStringSerializer<BenchmarkURL> SERIALIZER = new URLStringSerializer<>() {
+		@Override
+		public @NotNull String serialize(@NotNull BenchmarkURL url) {
+			return url.id();
+		}
+	};
+
+	@Override
+	public URLSerializer<? extends URL> getSerializer() {
+		return SERIALIZER;
+	}
+}
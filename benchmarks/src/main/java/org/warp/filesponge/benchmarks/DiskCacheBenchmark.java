@@ -0,0 +1,163 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge.benchmarks;
+
+import it.cavallium.buffer.Buf;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.warp.filesponge.BlockCodec;
+import org.warp.filesponge.DataBlock;
+import org.warp.filesponge.DiskCache;
+import org.warp.filesponge.DiskCacheOptions;
+import org.warp.filesponge.Metadata;
+
+/**
+ * Throughput of the block writes and of the content reads of a disk cache, with the database kept in memory
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskCacheBenchmark {
+
+	private static final int FILE_BLOCKS = 16;
+	/**
+	 * Count of files that are written in rotation, so that the memory used by the written blocks is bounded
+	 */
+	private static final int WRITTEN_FILES = 8;
+
+	@Param({"65536", "1048576"})
+	public int blockSize;
+
+	@Param({"NONE", "DEFLATE"})
+	public String blockCodec;
+
+	/**
+	 * Compressible content, or content that doesn't compress, like media
+	 */
+	@Param({"true", "false"})
+	public boolean compressible;
+
+	private MemoryDiskCache memoryDiskCache;
+	private DiskCache diskCache;
+	private Buf[] blocksData;
+	private BenchmarkURL cachedUrl;
+	private int nextFile;
+	private int nextBlock;
+	private BenchmarkURL writtenUrl;
+
+	@Setup
+	public void setup() {
+		var codec = switch (blockCodec) {
+			case "NONE" -> BlockCodec.NONE;
+			case "DEFLATE" -> BlockCodec.DEFLATE;
+			default -> throw new IllegalArgumentException(blockCodec);
+		};
+		memoryDiskCache = new MemoryDiskCache(DiskCacheOptions.DEFAULT.withBlockSize(blockSize).withBlockCodec(codec));
+		diskCache = memoryDiskCache.diskCache();
+		var random = new Random(0);
+		blocksData = new Buf[FILE_BLOCKS];
+		for (int i = 0; i < FILE_BLOCKS; i++) {
+			var data = new byte[blockSize];
+			if (compressible) {
+				for (int j = 0; j < blockSize; j++) {
+					data[j] = (byte) ('a' + random.nextInt(4));
+				}
+			} else {
+				random.nextBytes(data);
+			}
+			blocksData[i] = Buf.wrap(data);
+		}
+	}
+
+	@Setup(Level.Iteration)
+	public void setupIteration() {
+		memoryDiskCache.clear();
+		cachedUrl = new BenchmarkURL("cached");
+		writeFile(cachedUrl);
+		nextFile = 0;
+		nextBlock = 0;
+		writtenUrl = null;
+	}
+
+	@TearDown
+	public void tearDown() {
+		diskCache.close();
+	}
+
+	/**
+	 * Write the blocks of new files, one block per operation.
+	 * Each file is deleted and its metadata is written again before its first block
+	 */
+	@Benchmark
+	public void writeContentBlock() {
+		if (writtenUrl == null || nextBlock == FILE_BLOCKS) {
+			writtenUrl = new BenchmarkURL("written-" + nextFile);
+			nextFile = (nextFile + 1) % WRITTEN_FILES;
+			diskCache.deleteContentSync(writtenUrl);
+			diskCache.writeMetadataSync(writtenUrl, new Metadata(FILE_BLOCKS * (long) blockSize), false);
+			nextBlock = 0;
+		}
+		int blockId = nextBlock++;
+		diskCache.writeContentBlockSync(writtenUrl, DataBlock.of(blockId * (long) blockSize, blockSize, blocksData[blockId]), false);
+	}
+
+	/**
+	 * Read all the blocks of a cached file
+	 */
+	@Benchmark
+	public void requestContent(Blackhole blackhole) {
+		try (var blocks = diskCache.requestContentSync(cachedUrl)) {
+			blocks.forEach(blackhole::consume);
+		}
+	}
+
+	/**
+	 * Read a range that starts and ends in the middle of two blocks
+	 */
+	@Benchmark
+	public void requestContentRange(Blackhole blackhole) {
+		try (var blocks = diskCache.requestContentSync(cachedUrl, blockSize / 2, blockSize * 2L)) {
+			blocks.forEach(blackhole::consume);
+		}
+	}
+
+	private void writeFile(BenchmarkURL url) {
+		diskCache.writeMetadataSync(url, new Metadata(FILE_BLOCKS * (long) blockSize), false);
+		for (int i = 0; i < FILE_BLOCKS; i++) {
+			diskCache.writeContentBlockSync(url, DataBlock.of(i * (long) blockSize, blockSize, blocksData[i]), false);
+		}
+	}
+}
@@ -0,0 +1,95 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge.benchmarks;
+
+import it.cavallium.buffer.Buf;
+import it.cavallium.buffer.BufDataInput;
+import it.cavallium.buffer.BufDataOutput;
+import it.cavallium.dbengine.database.serialization.SerializationException;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.warp.filesponge.DiskMetadata;
+import org.warp.filesponge.DiskMetadata.DiskMetadataSerializer;
+import org.warp.filesponge.FileSponge;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskMetadataSerializerBenchmark {
+
+	/**
+	 * 1 MiB, 1 GiB and 64 GiB, so 1, 1024 and 65536 blocks
+	 */
+	@Param({"1048576", "1073741824", "68719476736"})
+	public long fileSize;
+
+	/**
+	 * Downloaded blocks: all of them, the first half, or every other block
+	 */
+	@Param({"COMPLETE", "HALF", "ALTERNATE"})
+	public String downloadedBlocks;
+
+	private final DiskMetadataSerializer serializer = new DiskMetadataSerializer();
+	private DiskMetadata diskMetadata;
+	private Buf serializedMetadata;
+
+	@Setup
+	public void setup() throws SerializationException {
+		int blocksCount = DiskMetadata.getBlocksCount(fileSize, FileSponge.BLOCK_SIZE);
+		var downloaded = new BitSet(blocksCount);
+		switch (downloadedBlocks) {
+			case "COMPLETE" -> downloaded.set(0, blocksCount);
+			case "HALF" -> downloaded.set(0, blocksCount / 2);
+			case "ALTERNATE" -> {
+				for (int i = 0; i < blocksCount; i += 2) {
+					downloaded.set(i);
+				}
+			}
+			default -> throw new IllegalArgumentException(downloadedBlocks);
+		}
+		diskMetadata = new DiskMetadata(fileSize, blocksCount, downloaded);
+		serializedMetadata = serialize();
+	}
+
+	@Benchmark
+	public Buf serialize() throws SerializationException {
+		var output = BufDataOutput.create(64);
+		serializer.serialize(diskMetadata, output);
+		return output.asList();
+	}
+
+	@Benchmark
+	public DiskMetadata deserialize() throws SerializationException {
+		return serializer.deserialize(BufDataInput.create(serializedMetadata));
+	}
+}
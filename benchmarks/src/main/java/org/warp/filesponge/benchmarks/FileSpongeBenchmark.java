@@ -0,0 +1,120 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge.benchmarks;
+
+import it.cavallium.buffer.Buf;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.warp.filesponge.DataBlock;
+import org.warp.filesponge.FileSponge;
+import org.warp.filesponge.MemoryCache;
+import org.warp.filesponge.Metadata;
+import org.warp.filesponge.URL;
+import org.warp.filesponge.URLsHandler;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Overhead of {@link FileSponge#requestContent(URL)} around sources and caches that answer immediately
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileSpongeBenchmark {
+
+	private static final int BLOCK_SIZE = 4096;
+
+	@Param({"1", "4"})
+	public int sources;
+
+	@Param({"1", "16"})
+	public int blocks;
+
+	private FileSponge downloadingSponge;
+	private FileSponge cachedSponge;
+	private BenchmarkURL cachedUrl;
+	private long nextUrl;
+
+	@Setup
+	public void setup() {
+		List<DataBlock> content = new ArrayList<>(blocks);
+		for (int i = 0; i < blocks; i++) {
+			content.add(DataBlock.of(i * (long) BLOCK_SIZE, BLOCK_SIZE, Buf.wrap(new byte[BLOCK_SIZE])));
+		}
+		var metadata = new Metadata(blocks * (long) BLOCK_SIZE);
+
+		downloadingSponge = new FileSponge();
+		cachedSponge = new FileSponge();
+		for (int i = 0; i < sources; i++) {
+			var source = new StubSource(i, Flux.fromIterable(content), Mono.just(metadata));
+			downloadingSponge.registerSource(source).block();
+			cachedSponge.registerSource(source).block();
+		}
+		var memoryCache = new MemoryCache(64L * 1024 * 1024, url -> true);
+		cachedSponge.registerCache(memoryCache).block();
+		cachedUrl = new BenchmarkURL("cached");
+		cachedSponge.requestMetadata(cachedUrl).block();
+		cachedSponge.requestContent(cachedUrl).blockLast();
+		cachedSponge.flushCacheWrites().block();
+	}
+
+	/**
+	 * Download a new file from the sources, without caches
+	 */
+	@Benchmark
+	public DataBlock downloadFromSources() {
+		return downloadingSponge.requestContent(new BenchmarkURL("downloaded-" + nextUrl++)).blockLast();
+	}
+
+	/**
+	 * Read a file from a memory cache, with the sources registered
+	 */
+	@Benchmark
+	public DataBlock readFromMemoryCache() {
+		return cachedSponge.requestContent(cachedUrl).blockLast();
+	}
+
+	private record StubSource(int id, Flux<DataBlock> content, Mono<Metadata> metadata) implements URLsHandler {
+
+		@Override
+		public Flux<DataBlock> requestContent(URL url) {
+			return content;
+		}
+
+		@Override
+		public Mono<Metadata> requestMetadata(URL url) {
+			return metadata;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge.benchmarks;
+
+import it.cavallium.buffer.Buf;
+import it.cavallium.dbengine.database.LLDictionary;
+import it.cavallium.dbengine.database.LLEntry;
+import it.cavallium.dbengine.database.LLRange;
+import it.cavallium.dbengine.database.UpdateMode;
+import it.cavallium.dbengine.database.UpdateReturnMode;
+import it.cavallium.dbengine.database.serialization.SerializationFunction;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+
+/**
+ * Dictionary kept in memory, so that the benchmarks measure the cache and not the database.
+ * Only the operations used by the disk cache are implemented, the others throw {@link UnsupportedOperationException}
+ */
+final class MemoryDictionary implements InvocationHandler {
+
+	/**
+	 * Unsigned lexicographic order, like the keys of the database
+	 */
+	private static final Comparator<Buf> KEY_ORDER = (a, b) -> {
+		int commonSize = Math.min(a.size(), b.size());
+		for (int i = 0; i < commonSize; i++) {
+			int diff = Byte.toUnsignedInt(a.getByte(i)) - Byte.toUnsignedInt(b.getByte(i));
+			if (diff != 0) {
+				return diff;
+			}
+		}
+		return Integer.compare(a.size(), b.size());
+	};
+
+	private final ConcurrentSkipListMap<Buf, Buf> map = new ConcurrentSkipListMap<>(KEY_ORDER);
+	private final LLDictionary dictionary = (LLDictionary) Proxy.newProxyInstance(LLDictionary.class.getClassLoader(),
+			new Class<?>[] {LLDictionary.class},
+			this
+	);
+
+	public LLDictionary dictionary() {
+		return dictionary;
+	}
+
+	public NavigableMap<Buf, Buf> map() {
+		return map;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+		return switch (method.getName()) {
+			case "get" -> map.get((Buf) args[1]);
+			case "put" -> map.put((Buf) args[0], (Buf) args[1]);
+			case "update" -> update((Buf) args[0], (SerializationFunction<Buf, Buf>) args[1], (UpdateReturnMode) args[2]);
+			case "remove" -> map.remove((Buf) args[0]);
+			case "putMulti" -> {
+				((Stream<LLEntry>) args[0]).forEach(entry -> map.put(entry.getKey(), entry.getValue()));
+				yield null;
+			}
+			case "getRange" -> {
+				var range = subMap((LLRange) args[1], (boolean) args[2]);
+				yield new ArrayList<>(range.entrySet()).stream().map(entry -> LLEntry.of(entry.getKey(), entry.getValue()));
+			}
+			case "getRangeKeys" -> new ArrayList<>(subMap((LLRange) args[1], (boolean) args[2]).keySet()).stream();
+			case "getOne" -> {
+				var entry = subMap((LLRange) args[1], false).firstEntry();
+				yield entry != null ? LLEntry.of(entry.getKey(), entry.getValue()) : null;
+			}
+			case "isRangeEmpty" -> subMap((LLRange) args[1], false).isEmpty();
+			case "sizeRange" -> (long) subMap((LLRange) args[1], false).size();
+			case "clear" -> {
+				map.clear();
+				yield null;
+			}
+			case "getUpdateMode" -> UpdateMode.ALLOW;
+			case "getColumnName" -> "memory";
+			case "hashCode" -> System.identityHashCode(proxy);
+			case "equals" -> proxy == args[0];
+			case "toString" -> "MemoryDictionary";
+			default -> throw new UnsupportedOperationException(method.getName());
+		};
+	}
+
+	private synchronized Buf update(Buf key, SerializationFunction<Buf, Buf> updater, UpdateReturnMode returnMode)
+			throws Exception {
+		var oldValue = map.get(key);
+		var newValue = updater.apply(oldValue);
+		if (newValue == null) {
+			map.remove(key);
+		} else {
+			map.put(key, newValue);
+		}
+		return switch (returnMode) {
+			case GET_NEW_VALUE -> newValue;
+			case GET_OLD_VALUE -> oldValue;
+			default -> null;
+		};
+	}
+
+	private NavigableMap<Buf, Buf> subMap(LLRange range, boolean reverse) {
+		NavigableMap<Buf, Buf> subMap = map;
+		if (range.hasMin()) {
+			subMap = subMap.tailMap(range.getMin(), true);
+		}
+		if (range.hasMax()) {
+			subMap = subMap.headMap(range.getMax(), false);
+		}
+		return reverse ? subMap.descendingMap() : subMap;
+	}
+}
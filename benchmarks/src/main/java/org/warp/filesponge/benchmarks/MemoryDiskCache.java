@@ -0,0 +1,79 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge.benchmarks;
+
+import it.cavallium.buffer.Buf;
+import it.cavallium.buffer.BufDataOutput;
+import it.cavallium.dbengine.database.serialization.SerializationException;
+import org.warp.filesponge.DiskCache;
+import org.warp.filesponge.DiskCacheOptions;
+import org.warp.filesponge.URL;
+import org.warp.filesponge.URLSerializer;
+
+/**
+ * Disk cache backed by {@link MemoryDictionary} columns
+ */
+final class MemoryDiskCache {
+
+	private final MemoryDictionary fileContent = new MemoryDictionary();
+	private final MemoryDictionary fileMetadata = new MemoryDictionary();
+	private final MemoryDictionary fileAliases = new MemoryDictionary();
+	private final MemoryDictionary fileHashes = new MemoryDictionary();
+	private final DiskCache diskCache;
+
+	public MemoryDiskCache(DiskCacheOptions options) {
+		this.diskCache = DiskCache.openCustom(fileContent.dictionary(),
+				fileMetadata.dictionary(),
+				fileAliases.dictionary(),
+				fileHashes.dictionary(),
+				url -> true,
+				options
+		);
+	}
+
+	public DiskCache diskCache() {
+		return diskCache;
+	}
+
+	/**
+	 * Store an alias directly, bypassing the disk cache that would point it to the end of the chain
+	 */
+	public void putRawAlias(URL url, URL aliasTo) {
+		fileAliases.map().put(serializeUrl(url), serializeUrl(aliasTo));
+	}
+
+	public void clear() {
+		fileContent.map().clear();
+		fileMetadata.map().clear();
+		fileAliases.map().clear();
+		fileHashes.map().clear();
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T extends URL> Buf serializeUrl(T url) {
+		var serializer = (URLSerializer<T>) url.getSerializer();
+		var output = BufDataOutput.create(64);
+		try {
+			serializer.serialize(url, output);
+		} catch (SerializationException ex) {
+			throw new IllegalStateException("Failed to serialize url", ex);
+		}
+		return output.asList();
+	}
+}
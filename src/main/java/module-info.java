@@ -6,5 +6,6 @@ module filesponge {
 	requires reactor.core;
 	requires org.reactivestreams;
 	requires it.cavallium.datagen;
+	requires static io.soabase.recordbuilder.core;
 	exports org.warp.filesponge;
 }
\ No newline at end of file
@@ -0,0 +1,109 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import it.cavallium.buffer.Buf;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Recent access times of the cached files. They are kept in memory, so that a cache hit doesn't write to the disk,
+ * and the oldest of them are stored in the metadata of the files when the tracker is full or the cache is closed
+ */
+class AccessTracker {
+
+	private final int maxSize;
+	private final Clock clock;
+	private final ConcurrentHashMap<Buf, Long> lastAccessTimes = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxSize count of the files after which the oldest access times should be removed
+	 * @param clock time source of the access times
+	 */
+	public AccessTracker(int maxSize, Clock clock) {
+		this.maxSize = maxSize;
+		this.clock = clock;
+	}
+
+	/**
+	 * @return true if the tracker is full, and the oldest access times should be removed
+	 */
+	public boolean recordAccess(Buf urlKey) {
+		lastAccessTimes.put(urlKey, clock.millis());
+		return lastAccessTimes.size() > maxSize;
+	}
+
+	/**
+	 * @return the last access time in milliseconds, or 0 if the file has not been accessed recently
+	 */
+	public long getLastAccessTime(Buf urlKey) {
+		return lastAccessTimes.getOrDefault(urlKey, 0L);
+	}
+
+	public void remove(Buf urlKey) {
+		lastAccessTimes.remove(urlKey);
+	}
+
+	/**
+	 * Remove the access time if the file has not been accessed again after it
+	 */
+	public void remove(Buf urlKey, long lastAccessTime) {
+		lastAccessTimes.remove(urlKey, lastAccessTime);
+	}
+
+	/**
+	 * Remove the oldest access times, leaving half of the max size
+	 * @return the removed access times
+	 */
+	public List<Entry<Buf, Long>> removeOldest() {
+		var entries = new ArrayList<Entry<Buf, Long>>(lastAccessTimes.size());
+		lastAccessTimes.forEach((urlKey, time) -> entries.add(Map.entry(urlKey, time)));
+		int removedCount = entries.size() - maxSize / 2;
+		if (removedCount <= 0) {
+			return List.of();
+		}
+		entries.sort(Entry.comparingByValue());
+		var removed = new ArrayList<Entry<Buf, Long>>(removedCount);
+		for (var entry : entries.subList(0, removedCount)) {
+			// Keep the files that have been accessed again in the meantime
+			if (lastAccessTimes.remove(entry.getKey(), entry.getValue())) {
+				removed.add(entry);
+			}
+		}
+		return removed;
+	}
+
+	/**
+	 * Remove all the access times
+	 * @return the removed access times
+	 */
+	public List<Entry<Buf, Long>> removeAll() {
+		var removed = new ArrayList<Entry<Buf, Long>>(lastAccessTimes.size());
+		for (var entry : lastAccessTimes.entrySet()) {
+			if (lastAccessTimes.remove(entry.getKey(), entry.getValue())) {
+				removed.add(Map.entry(entry.getKey(), entry.getValue()));
+			}
+		}
+		return removed;
+	}
+}
@@ -0,0 +1,112 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import it.cavallium.buffer.Buf;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+import java.util.Set;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Least recently used url keys, with the key that they resolve to.
+ * Keys that are not aliases resolve to themselves
+ */
+class AliasCache {
+
+	private final int maxSize;
+	private final LinkedHashMap<Buf, Buf> resolvedKeys;
+	/**
+	 * Cached aliases of each resolved key
+	 */
+	private final HashMap<Buf, Set<Buf>> aliasesByResolvedKey = new HashMap<>();
+	/**
+	 * Incremented on every invalidation, to discard the keys resolved before the invalidation
+	 */
+	private long generation;
+
+	public AliasCache(int maxSize) {
+		this.maxSize = maxSize;
+		this.resolvedKeys = new LinkedHashMap<>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Entry<Buf, Buf> eldest) {
+				if (size() > AliasCache.this.maxSize) {
+					removeAlias(eldest.getKey(), eldest.getValue());
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	public synchronized @Nullable Buf get(Buf key) {
+		return resolvedKeys.get(key);
+	}
+
+	public synchronized long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @param generation generation read before resolving the key
+	 */
+	public synchronized void put(Buf key, Buf resolvedKey, long generation) {
+		if (maxSize > 0 && this.generation == generation) {
+			var previousResolvedKey = resolvedKeys.put(key, resolvedKey);
+			if (previousResolvedKey != null) {
+				removeAlias(key, previousResolvedKey);
+			}
+			if (!key.equals(resolvedKey)) {
+				aliasesByResolvedKey.computeIfAbsent(resolvedKey, k -> new HashSet<>()).add(key);
+			}
+		}
+	}
+
+	/**
+	 * Invalidate the key, and every key that resolves to it
+	 */
+	public synchronized void invalidate(Buf key) {
+		generation++;
+		var resolvedKey = resolvedKeys.remove(key);
+		if (resolvedKey != null) {
+			removeAlias(key, resolvedKey);
+		}
+		var aliases = aliasesByResolvedKey.remove(key);
+		if (aliases != null) {
+			for (Buf alias : aliases) {
+				resolvedKeys.remove(alias);
+			}
+		}
+	}
+
+	public synchronized void clear() {
+		generation++;
+		resolvedKeys.clear();
+		aliasesByResolvedKey.clear();
+	}
+
+	private void removeAlias(Buf key, Buf resolvedKey) {
+		var aliases = aliasesByResolvedKey.get(resolvedKey);
+		if (aliases != null && aliases.remove(key) && aliases.isEmpty()) {
+			aliasesByResolvedKey.remove(resolvedKey);
+		}
+	}
+}
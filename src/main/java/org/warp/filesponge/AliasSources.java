@@ -0,0 +1,90 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import it.cavallium.buffer.Buf;
+import it.cavallium.buffer.BufDataOutput;
+import it.cavallium.dbengine.database.LLDictionary;
+import it.cavallium.dbengine.database.LLDictionaryResultType;
+import it.cavallium.dbengine.database.LLRange;
+import java.util.List;
+
+/**
+ * Reverse index of the aliases: the keys that are aliases of each key.
+ * It's used to point the aliases of a key to the new target when the key becomes an alias itself,
+ * so that the stored aliases never form a chain
+ */
+class AliasSources {
+
+	private static final Buf EMPTY = Buf.wrap(new byte[0]);
+
+	private final LLDictionary aliasSources;
+
+	public AliasSources(LLDictionary aliasSources) {
+		this.aliasSources = aliasSources;
+	}
+
+	public void add(Buf targetKey, Buf sourceKey) {
+		aliasSources.put(getSourceKey(targetKey, sourceKey), EMPTY, LLDictionaryResultType.VOID);
+	}
+
+	public void remove(Buf targetKey, Buf sourceKey) {
+		aliasSources.remove(getSourceKey(targetKey, sourceKey), LLDictionaryResultType.VOID);
+	}
+
+	/**
+	 * @return the keys that are aliases of the target key
+	 */
+	public List<Buf> get(Buf targetKey) {
+		int prefixSize = Integer.BYTES + targetKey.size() + Integer.BYTES;
+		try (var keys = aliasSources.getRangeKeys(null, getSourcesRange(targetKey), false, false)) {
+			return keys.map(key -> key.subList(prefixSize, key.size())).toList();
+		}
+	}
+
+	/**
+	 * Remove every alias of the target key from the index
+	 */
+	public void removeAll(Buf targetKey) {
+		try (var keys = aliasSources.getRangeKeys(null, getSourcesRange(targetKey), false, false)) {
+			keys.forEach(key -> aliasSources.remove(key, LLDictionaryResultType.VOID));
+		}
+	}
+
+	private static LLRange getSourcesRange(Buf targetKey) {
+		return LLRange.of(getKey(targetKey, 0, EMPTY), getKey(targetKey, Integer.MAX_VALUE, EMPTY));
+	}
+
+	private static Buf getSourceKey(Buf targetKey, Buf sourceKey) {
+		return getKey(targetKey, sourceKey.size(), sourceKey);
+	}
+
+	/**
+	 * The size of the target key is written first, so that the aliases of a key don't overlap with the aliases
+	 * of the longer keys that start with the same bytes. The size of the source key bounds the range of the aliases
+	 */
+	private static Buf getKey(Buf targetKey, int sourceKeySize, Buf sourceKey) {
+		var out = BufDataOutput.create(Integer.BYTES + targetKey.size() + Integer.BYTES + sourceKey.size());
+		out.writeInt(targetKey.size());
+		out.writeBytes(targetKey);
+		out.writeInt(sourceKeySize);
+		out.writeBytes(sourceKey);
+		return out.asList();
+	}
+}
@@ -0,0 +1,120 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import it.cavallium.buffer.Buf;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Joins the parts of the blocks that are received in data blocks smaller than the block size of the file
+ */
+class BlockAssembler {
+
+	private static final Logger logger = LogManager.getLogger(BlockAssembler.class);
+
+	private final long maxPendingBytes;
+	/**
+	 * Partially received blocks by block key, the oldest first
+	 */
+	private final LinkedHashMap<Buf, PendingBlock> pendingBlocks = new LinkedHashMap<>();
+	private long pendingBytes;
+
+	/**
+	 * @param maxPendingBytes max size of the partially received blocks kept in memory
+	 */
+	public BlockAssembler(long maxPendingBytes) {
+		this.maxPendingBytes = maxPendingBytes;
+	}
+
+	/**
+	 * @param blockLength length of the whole block
+	 * @param partOffset offset of the part, relative to the start of the block
+	 * @return the data of the whole block if this part completed it, otherwise null
+	 */
+	public synchronized @Nullable Buf add(Buf urlKey, Buf blockKey, int blockLength, int partOffset, Buf part) {
+		var pendingBlock = pendingBlocks.get(blockKey);
+		if (pendingBlock == null || pendingBlock.data.length != blockLength) {
+			if (pendingBlock != null) {
+				remove(blockKey);
+			}
+			pendingBlock = new PendingBlock(urlKey, new byte[blockLength], new BitSet(blockLength));
+			pendingBlocks.put(blockKey, pendingBlock);
+			pendingBytes += pendingBlock.getSize();
+		}
+		System.arraycopy(part.getBackingByteArray(),
+				part.getBackingByteArrayOffset(),
+				pendingBlock.data,
+				partOffset,
+				part.size()
+		);
+		pendingBlock.received.set(partOffset, partOffset + part.size());
+		if (pendingBlock.received.nextClearBit(0) >= blockLength) {
+			remove(blockKey);
+			return Buf.wrap(pendingBlock.data);
+		}
+		evictOldest();
+		return null;
+	}
+
+	/**
+	 * Discard the partially received blocks of the url key
+	 */
+	public synchronized void clear(Buf urlKey) {
+		var it = pendingBlocks.values().iterator();
+		while (it.hasNext()) {
+			var pendingBlock = it.next();
+			if (pendingBlock.urlKey.equals(urlKey)) {
+				pendingBytes -= pendingBlock.getSize();
+				it.remove();
+			}
+		}
+	}
+
+	private void remove(Buf blockKey) {
+		var pendingBlock = pendingBlocks.remove(blockKey);
+		pendingBytes -= pendingBlock.getSize();
+	}
+
+	/**
+	 * The parts of the evicted blocks are lost, so those blocks will be downloaded again
+	 */
+	private void evictOldest() {
+		var it = pendingBlocks.entrySet().iterator();
+		while (pendingBytes > maxPendingBytes && it.hasNext()) {
+			var eldest = it.next();
+			pendingBytes -= eldest.getValue().getSize();
+			it.remove();
+			logger.debug("Discarded the partially received block {}", eldest.getKey());
+		}
+	}
+
+	private record PendingBlock(Buf urlKey, byte[] data, BitSet received) {
+
+		/**
+		 * Size of the data and of the received bytes set
+		 */
+		public long getSize() {
+			return data.length + (long) received.size() / Byte.SIZE;
+		}
+	}
+}
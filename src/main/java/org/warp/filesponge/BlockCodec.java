@@ -0,0 +1,70 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import it.cavallium.buffer.Buf;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Encoding of the blocks stored by a {@link DiskCache}.
+ * The codec id is stored in the metadata of each file, so the files written with a codec
+ * can be read only if a codec with the same id is configured
+ */
+public interface BlockCodec {
+
+	/**
+	 * Blocks stored as they are received
+	 */
+	BlockCodec NONE = new BlockCodec() {
+		@Override
+		public int id() {
+			return 0;
+		}
+
+		@Override
+		public Buf encode(Buf data) {
+			return data;
+		}
+
+		@Override
+		public Buf decode(Buf encoded, int decodedLength) {
+			return encoded;
+		}
+	};
+
+	/**
+	 * Blocks compressed with the JDK {@link java.util.zip.Deflater}
+	 */
+	BlockCodec DEFLATE = new DeflateBlockCodec(java.util.zip.Deflater.BEST_SPEED);
+
+	/**
+	 * Unique id of the codec. The ids from 0 to 15 are reserved for the built-in codecs
+	 */
+	int id();
+
+	/**
+	 * @return the encoded data, or null if the data doesn't compress and must be stored as it is
+	 */
+	@Nullable Buf encode(Buf data);
+
+	/**
+	 * @param decodedLength length of the data before encoding it
+	 */
+	Buf decode(Buf encoded, int decodedLength);
+}
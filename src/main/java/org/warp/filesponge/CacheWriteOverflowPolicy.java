@@ -0,0 +1,38 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+/**
+ * What to do with a downloaded block when the queue of the cache writes is full
+ */
+public enum CacheWriteOverflowPolicy {
+	/**
+	 * The download waits until there is room in the queue
+	 */
+	BLOCK,
+	/**
+	 * The block is not cached, it will be downloaded again the next time it's requested
+	 */
+	DROP,
+	/**
+	 * The block bypasses the queue and it's written to the caches before being emitted,
+	 * like when there is no write-behind queue
+	 */
+	SPILL
+}
@@ -0,0 +1,233 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import it.unimi.dsi.fastutil.longs.LongRBTreeSet;
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+/**
+ * Bounded queue of cache writes, that are executed in the background.
+ * The writes are split in lanes by file, so the writes of different files are executed concurrently,
+ * and the writes of the same file are executed one at a time, in order.
+ * When the queue is full, the new writes are handled according to the overflow policy.
+ * The writes are started outside the lock of the queue, because a synchronous write is executed
+ * by the thread that starts it
+ */
+class CacheWriteQueue {
+
+	private static final Logger logger = LogManager.getLogger(CacheWriteQueue.class);
+
+	/**
+	 * Max count of writes that are executed concurrently
+	 */
+	private static final int MAX_LANES = 8;
+
+	private final int capacity;
+	private final CacheWriteOverflowPolicy overflowPolicy;
+	private final List<Lane> lanes;
+	private final ArrayDeque<WaitingWrite> waitingWrites = new ArrayDeque<>();
+	/**
+	 * Sequence numbers of the queued writes that have not been executed yet
+	 */
+	private final LongSortedSet queuedWrites = new LongRBTreeSet();
+	private final ArrayDeque<WaitingFlush> waitingFlushes = new ArrayDeque<>();
+	private long nextSequence;
+	private long droppedWrites;
+	private long spilledWrites;
+	private long failedWrites;
+
+	public CacheWriteQueue(int capacity, CacheWriteOverflowPolicy overflowPolicy) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Cache write queue capacity must be positive: " + capacity);
+		}
+		this.capacity = capacity;
+		this.overflowPolicy = overflowPolicy;
+		int lanesCount = Math.min(capacity, MAX_LANES);
+		this.lanes = new ArrayList<>(lanesCount);
+		for (int i = 0; i < lanesCount; i++) {
+			var lane = new Lane();
+			lane.sink
+					.asFlux()
+					.concatMap(queuedWrite -> queuedWrite
+							.write()
+							.onErrorResume(ex -> {
+								onWriteFailed(ex);
+								return Mono.empty();
+							})
+							.doFinally(signal -> onWriteDone(queuedWrite.sequence())))
+					.subscribe();
+			lanes.add(lane);
+		}
+	}
+
+	/**
+	 * Add a write to the queue
+	 * @param url file that is written, its writes are executed in order
+	 * @param write lazy write
+	 * @return completes when the write has been accepted, or, if it has been spilled, when it has been executed
+	 */
+	public Mono<Void> submit(URL url, Mono<Void> write) {
+		return Mono.defer(() -> {
+			Lane lane;
+			synchronized (this) {
+				if (queuedWrites.size() >= capacity) {
+					return onOverflow(url, write);
+				}
+				lane = enqueue(url, write);
+			}
+			lane.drain();
+			return Mono.empty();
+		});
+	}
+
+	/**
+	 * @return completes when all the writes that have been accepted until now have been executed
+	 */
+	public Mono<Void> flush() {
+		return Mono.defer(() -> {
+			synchronized (this) {
+				if (queuedWrites.isEmpty()) {
+					return Mono.empty();
+				}
+				// The writes accepted from now on have a greater sequence number, they are not waited for
+				var flushed = Sinks.<Void>empty();
+				waitingFlushes.add(new WaitingFlush(nextSequence, flushed));
+				return flushed.asMono();
+			}
+		});
+	}
+
+	public synchronized CacheWriteStats getStats() {
+		return new CacheWriteStats(queuedWrites.size(), waitingWrites.size(), droppedWrites, spilledWrites, failedWrites);
+	}
+
+	private Mono<Void> onOverflow(URL url, Mono<Void> write) {
+		return switch (overflowPolicy) {
+			case BLOCK -> {
+				var accepted = Sinks.<Void>empty();
+				waitingWrites.add(new WaitingWrite(url, write, accepted));
+				yield accepted.asMono();
+			}
+			case DROP -> {
+				droppedWrites++;
+				yield Mono.empty();
+			}
+			case SPILL -> {
+				spilledWrites++;
+				yield write.onErrorResume(ex -> {
+					onWriteFailed(ex);
+					return Mono.empty();
+				});
+			}
+		};
+	}
+
+	/**
+	 * Assign the sequence number of the write and add it to its lane, the lane must be drained after releasing the lock
+	 */
+	private Lane enqueue(URL url, Mono<Void> write) {
+		long sequence = nextSequence++;
+		queuedWrites.add(sequence);
+		var lane = lanes.get(Math.floorMod(url.hashCode(), lanes.size()));
+		lane.pending.add(new QueuedWrite(sequence, write));
+		return lane;
+	}
+
+	private void onWriteDone(long sequence) {
+		List<Sinks.Empty<Void>> flushed = new ArrayList<>();
+		WaitingWrite waitingWrite;
+		Lane waitingWriteLane = null;
+		synchronized (this) {
+			queuedWrites.remove(sequence);
+			waitingWrite = waitingWrites.poll();
+			if (waitingWrite != null) {
+				// The waiting write takes the place of the finished one
+				waitingWriteLane = enqueue(waitingWrite.url(), waitingWrite.write());
+			}
+			// The flushes are waiting for increasing sequence numbers
+			while (!waitingFlushes.isEmpty()
+					&& (queuedWrites.isEmpty() || queuedWrites.firstLong() >= waitingFlushes.peek().sequence())) {
+				flushed.add(waitingFlushes.poll().flushed());
+			}
+		}
+		if (waitingWrite != null) {
+			waitingWriteLane.drain();
+			waitingWrite.accepted().tryEmitEmpty();
+		}
+		for (Sinks.Empty<Void> flush : flushed) {
+			flush.tryEmitEmpty();
+		}
+	}
+
+	private void onWriteFailed(Throwable ex) {
+		synchronized (this) {
+			failedWrites++;
+		}
+		logger.error("Failed to write a block into the caches", ex);
+	}
+
+	private record QueuedWrite(long sequence, Mono<Void> write) {}
+
+	/**
+	 * Writes of a group of files, executed one at a time.
+	 * The writes are added to the pending queue in order while holding the lock of the queue,
+	 * then they are emitted by one thread at a time, without holding it
+	 */
+	private static class Lane {
+
+		private final Queue<QueuedWrite> pending = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger drainRequests = new AtomicInteger();
+		private final Sinks.Many<QueuedWrite> sink = Sinks.many().unicast().onBackpressureBuffer();
+
+		public void drain() {
+			// If another thread is draining the lane, it will emit the new writes too
+			if (drainRequests.getAndIncrement() != 0) {
+				return;
+			}
+			int missed = 1;
+			do {
+				QueuedWrite queuedWrite;
+				while ((queuedWrite = pending.poll()) != null) {
+					var result = sink.tryEmitNext(queuedWrite);
+					if (result.isFailure()) {
+						throw new IllegalStateException("Failed to enqueue a cache write: " + result);
+					}
+				}
+				missed = drainRequests.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+
+	private record WaitingWrite(URL url, Mono<Void> write, Sinks.Empty<Void> accepted) {}
+
+	/**
+	 * @param sequence the flush completes when all the writes before this sequence number have been executed
+	 */
+	private record WaitingFlush(long sequence, Sinks.Empty<Void> flushed) {}
+}
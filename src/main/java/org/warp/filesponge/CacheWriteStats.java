@@ -0,0 +1,32 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+/**
+ * @param queuedWrites writes that are in the queue, or that are being written
+ * @param waitingWrites writes that are waiting for room in the queue
+ * @param droppedWrites writes that have been dropped because the queue was full
+ * @param spilledWrites writes that have bypassed the queue because it was full
+ * @param failedWrites writes that have failed
+ */
+public record CacheWriteStats(int queuedWrites,
+		int waitingWrites,
+		long droppedWrites,
+		long spilledWrites,
+		long failedWrites) {}
@@ -0,0 +1,187 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import java.time.Duration;
+import java.util.function.LongSupplier;
+
+/**
+ * Health of a source. The circuit opens after too many failures, then the source is skipped for a cool-down.
+ * After the cool-down a single probe request is let through: if it succeeds the circuit closes,
+ * otherwise it opens again for a longer cool-down
+ */
+class CircuitBreaker {
+
+	/**
+	 * Count of the most recent outcomes used to compute the failure rate
+	 */
+	private static final int WINDOW_SIZE = 20;
+	/**
+	 * Failure rate of the recent outcomes that opens the circuit, when the window is full
+	 */
+	private static final double FAILURE_RATE_THRESHOLD = 0.5;
+	/**
+	 * Max concurrent requests while the circuit is half-open
+	 */
+	private static final int MAX_PROBES = 1;
+
+	private enum State {CLOSED, OPEN, HALF_OPEN}
+
+	private final int consecutiveFailuresThreshold;
+	private final long minCoolDownNanos;
+	private final long maxCoolDownNanos;
+	private final LongSupplier nanoTime;
+
+	private State state = State.CLOSED;
+	private final boolean[] window = new boolean[WINDOW_SIZE];
+	private int windowCount;
+	private int windowFailures;
+	private int nextOutcome;
+	private int consecutiveFailures;
+	private long coolDownNanos;
+	private long openUntil;
+	private int probes;
+
+	/**
+	 * @param consecutiveFailuresThreshold consecutive failures that open the circuit
+	 * @param minCoolDown time during which the source is skipped when the circuit opens,
+	 *                    it's doubled each time a probe fails
+	 */
+	public CircuitBreaker(int consecutiveFailuresThreshold, Duration minCoolDown, Duration maxCoolDown) {
+		this(consecutiveFailuresThreshold, minCoolDown, maxCoolDown, System::nanoTime);
+	}
+
+	/**
+	 * @param nanoTime time source of the cool-downs, in nanoseconds
+	 */
+	CircuitBreaker(int consecutiveFailuresThreshold, Duration minCoolDown, Duration maxCoolDown, LongSupplier nanoTime) {
+		this.nanoTime = nanoTime;
+		this.consecutiveFailuresThreshold = consecutiveFailuresThreshold;
+		this.minCoolDownNanos = minCoolDown.toNanos();
+		this.maxCoolDownNanos = maxCoolDown.toNanos();
+		this.coolDownNanos = minCoolDownNanos;
+	}
+
+	/**
+	 * @return true if the source is not skipped. It doesn't acquire a probe
+	 */
+	public synchronized boolean isAvailable() {
+		return switch (state) {
+			case CLOSED -> true;
+			case OPEN -> nanoTime.getAsLong() - openUntil >= 0;
+			case HALF_OPEN -> probes < MAX_PROBES;
+		};
+	}
+
+	/**
+	 * Acquire the permission to send a request. If it's acquired,
+	 * exactly one of {@link #onSuccess()}, {@link #onFailure()} or {@link #onCancel()} must be called
+	 * @return false if the source must be skipped
+	 */
+	public synchronized boolean tryAcquire() {
+		if (state == State.OPEN) {
+			if (nanoTime.getAsLong() - openUntil < 0) {
+				return false;
+			}
+			state = State.HALF_OPEN;
+			probes = 0;
+		}
+		if (state == State.HALF_OPEN) {
+			if (probes >= MAX_PROBES) {
+				return false;
+			}
+			probes++;
+		}
+		return true;
+	}
+
+	public synchronized void onSuccess() {
+		switch (state) {
+			case HALF_OPEN -> {
+				// The probe succeeded, forget the failures that opened the circuit
+				state = State.CLOSED;
+				coolDownNanos = minCoolDownNanos;
+				resetWindow();
+			}
+			case CLOSED -> addOutcome(false);
+			case OPEN -> {}
+		}
+	}
+
+	/**
+	 * Record an error, or a request that has timed out
+	 */
+	public synchronized void onFailure() {
+		switch (state) {
+			case HALF_OPEN -> {
+				coolDownNanos = Math.min(coolDownNanos * 2, maxCoolDownNanos);
+				open();
+			}
+			case CLOSED -> {
+				addOutcome(true);
+				boolean tooManyFailures = windowCount == WINDOW_SIZE
+						&& windowFailures >= WINDOW_SIZE * FAILURE_RATE_THRESHOLD;
+				if (consecutiveFailures >= consecutiveFailuresThreshold || tooManyFailures) {
+					open();
+				}
+			}
+			case OPEN -> {}
+		}
+	}
+
+	/**
+	 * Release the permission of a request that has been cancelled before its outcome
+	 */
+	public synchronized void onCancel() {
+		if (state == State.HALF_OPEN && probes > 0) {
+			probes--;
+		}
+	}
+
+	private void open() {
+		state = State.OPEN;
+		openUntil = nanoTime.getAsLong() + coolDownNanos;
+		probes = 0;
+	}
+
+	private void addOutcome(boolean failure) {
+		if (windowCount == WINDOW_SIZE) {
+			if (window[nextOutcome]) {
+				windowFailures--;
+			}
+		} else {
+			windowCount++;
+		}
+		window[nextOutcome] = failure;
+		if (failure) {
+			windowFailures++;
+			consecutiveFailures++;
+		} else {
+			consecutiveFailures = 0;
+		}
+		nextOutcome = (nextOutcome + 1) % WINDOW_SIZE;
+	}
+
+	private void resetWindow() {
+		windowCount = 0;
+		windowFailures = 0;
+		nextOutcome = 0;
+		consecutiveFailures = 0;
+	}
+}
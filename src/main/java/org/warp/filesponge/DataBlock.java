@@ -48,8 +48,15 @@ public final class DataBlock {
 		return data;
 	}
 
+	/**
+	 * @return the id of the block, if the blocks have the default size {@link FileSponge#BLOCK_SIZE}
+	 */
 	public int getId() {
-		return toIntExact(offset / FileSponge.BLOCK_SIZE);
+		return getId(FileSponge.BLOCK_SIZE);
+	}
+
+	public int getId(int blockSize) {
+		return toIntExact(offset / blockSize);
 	}
 
 	public long getOffset() {
@@ -0,0 +1,173 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import it.cavallium.buffer.Buf;
+import it.cavallium.buffer.BufDataInput;
+import it.cavallium.buffer.BufDataOutput;
+import it.cavallium.dbengine.database.LLDictionary;
+import it.cavallium.dbengine.database.LLDictionaryResultType;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Blocks stored by the hash of their content, so that the blocks shared by multiple files are stored once.
+ * Each block has a reference count, and it's removed when the last file that references it is deleted.
+ * The bytes of the stored blocks are counted in a counter for each lock, stored with the blocks
+ */
+class DeduplicatedBlocks {
+
+	private static final String HASH_ALGORITHM = "SHA-256";
+	private static final int LOCK_STRIPES = 64;
+	/**
+	 * Suffix of the key of the reference count, appended to the block hash
+	 */
+	private static final byte REFERENCE_COUNT_SUFFIX = 0;
+	/**
+	 * Prefix of the keys of the stored bytes counters, that are shorter than the block hashes
+	 */
+	private static final byte STORED_BYTES_PREFIX = 1;
+
+	private final LLDictionary blockContent;
+	private final Object[] locks = new Object[LOCK_STRIPES];
+	private final AtomicLongArray storedBytes = new AtomicLongArray(LOCK_STRIPES);
+
+	public DeduplicatedBlocks(LLDictionary blockContent) {
+		this.blockContent = blockContent;
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+			var value = blockContent.get(null, getStoredBytesKey(i));
+			if (value != null) {
+				storedBytes.set(i, BufDataInput.create(value).readLong());
+			}
+		}
+	}
+
+	/**
+	 * Add a reference to the block, and store the block if no file references it yet
+	 * @return the reference to the block
+	 */
+	public Buf acquire(Buf data) {
+		Buf reference = hash(data);
+		Buf referenceCountKey = getReferenceCountKey(reference);
+		int stripe = getStripe(reference);
+		synchronized (locks[stripe]) {
+			long referenceCount = getReferenceCount(referenceCountKey);
+			if (referenceCount == 0) {
+				blockContent.put(reference, data, LLDictionaryResultType.VOID);
+				addStoredBytes(stripe, data.size());
+			}
+			// The block is stored before counting the reference, so a counted block is always readable
+			blockContent.put(referenceCountKey, serializeCount(referenceCount + 1), LLDictionaryResultType.VOID);
+		}
+		return reference;
+	}
+
+	/**
+	 * Remove a reference to the block, and remove the block if no other file references it
+	 */
+	public void release(Buf reference) {
+		Buf referenceCountKey = getReferenceCountKey(reference);
+		int stripe = getStripe(reference);
+		synchronized (locks[stripe]) {
+			long referenceCount = getReferenceCount(referenceCountKey);
+			if (referenceCount <= 1) {
+				blockContent.remove(referenceCountKey, LLDictionaryResultType.VOID);
+				var removed = blockContent.remove(reference, LLDictionaryResultType.PREVIOUS_VALUE);
+				if (removed != null) {
+					addStoredBytes(stripe, -removed.size());
+				}
+			} else {
+				blockContent.put(referenceCountKey, serializeCount(referenceCount - 1), LLDictionaryResultType.VOID);
+			}
+		}
+	}
+
+	public Buf get(Buf reference) {
+		var data = blockContent.get(null, reference);
+		if (data == null) {
+			throw new IllegalStateException("Deduplicated block not found: " + reference);
+		}
+		return data;
+	}
+
+	/**
+	 * @return the bytes of the stored blocks
+	 */
+	public long getStoredBytes() {
+		long total = 0;
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			total += storedBytes.get(i);
+		}
+		return total;
+	}
+
+	private static int getStripe(Buf reference) {
+		return Math.floorMod(reference.hashCode(), LOCK_STRIPES);
+	}
+
+	/**
+	 * Must be called while holding the lock of the stripe
+	 */
+	private void addStoredBytes(int stripe, long bytes) {
+		long newStoredBytes = storedBytes.addAndGet(stripe, bytes);
+		if (newStoredBytes == 0) {
+			blockContent.remove(getStoredBytesKey(stripe), LLDictionaryResultType.VOID);
+		} else {
+			blockContent.put(getStoredBytesKey(stripe), serializeCount(newStoredBytes), LLDictionaryResultType.VOID);
+		}
+	}
+
+	private static Buf getStoredBytesKey(int stripe) {
+		return Buf.wrap(STORED_BYTES_PREFIX, (byte) stripe);
+	}
+
+	private long getReferenceCount(Buf referenceCountKey) {
+		var value = blockContent.get(null, referenceCountKey);
+		if (value == null) {
+			return 0;
+		}
+		return BufDataInput.create(value).readLong();
+	}
+
+	private static Buf serializeCount(long referenceCount) {
+		var out = BufDataOutput.create(Long.BYTES);
+		out.writeLong(referenceCount);
+		return out.asList();
+	}
+
+	private static Buf getReferenceCountKey(Buf reference) {
+		var out = BufDataOutput.create(reference.size() + Byte.BYTES);
+		out.writeBytes(reference);
+		out.writeByte(REFERENCE_COUNT_SUFFIX);
+		return out.asList();
+	}
+
+	private static Buf hash(Buf data) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException ex) {
+			throw new IllegalStateException(ex);
+		}
+		digest.update(data.getBackingByteArray(), data.getBackingByteArrayOffset(), data.size());
+		return Buf.wrap(digest.digest());
+	}
+}
@@ -0,0 +1,118 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import it.cavallium.buffer.Buf;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Compress the blocks with the JDK zlib implementation.
+ * Data that doesn't compress, like media, is detected by compressing a small sample first
+ */
+public final class DeflateBlockCodec implements BlockCodec {
+
+	private static final int ID = 1;
+	/**
+	 * Size of the sample compressed before the whole block
+	 */
+	private static final int SAMPLE_SIZE = 64 * 1024;
+	/**
+	 * The data is stored as it is if it doesn't shrink at least by 1/8
+	 */
+	private static final int MIN_SAVED_FRACTION = 8;
+	/**
+	 * Inflaters reused by each thread, because their native state is expensive to allocate for each block
+	 */
+	private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+	private final ThreadLocal<Deflater> deflaters;
+
+	/**
+	 * @param level compression level, from {@link Deflater#BEST_SPEED} to {@link Deflater#BEST_COMPRESSION}
+	 */
+	public DeflateBlockCodec(int level) {
+		if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+			throw new IllegalArgumentException("Invalid compression level: " + level);
+		}
+		this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+	}
+
+	@Override
+	public int id() {
+		return ID;
+	}
+
+	@Override
+	public @Nullable Buf encode(Buf data) {
+		if (data.size() > SAMPLE_SIZE && deflate(data.subList(0, SAMPLE_SIZE)) == null) {
+			return null;
+		}
+		return deflate(data);
+	}
+
+	/**
+	 * @return the compressed data, or null if it's not small enough
+	 */
+	private @Nullable Buf deflate(Buf data) {
+		var output = new byte[data.size() - data.size() / MIN_SAVED_FRACTION];
+		var deflater = deflaters.get();
+		try {
+			deflater.setInput(data.getBackingByteArray(), data.getBackingByteArrayOffset(), data.size());
+			deflater.finish();
+			int outputLength = 0;
+			while (!deflater.finished()) {
+				if (outputLength == output.length) {
+					return null;
+				}
+				outputLength += deflater.deflate(output, outputLength, output.length - outputLength);
+			}
+			return Buf.wrap(output, 0, outputLength);
+		} finally {
+			deflater.reset();
+		}
+	}
+
+	@Override
+	public Buf decode(Buf encoded, int decodedLength) {
+		var output = new byte[decodedLength];
+		var inflater = INFLATERS.get();
+		try {
+			inflater.setInput(encoded.getBackingByteArray(), encoded.getBackingByteArrayOffset(), encoded.size());
+			int outputLength = 0;
+			while (outputLength < decodedLength && !inflater.finished()) {
+				int inflated = inflater.inflate(output, outputLength, decodedLength - outputLength);
+				if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				outputLength += inflated;
+			}
+			if (outputLength != decodedLength || !inflater.finished()) {
+				throw new IllegalStateException("Corrupted block, decoded " + outputLength + " bytes of " + decodedLength);
+			}
+			return Buf.wrap(output);
+		} catch (DataFormatException ex) {
+			throw new IllegalStateException("Corrupted block", ex);
+		} finally {
+			inflater.reset();
+		}
+	}
+}
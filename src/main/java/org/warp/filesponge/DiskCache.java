@@ -27,9 +27,13 @@ import it.cavallium.dbengine.database.LLDictionary;
 import it.cavallium.dbengine.database.SafeCloseable;
 import it.cavallium.dbengine.database.UpdateMode;
 import it.cavallium.dbengine.rpc.current.data.DatabaseOptions;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
 import java.util.stream.Stream;
+import org.jetbrains.annotations.Nullable;
 import reactor.core.publisher.Mono;
 import reactor.util.function.Tuple2;
 
@@ -37,10 +41,30 @@ public interface DiskCache extends URLsDiskHandler, URLsWriter, SafeCloseable, I
 
 	void writeMetadataSync(URL url, Metadata metadata, boolean force);
 
+	/**
+	 * @param timeToLive time after which the file expires, null if the file never expires.
+	 *                   It's applied only when the file is new, or when its metadata changes
+	 */
+	void writeMetadataSync(URL url, Metadata metadata, boolean force, @Nullable Duration timeToLive);
+
 	void writeContentBlockSync(URL url, DataBlock dataBlock, boolean force);
 
 	void deleteContentSync(URL url);
 
+	/**
+	 * Resolve the aliases of the url and read its metadata
+	 */
+	DiskCacheEntry resolveSync(URL url);
+
+	Mono<DiskCacheEntry> resolve(URL url);
+
+	void deleteContentSync(DiskCacheEntry entry);
+
+	/**
+	 * @param listener called with the url key of each file after it's deleted, evicted, expired or replaced
+	 */
+	void addRemovalListener(Consumer<Buf> listener);
+
 	void writeAliasSync(URL originalUrl, URL aliasTo);
 
 	void writeAliasToBufSync(URL originalUrl, it.cavallium.buffer.Buf aliasToKey);
@@ -49,14 +73,49 @@ public interface DiskCache extends URLsDiskHandler, URLsWriter, SafeCloseable, I
 
 	it.cavallium.buffer.Buf getUrlByHashSync(long hash);
 
+	/**
+	 * The returned streams read the blocks while they are consumed, and they must be closed to release the
+	 * database iterator, for example with a try-with-resources
+	 */
 	Stream<DataBlock> requestContentSync(URL url);
 
+	/**
+	 * Read only the blocks that contain the range, the first and the last blocks are trimmed to fit the range.
+	 * The stream is empty if any of the blocks of the range has not been downloaded.
+	 * The stream must be closed
+	 * @param length length of the range, -1 to read until the end of the file
+	 */
+	Stream<DataBlock> requestContentSync(URL url, long offset, long length);
+
+	Stream<DataBlock> requestContentSync(DiskCacheEntry entry);
+
+	/**
+	 * @see #requestContentSync(URL, long, long)
+	 */
+	Stream<DataBlock> requestContentSync(DiskCacheEntry entry, long offset, long length);
+
+	/**
+	 * Write the range into the channel. The blocks stored in segment files without compression
+	 * are transferred by the operating system, without reading them into memory, so the zero-copy path applies only
+	 * if the cache has a segments directory and no block codec. The other blocks are read, then written
+	 * @param length length of the range, -1 to read until the end of the file
+	 * @param channel blocking channel, the non-blocking channels are rejected
+	 * @return the count of the written bytes, or -1 if any of the blocks of the range has not been downloaded.
+	 * In that case nothing is written
+	 */
+	long transferToSync(URL url, long offset, long length, WritableByteChannel channel);
+
 	DiskMetadata requestDiskMetadataSync(URL url);
 
 	Metadata requestMetadataSync(URL url);
 
 	Tuple2<Metadata, Stream<DataBlock>> requestSync(URL url);
 
+	/**
+	 * @return null if the entry is not cached. The stream of the blocks must be closed
+	 */
+	Tuple2<Metadata, Stream<DataBlock>> requestSync(DiskCacheEntry entry);
+
 	Mono<Long> count(boolean precise);
 
 	/**
@@ -74,15 +133,25 @@ public interface DiskCache extends URLsDiskHandler, URLsWriter, SafeCloseable, I
 			String dbName,
 			DatabaseOptions databaseOptions,
 			Predicate<URL> shouldCache) {
+		return open(databaseConnection, dbName, databaseOptions, shouldCache, DiskCacheOptions.DEFAULT);
+	}
+
+	static DiskCache open(LLDatabaseConnection databaseConnection,
+			String dbName,
+			DatabaseOptions databaseOptions,
+			Predicate<URL> shouldCache,
+			DiskCacheOptions options) {
 		var db = databaseConnection.getDatabase(dbName,
-				List.of(ColumnUtils.dictionary("file-content"), ColumnUtils.dictionary("file-metadata"), ColumnUtils.dictionary("file-aliases"), ColumnUtils.dictionary("file-hashes"), ColumnUtils.special("atomic_longs")),
+				List.of(ColumnUtils.dictionary("file-content"), ColumnUtils.dictionary("file-metadata"), ColumnUtils.dictionary("file-aliases"), ColumnUtils.dictionary("file-hashes"), ColumnUtils.dictionary("block-content"), ColumnUtils.dictionary("file-alias-sources"), ColumnUtils.special("atomic_longs")),
 				databaseOptions
 		);
 		var dict1 = db.getDictionary("file-content", UpdateMode.ALLOW);
 		var dict2 = db.getDictionary("file-metadata", UpdateMode.ALLOW);
 		var dict3 = db.getDictionary("file-aliases", UpdateMode.ALLOW);
 		var dict4 = db.getDictionary("file-hashes", UpdateMode.ALLOW);
-		return new DiskCacheImpl(db, dict1, dict2, dict3, dict4, shouldCache);
+		var dict5 = db.getDictionary("block-content", UpdateMode.ALLOW);
+		var dict6 = db.getDictionary("file-alias-sources", UpdateMode.ALLOW);
+		return new DiskCacheImpl(db, dict1, dict2, dict3, dict4, dict5, dict6, shouldCache, options);
 	}
 
 	static DiskCache openCustom(LLDictionary fileContent,
@@ -90,6 +159,61 @@ public interface DiskCache extends URLsDiskHandler, URLsWriter, SafeCloseable, I
 			LLDictionary fileAliases,
 			LLDictionary fileHashes,
 			Predicate<URL> shouldCache) {
-		return new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache);
+		return openCustom(fileContent, fileMetadata, fileAliases, fileHashes, shouldCache, DiskCacheOptions.DEFAULT);
+	}
+
+	static DiskCache openCustom(LLDictionary fileContent,
+			LLDictionary fileMetadata,
+			LLDictionary fileAliases,
+			LLDictionary fileHashes,
+			Predicate<URL> shouldCache,
+			DiskCacheOptions options) {
+		return new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache, options);
+	}
+
+	/**
+	 * @param blockContent blocks stored by content hash, used when {@link DiskCacheOptions#deduplicateBlocks()} is enabled
+	 */
+	static DiskCache openCustom(LLDictionary fileContent,
+			LLDictionary fileMetadata,
+			LLDictionary fileAliases,
+			LLDictionary fileHashes,
+			LLDictionary blockContent,
+			Predicate<URL> shouldCache,
+			DiskCacheOptions options) {
+		return new DiskCacheImpl(null,
+				fileContent,
+				fileMetadata,
+				fileAliases,
+				fileHashes,
+				blockContent,
+				shouldCache,
+				options
+		);
+	}
+
+	/**
+	 * @param blockContent blocks stored by content hash, used when {@link DiskCacheOptions#deduplicateBlocks()} is enabled
+	 * @param aliasSources reverse index of the aliases, used to keep the aliases pointing to the final key
+	 *                     when their target becomes an alias too
+	 */
+	static DiskCache openCustom(LLDictionary fileContent,
+			LLDictionary fileMetadata,
+			LLDictionary fileAliases,
+			LLDictionary fileHashes,
+			@Nullable LLDictionary blockContent,
+			LLDictionary aliasSources,
+			Predicate<URL> shouldCache,
+			DiskCacheOptions options) {
+		return new DiskCacheImpl(null,
+				fileContent,
+				fileMetadata,
+				fileAliases,
+				fileHashes,
+				blockContent,
+				aliasSources,
+				shouldCache,
+				options
+		);
 	}
 }
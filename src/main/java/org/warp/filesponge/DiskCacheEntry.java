@@ -0,0 +1,40 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import it.cavallium.buffer.Buf;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Url resolved once by a {@link DiskCache}, to run multiple operations without resolving it again
+ * @param key url key, after resolving the aliases
+ * @param metadata metadata read while resolving the url, null if the url is not cached.
+ *                 It is not updated by the writes that happen after the resolution
+ * @param inlineContent content of a small file that is stored together with its metadata, null otherwise
+ */
+public record DiskCacheEntry(URL url, Buf key, @Nullable DiskMetadata metadata, @Nullable Buf inlineContent) {
+
+	public DiskCacheEntry(URL url, Buf key, @Nullable DiskMetadata metadata) {
+		this(url, key, metadata, null);
+	}
+
+	public boolean isCached() {
+		return metadata != null;
+	}
+}
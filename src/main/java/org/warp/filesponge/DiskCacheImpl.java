@@ -19,6 +19,8 @@
 package org.warp.filesponge;
 
 import static java.lang.Math.toIntExact;
+import static java.util.Spliterator.NONNULL;
+import static java.util.Spliterator.ORDERED;
 import static org.warp.filesponge.FileSponge.BLOCK_SIZE;
 
 import it.cavallium.buffer.Buf;
@@ -26,17 +28,43 @@ import it.cavallium.buffer.BufDataInput;
 import it.cavallium.buffer.BufDataOutput;
 import it.cavallium.dbengine.database.LLDictionary;
 import it.cavallium.dbengine.database.LLDictionaryResultType;
+import it.cavallium.dbengine.database.LLEntry;
 import it.cavallium.dbengine.database.LLKeyValueDatabase;
 import it.cavallium.dbengine.database.LLRange;
 import it.cavallium.dbengine.database.UpdateReturnMode;
 import it.cavallium.dbengine.database.serialization.SerializationException;
-import it.cavallium.dbengine.utils.StreamUtils;
-import it.unimi.dsi.fastutil.booleans.BooleanArrayList;
+import java.nio.channels.WritableByteChannel;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterators.AbstractSpliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Consumer;
 import java.util.function.Predicate;
+import java.util.stream.StreamSupport;
 import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.jetbrains.annotations.Nullable;
 import org.warp.filesponge.DiskMetadata.DiskMetadataSerializer;
+import reactor.core.Disposable;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 import reactor.core.scheduler.Schedulers;
@@ -45,6 +73,66 @@ import reactor.util.function.Tuples;
 
 class DiskCacheImpl implements DiskCache {
 
+	private static final Logger logger = LogManager.getLogger(DiskCacheImpl.class);
+
+	/**
+	 * Store the downloaded blocks of a file in the metadata when this count of blocks has been written
+	 */
+	private static final int DOWNLOADED_BLOCKS_FLUSH_THRESHOLD = 64;
+	/**
+	 * Store the remaining downloaded blocks of all the files after this delay
+	 */
+	private static final Duration DOWNLOADED_BLOCKS_FLUSH_DELAY = Duration.ofSeconds(1);
+	/**
+	 * Max count of blocks written by concurrent writers that are committed together
+	 */
+	private static final int MAX_BLOCK_WRITES_BATCH_SIZE = 64;
+	/**
+	 * Count of the locks that serialize the creation and the removal of the files
+	 */
+	private static final int FILE_LOCK_STRIPES = 64;
+	/**
+	 * Prefix of the blocks stored as they are, in files with a block codec
+	 */
+	private static final byte BLOCK_RAW = 0;
+	/**
+	 * Prefix of the blocks encoded by the block codec, followed by the decoded length
+	 */
+	private static final byte BLOCK_ENCODED = 1;
+	/**
+	 * Fraction of the max size that is used after an eviction
+	 */
+	private static final double EVICTION_LOW_WATERMARK = 0.9;
+	/**
+	 * Files accessed more recently than this are evicted only if there is nothing else to evict,
+	 * to avoid evicting the files that are being downloaded
+	 */
+	private static final Duration EVICTION_MIN_IDLE_TIME = Duration.ofSeconds(30);
+	/**
+	 * Count of the recent access times kept in memory, the older ones are stored in the metadata of the files
+	 */
+	private static final int ACCESS_TRACKER_MAX_SIZE = 64 * 1024;
+	/**
+	 * Interval between the removals of the expired files
+	 */
+	private static final Duration EXPIRATION_SWEEP_INTERVAL = Duration.ofMinutes(1);
+	/**
+	 * Count of metadata entries read by each iteration of the background scans
+	 */
+	private static final int METADATA_SCAN_BATCH_SIZE = 1024;
+	/**
+	 * Size after which a new segment file is started
+	 */
+	private static final long MAX_SEGMENT_SIZE = 256L * 1024 * 1024;
+	/**
+	 * Interval between the compactions of the segment files
+	 */
+	private static final Duration SEGMENTS_COMPACTION_INTERVAL = Duration.ofMinutes(10);
+	/**
+	 * Segments with a smaller fraction of live bytes are compacted
+	 */
+	private static final double SEGMENTS_COMPACTION_THRESHOLD = 0.5;
+
 	private final DiskMetadataSerializer diskMetadataSerializer;
 	@Nullable
 	private final LLKeyValueDatabase ownedDb;
@@ -53,6 +141,54 @@ class DiskCacheImpl implements DiskCache {
 	private final LLDictionary fileAliases;
 	private final LLDictionary fileHashes;
 	private final Predicate<URL> shouldCache;
+	private final @Nullable AliasSources aliasSources;
+	private final AliasCache aliasCache;
+	private final Object aliasesLock = new Object();
+	private final Object[] fileLocks = new Object[FILE_LOCK_STRIPES];
+	private final int readAheadBlocks;
+	private final int blockSize;
+	private final int inlineMaxSize;
+	private final BlockCodec blockCodec;
+	private final boolean deduplicateBlocks;
+	@Nullable
+	private final DeduplicatedBlocks deduplicatedBlocks;
+	private final long maxSize;
+	private final Clock clock;
+	private final AccessTracker accessTracker;
+	private final AtomicBoolean accessTimesStoreScheduled = new AtomicBoolean();
+	/**
+	 * Count of the bytes stored for the files, counted when the cache is opened if it has a max size,
+	 * and updated by the writes and the deletions.
+	 * The blocks stored as they are that are written again are counted again until the cache is opened again
+	 */
+	private final AtomicLong usedBytes = new AtomicLong();
+	private final AtomicBoolean evictionScheduled = new AtomicBoolean();
+	/**
+	 * First key of the metadata that the next eviction reads, null to start from the first file
+	 */
+	private volatile @Nullable Buf evictionCursor;
+	private final Function<URL, @Nullable Duration> timeToLivePolicy;
+	private final FileSpongeMetrics metrics;
+	private final AtomicReference<Disposable> expirationSweep = new AtomicReference<>();
+	private final List<Consumer<Buf>> removalListeners = new CopyOnWriteArrayList<>();
+	@Nullable
+	private final SegmentStore segmentStore;
+	@Nullable
+	private final Disposable segmentsCompaction;
+	/**
+	 * Segments that had no live blocks during the last compaction
+	 */
+	private Set<Long> emptySegments = Set.of();
+	/**
+	 * Files that have blocks in each segment. The deleted files are removed when their segments are compacted
+	 */
+	private final ConcurrentHashMap<Long, Set<Buf>> segmentFiles = new ConcurrentHashMap<>();
+	private final DownloadedBlocksBuffer downloadedBlocksBuffer = new DownloadedBlocksBuffer();
+	private final BlockAssembler blockAssembler;
+	private final AtomicBoolean downloadedBlocksFlushScheduled = new AtomicBoolean();
+	private final GroupCommit<BlockWrite> blockWrites = new GroupCommit<>(MAX_BLOCK_WRITES_BATCH_SIZE,
+			this::commitBlockWrites
+	);
 
 	DiskCacheImpl(@Nullable LLKeyValueDatabase ownedDb,
 			LLDictionary fileContent,
@@ -60,13 +196,96 @@ class DiskCacheImpl implements DiskCache {
 			LLDictionary fileAliases,
 			LLDictionary fileHashes,
 			Predicate<URL> shouldCache) {
+		this(ownedDb, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache, DiskCacheOptions.DEFAULT);
+	}
+
+	DiskCacheImpl(@Nullable LLKeyValueDatabase ownedDb,
+			LLDictionary fileContent,
+			LLDictionary fileMetadata,
+			LLDictionary fileAliases,
+			LLDictionary fileHashes,
+			Predicate<URL> shouldCache,
+			DiskCacheOptions options) {
+		this(ownedDb, fileContent, fileMetadata, fileAliases, fileHashes, null, shouldCache, options);
+	}
+
+	/**
+	 * @param blockContent blocks stored by content hash, required only to deduplicate the blocks
+	 */
+	DiskCacheImpl(@Nullable LLKeyValueDatabase ownedDb,
+			LLDictionary fileContent,
+			LLDictionary fileMetadata,
+			LLDictionary fileAliases,
+			LLDictionary fileHashes,
+			@Nullable LLDictionary blockContent,
+			Predicate<URL> shouldCache,
+			DiskCacheOptions options) {
+		this(ownedDb, fileContent, fileMetadata, fileAliases, fileHashes, blockContent, null, shouldCache, options);
+	}
+
+	/**
+	 * @param aliasSources reverse index of the aliases. Without it, the aliases of a key are not updated when the key
+	 *                     becomes an alias, and they are resolved by following the chain
+	 */
+	DiskCacheImpl(@Nullable LLKeyValueDatabase ownedDb,
+			LLDictionary fileContent,
+			LLDictionary fileMetadata,
+			LLDictionary fileAliases,
+			LLDictionary fileHashes,
+			@Nullable LLDictionary blockContent,
+			@Nullable LLDictionary aliasSources,
+			Predicate<URL> shouldCache,
+			DiskCacheOptions options) {
+		if (options.deduplicateBlocks() && blockContent == null) {
+			throw new IllegalArgumentException("Blocks deduplication requires a block content dictionary");
+		}
 		this.ownedDb = ownedDb;
 		this.fileContent = fileContent;
 		this.fileMetadata = fileMetadata;
 		this.fileAliases = fileAliases;
 		this.fileHashes = fileHashes;
+		this.aliasSources = aliasSources != null ? new AliasSources(aliasSources) : null;
 		this.diskMetadataSerializer = new DiskMetadataSerializer();
 		this.shouldCache = shouldCache;
+		this.aliasCache = new AliasCache(options.aliasCacheSize());
+		this.readAheadBlocks = options.readAheadBlocks();
+		this.blockSize = options.blockSize();
+		this.inlineMaxSize = options.inlineMaxSize();
+		this.blockAssembler = new BlockAssembler(options.assembledBlocksMaxSize());
+		for (int i = 0; i < fileLocks.length; i++) {
+			fileLocks[i] = new Object();
+		}
+		this.blockCodec = options.blockCodec();
+		this.deduplicateBlocks = options.deduplicateBlocks();
+		this.deduplicatedBlocks = blockContent != null ? new DeduplicatedBlocks(blockContent) : null;
+		this.maxSize = options.maxSize();
+		this.timeToLivePolicy = options.timeToLivePolicy();
+		this.clock = options.clock();
+		this.accessTracker = new AccessTracker(ACCESS_TRACKER_MAX_SIZE, clock);
+		this.metrics = options.metrics();
+		if (options.segmentsDirectory() != null) {
+			this.segmentStore = new SegmentStore(options.segmentsDirectory(), MAX_SEGMENT_SIZE);
+			this.segmentsCompaction = Schedulers.boundedElastic().schedulePeriodically(() -> {
+				try {
+					compactSegmentsSync();
+				} catch (Throwable ex) {
+					logger.error("Failed to compact the segments", ex);
+				}
+			}, SEGMENTS_COMPACTION_INTERVAL.toMillis(), SEGMENTS_COMPACTION_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+		} else {
+			this.segmentStore = null;
+			this.segmentsCompaction = null;
+		}
+		if (maxSize > 0 || segmentStore != null) {
+			// Count the bytes of the files that are already cached
+			countUsedBytesSync();
+		}
+		if (maxSize > 0 && getUsedBytes() > maxSize) {
+			scheduleEviction();
+		}
+		if (timeToLivePolicy != DiskCacheOptions.NO_EXPIRATION) {
+			startExpirationSweep();
+		}
 	}
 
 	@Override
@@ -86,26 +305,71 @@ class DiskCacheImpl implements DiskCache {
 
 	@Override
 	public void writeMetadataSync(URL url, Metadata metadata, boolean force) {
+		writeMetadataSync(url, metadata, force, timeToLivePolicy.apply(url));
+	}
+
+	@Override
+	public void writeMetadataSync(URL url, Metadata metadata, boolean force, @Nullable Duration timeToLive) {
 		// Check if this cache should cache the url, otherwise do nothing
 		if (!force && !shouldCache.test(url)) return;
 
 		var key = resolveAliasKey(serializeUrl(url));
+		long now = clock.millis();
+		long expirationTime = timeToLive != null ? now + timeToLive.toMillis() : 0;
 
-		fileMetadata.update(key, oldValue -> {
-			if (oldValue != null) {
+		synchronized (getFileLock(key)) {
+			boolean[] stored = new boolean[1];
+			DiskMetadata[] replacedMeta = new DiskMetadata[1];
+			fileMetadata.update(key, oldValue -> {
+				stored[0] = false;
+				replacedMeta[0] = null;
+				if (oldValue == null) {
+					return null;
+				}
 				DiskMetadata prevMeta = deserializeMetadata(oldValue);
-				if (prevMeta.size() == metadata.size()) {
+				// An expired file is replaced, because its content may have changed
+				if (prevMeta.size() == metadata.size() && !prevMeta.isExpired(now)) {
+					stored[0] = true;
 					return oldValue;
 				}
-				return serializeMetadata(new DiskMetadata(metadata.size(),
-						BooleanArrayList.wrap(new boolean[DiskMetadata.getBlocksCount(metadata.size(), BLOCK_SIZE)])
-				));
-			} else {
-				return serializeMetadata(new DiskMetadata(metadata.size(),
-						BooleanArrayList.wrap(new boolean[DiskMetadata.getBlocksCount(metadata.size(), BLOCK_SIZE)])
-				));
+				// The previous file is removed first, so that its blocks are deleted before the new file is visible
+				replacedMeta[0] = prevMeta;
+				return null;
+			}, UpdateReturnMode.NOTHING);
+			if (!stored[0]) {
+				long replacedBytes = replacedMeta[0] != null ? getStoredBytes(key, replacedMeta[0]) : 0;
+				// The pending blocks belonged to the previous file
+				downloadedBlocksBuffer.clear(key);
+				blockAssembler.clear(key);
+				if (replacedMeta[0] != null) {
+					deleteBlocks(key, replacedMeta[0]);
+					addUsedBytes(-replacedBytes);
+					notifyRemoval(key);
+				}
+				// The blocks of a file with unknown size are stored as they are received,
+				// because the length of its last block is not known
+				int fileBlockSize = metadata.size() == -1 ? BLOCK_SIZE : blockSize;
+				fileMetadata.put(key, serializeMetadata(DiskMetadata
+						.create(metadata.size(), fileBlockSize)
+						.withCodecId(blockCodec.id())
+						.withDeduplicated(deduplicateBlocks)
+						.withSegmented(segmentStore != null)
+						.withExpirationTime(expirationTime)
+						.withLastAccessTime(now)), LLDictionaryResultType.VOID);
+				if (expirationTime != 0) {
+					startExpirationSweep();
+				}
 			}
-		}, UpdateReturnMode.NOTHING);
+		}
+		recordAccess(key);
+	}
+
+	/**
+	 * The files are created and removed while holding their lock, so that the blocks of a removed file
+	 * are never deleted after a new file with the same key has been created
+	 */
+	private Object getFileLock(Buf urlKey) {
+		return fileLocks[Math.floorMod(urlKey.hashCode(), FILE_LOCK_STRIPES)];
 	}
 
 	private <T extends URL> Buf serializeUrl(T url) {
@@ -124,30 +388,61 @@ class DiskCacheImpl implements DiskCache {
 	}
 
 	private Buf resolveAliasKey(Buf key) {
+		var cachedKey = aliasCache.get(key);
+		if (cachedKey != null) {
+			return cachedKey;
+		}
+		long generation = aliasCache.getGeneration();
 		Buf currentKey = key;
 		int depth = 0;
+		// The aliases are collapsed when they are written, chains are found only without the reverse index
 		while (depth < 5) {
 			Buf alias = fileAliases.get(null, currentKey);
 			if (alias == null) {
-				return currentKey;
+				break;
 			}
 			currentKey = alias;
 			depth++;
 		}
+		metrics.recordAliasResolution(this, depth);
+		aliasCache.put(key, currentKey, generation);
 		return currentKey;
 	}
 
 	@Override
 	public void writeAliasSync(URL originalUrl, URL aliasTo) {
-		Buf originalKey = serializeUrl(originalUrl);
-		Buf aliasKey = serializeUrl(aliasTo);
-		fileAliases.put(originalKey, aliasKey, LLDictionaryResultType.VOID);
+		writeAliasToBufSync(originalUrl, serializeUrl(aliasTo));
 	}
 
 	@Override
 	public void writeAliasToBufSync(URL originalUrl, Buf aliasToKey) {
 		Buf originalKey = serializeUrl(originalUrl);
-		fileAliases.put(originalKey, aliasToKey, LLDictionaryResultType.VOID);
+		synchronized (aliasesLock) {
+			// Point directly to the final key, to avoid chains of aliases
+			Buf targetKey = resolveAliasKey(aliasToKey);
+			if (targetKey.equals(originalKey)) {
+				// The alias would point to itself
+				return;
+			}
+			Buf previousTarget = fileAliases.put(originalKey, targetKey, LLDictionaryResultType.PREVIOUS_VALUE);
+			aliasCache.invalidate(originalKey);
+			if (aliasSources != null) {
+				if (previousTarget != null) {
+					aliasSources.remove(previousTarget, originalKey);
+				}
+				aliasSources.add(targetKey, originalKey);
+				// The aliases of the original key would form a chain, point them to the final key
+				for (Buf sourceKey : aliasSources.get(originalKey)) {
+					fileAliases.put(sourceKey, targetKey, LLDictionaryResultType.VOID);
+					aliasSources.remove(originalKey, sourceKey);
+					aliasSources.add(targetKey, sourceKey);
+					aliasCache.invalidate(sourceKey);
+				}
+			} else if (previousTarget != null) {
+				// Other keys may have been resolved through the previous alias
+				aliasCache.clear();
+			}
+		}
 	}
 
 	@Override
@@ -166,17 +461,49 @@ class DiskCacheImpl implements DiskCache {
 	}
 
 	private Buf serializeMetadata(DiskMetadata diskMetadata) {
+		return serializeMetadata(diskMetadata, null);
+	}
+
+	/**
+	 * @param inlineContent content stored after the metadata, if the file is small
+	 */
+	private Buf serializeMetadata(DiskMetadata diskMetadata, @Nullable Buf inlineContent) {
 		int sizeHint = diskMetadataSerializer.getSerializedSizeHint();
 		if (sizeHint == -1) sizeHint = 64;
+		if (inlineContent != null) sizeHint += inlineContent.size();
 		var out = BufDataOutput.create(sizeHint);
 		try {
 			diskMetadataSerializer.serialize(diskMetadata, out);
 		} catch (SerializationException ex) {
 			throw new IllegalStateException("Failed to serialize metadata", ex);
 		}
+		if (inlineContent != null) {
+			out.writeBytes(inlineContent);
+		}
 		return out.asList();
 	}
 
+	private StoredMetadata deserializeStoredMetadata(Buf storedBytes) {
+		var input = BufDataInput.create(storedBytes);
+		DiskMetadata metadata;
+		try {
+			metadata = diskMetadataSerializer.deserialize(input);
+		} catch (SerializationException ex) {
+			throw new IllegalStateException("Failed to deserialize metadata", ex);
+		}
+		// The remaining bytes are the inline content
+		int inlineContentSize = input.available();
+		if (inlineContentSize == 0) {
+			return new StoredMetadata(metadata, null);
+		}
+		var inlineContent = storedBytes.subList(storedBytes.size() - inlineContentSize, storedBytes.size());
+		if (metadata.size() != inlineContentSize) {
+			throw new IllegalStateException(
+					"Inline content size (" + inlineContentSize + ") != file size (" + metadata.size() + ")");
+		}
+		return new StoredMetadata(metadata, inlineContent);
+	}
+
 	private DiskMetadata deserializeMetadata(Buf prevBytes) {
 		try {
 			return diskMetadataSerializer.deserialize(BufDataInput.create(prevBytes));
@@ -200,96 +527,1134 @@ class DiskCacheImpl implements DiskCache {
 		}
 
 		Buf urlKey = resolveAliasKey(serializeUrl(url));
-		Buf blockKey = getBlockKey(urlKey, dataBlock.getId());
+		DiskMetadata storedMeta = getWrittenFileMetadata(urlKey);
+		if (storedMeta.size() == -1) {
+			int blockId = storedMeta.getBlockId(dataBlock.getOffset());
+			Buf blockKey = getBlockKey(urlKey, blockId);
+			Buf blockData = toStoredBlock(storedMeta, dataBlock.getData());
+			blockWrites.write(new BlockWrite(urlKey,
+					blockId,
+					blockKey,
+					blockData,
+					dataBlock.getLength(),
+					true,
+					storedMeta.deduplicated(),
+					storedMeta.segmented()
+			));
+			return;
+		}
 
-		fileContent.put(blockKey, dataBlock.getData(), LLDictionaryResultType.VOID);
-		fileMetadata.update(urlKey, prevBytes -> {
-			@Nullable DiskMetadata result;
-			if (prevBytes != null) {
-				DiskMetadata prevMeta = deserializeMetadata(prevBytes);
-				if (!prevMeta.isDownloadedBlock(dataBlock.getId())) {
-					BooleanArrayList bal = prevMeta.downloadedBlocks().clone();
-					if (prevMeta.size() == -1) {
-						if (bal.size() > dataBlock.getId()) {
-							bal.set(dataBlock.getId(), true);
-						} else if (bal.size() == dataBlock.getId()) {
-							bal.add(true);
-						} else {
-							throw new IndexOutOfBoundsException(
-									"Trying to write a block too much far from the last block. Previous total blocks: "
-											+ bal.size() + " Current block id: " + dataBlock.getId());
-						}
-					} else {
-						bal.set(dataBlock.getId(), true);
-					}
-					result = new DiskMetadata(prevMeta.size(), bal);
-				} else {
-					result = prevMeta;
+		// The data block can span multiple blocks of the file, or only a part of one of them
+		long dataEnd = dataBlock.getOffset() + dataBlock.getLength();
+		int fromBlock = storedMeta.getBlockId(dataBlock.getOffset());
+		int toBlock = dataBlock.getLength() == 0 ? fromBlock : storedMeta.getBlockId(dataEnd - 1) + 1;
+		for (int blockId = fromBlock; blockId < toBlock; blockId++) {
+			if (blockId >= storedMeta.blocksCount()) {
+				throw new IndexOutOfBoundsException("Block " + blockId + " is out of bounds, blocks count: " + storedMeta.blocksCount());
+			}
+			long blockOffset = storedMeta.getBlockOffset(blockId);
+			long blockEnd = Math.min(blockOffset + storedMeta.blockSize(), storedMeta.size());
+			var part = Objects.requireNonNull(FileSpongeUtils.trimToRange(dataBlock, blockOffset, blockEnd));
+			Buf blockData;
+			if (part.getOffset() == blockOffset && part.getLength() == blockEnd - blockOffset) {
+				blockData = part.getData();
+			} else {
+				blockData = blockAssembler.add(urlKey,
+						getBlockKey(urlKey, blockId),
+						toIntExact(blockEnd - blockOffset),
+						toIntExact(part.getOffset() - blockOffset),
+						part.getData()
+				);
+				if (blockData == null) {
+					// Wait for the other parts of the block
+					continue;
 				}
+			}
+			if (storedMeta.blocksCount() == 1 && storedMeta.size() <= inlineMaxSize) {
+				writeInlineContent(urlKey, blockData);
 			} else {
+				Buf blockKey = getBlockKey(urlKey, blockId);
+				Buf storedBlock = toStoredBlock(storedMeta, blockData);
+				blockWrites.write(new BlockWrite(urlKey,
+						blockId,
+						blockKey,
+						storedBlock,
+						blockData.size(),
+						false,
+						storedMeta.deduplicated(),
+						storedMeta.segmented()
+				));
+			}
+		}
+	}
+
+	/**
+	 * @return the stored metadata of the file, read once while the file is being written.
+	 * Its downloaded blocks are not up to date
+	 */
+	private DiskMetadata getWrittenFileMetadata(Buf urlKey) {
+		var storedMeta = downloadedBlocksBuffer.getMetadata(urlKey);
+		if (storedMeta != null) {
+			return storedMeta;
+		}
+		long generation = downloadedBlocksBuffer.getGeneration();
+		var storedBytes = fileMetadata.get(null, urlKey);
+		if (storedBytes == null) {
+			throw new IllegalStateException("Metadata not found for url key: " + urlKey);
+		}
+		storedMeta = deserializeMetadata(storedBytes);
+		downloadedBlocksBuffer.putMetadata(urlKey, storedMeta, generation);
+		return storedMeta;
+	}
+
+	/**
+	 * Store the content of a small file after its metadata, so that a hit requires a single lookup
+	 */
+	private void writeInlineContent(Buf urlKey, Buf content) {
+		fileMetadata.update(urlKey, prevBytes -> {
+			if (prevBytes == null) {
 				throw new IllegalStateException("Metadata not found for url key: " + urlKey);
 			}
-			if (result != null) {
-				return serializeMetadata(result);
+			DiskMetadata prevMeta = deserializeMetadata(prevBytes);
+			if (prevMeta.isDownloadedFully()) {
+				return prevBytes;
+			}
+			return serializeMetadata(prevMeta.withDownloadedBlock(0).withAddedStoredSize(content.size()), content);
+		}, UpdateReturnMode.NOTHING);
+		addUsedBytes(content.size());
+	}
+
+	/**
+	 * Write the content of all the blocks first, then mark them as downloaded,
+	 * so the metadata never contains a block that has not been written.
+	 * The blocks of the files that have been removed in the meantime are not written, and only their writers fail
+	 * @return the errors of the writes that have not been committed, by their index in the batch
+	 */
+	private Map<Integer, RuntimeException> commitBlockWrites(List<BlockWrite> batch) {
+		long startTime = System.nanoTime();
+		Map<Integer, RuntimeException> failures = new HashMap<>();
+		Map<Buf, Boolean> storedFiles = new HashMap<>();
+		List<BlockWrite> writes = new ArrayList<>(batch.size());
+		for (int i = 0; i < batch.size(); i++) {
+			var write = batch.get(i);
+			if (storedFiles.computeIfAbsent(write.urlKey(), this::isStoredFile)) {
+				writes.add(write);
 			} else {
+				failures.put(i, new IllegalStateException("Metadata not found for url key: " + write.urlKey()));
+				if (write.segmented()) {
+					getSegmentStore().release(write.data());
+				}
+			}
+		}
+		if (writes.isEmpty()) {
+			return failures;
+		}
+		// The blocks are referenced only when they are committed, so the failed writes don't leak references
+		List<Buf> values = new ArrayList<>(writes.size());
+		List<Buf> acquiredReferences = new ArrayList<>();
+		// The references and the segment locations that are overwritten are released after storing the new ones
+		List<Buf> replacedReferences = new ArrayList<>();
+		List<Buf> replacedLocations = new ArrayList<>();
+		long[] replacedBytes = new long[writes.size()];
+		try {
+			Map<Buf, Buf> batchReferences = new HashMap<>();
+			for (int i = 0; i < writes.size(); i++) {
+				var write = writes.get(i);
+				Buf value;
+				if (write.deduplicated()) {
+					value = getDeduplicatedBlocks().acquire(write.data());
+					acquiredReferences.add(value);
+				} else {
+					value = write.data();
+				}
+				values.add(value);
+				// A block that is written again replaces the bytes of the previous one
+				Buf previousValue;
+				if (batchReferences.containsKey(write.blockKey())) {
+					previousValue = batchReferences.get(write.blockKey());
+				} else {
+					previousValue = fileContent.get(null, write.blockKey());
+				}
+				batchReferences.put(write.blockKey(), value);
+				if (previousValue != null) {
+					if (write.deduplicated()) {
+						replacedReferences.add(previousValue);
+					} else if (write.segmented()) {
+						replacedLocations.add(previousValue);
+					}
+					replacedBytes[i] = getStoredBlockBytes(write, previousValue);
+				}
+			}
+			if (segmentStore != null) {
+				// The blocks must be durable before their locations are stored
+				segmentStore.sync();
+			}
+			var entries = new ArrayList<LLEntry>(writes.size());
+			for (int i = 0; i < writes.size(); i++) {
+				entries.add(LLEntry.of(writes.get(i).blockKey(), values.get(i)));
+			}
+			fileContent.putMulti(entries.stream());
+		} catch (RuntimeException ex) {
+			for (Buf acquiredReference : acquiredReferences) {
+				getDeduplicatedBlocks().release(acquiredReference);
+			}
+			for (BlockWrite write : writes) {
+				if (write.segmented()) {
+					getSegmentStore().release(write.data());
+				}
+			}
+			throw ex;
+		}
+		for (Buf replacedReference : replacedReferences) {
+			getDeduplicatedBlocks().release(replacedReference);
+		}
+		for (Buf replacedLocation : replacedLocations) {
+			getSegmentStore().release(replacedLocation);
+		}
+		long writtenBytes = 0;
+		Set<Buf> urlKeysToFlush = new HashSet<>();
+		for (int i = 0; i < writes.size(); i++) {
+			var write = writes.get(i);
+			if (write.segmented()) {
+				addSegmentFile(write.data(), write.urlKey());
+			}
+			long storedBytes = getStoredBlockBytes(write, values.get(i)) - replacedBytes[i];
+			writtenBytes += storedBytes;
+			recordAccess(write.urlKey());
+			if (write.unknownSize()) {
+				// The blocks count of files with unknown size must be updated immediately
+				addDownloadedBlock(write.urlKey(), write.blockId(), storedBytes);
+			} else {
+				// Mark the block as downloaded in memory, the metadata is updated in batches
+				int pendingBlocks = downloadedBlocksBuffer.add(write.urlKey(), write.blockId(), storedBytes);
+				if (pendingBlocks >= DOWNLOADED_BLOCKS_FLUSH_THRESHOLD) {
+					urlKeysToFlush.add(write.urlKey());
+				}
+			}
+		}
+		for (Buf urlKey : urlKeysToFlush) {
+			flushDownloadedBlocks(urlKey);
+		}
+		scheduleDownloadedBlocksFlush();
+		addUsedBytes(writtenBytes);
+		metrics.recordBlockWritesBatch(this, writes.size(), System.nanoTime() - startTime);
+		return failures;
+	}
+
+	/**
+	 * @return the bytes stored for the block, the deduplicated blocks are counted separately
+	 */
+	private static long getStoredBlockBytes(BlockWrite write, Buf value) {
+		// The blocks in the segments become unreferenced space when the file is deleted, until they are compacted
+		return write.segmented() ? value.size() + SegmentStore.getLength(value) : value.size();
+	}
+
+	/**
+	 * @return true if the metadata of the file is stored
+	 */
+	private boolean isStoredFile(Buf urlKey) {
+		// The metadata of the files that are being written is forgotten when they are removed
+		return downloadedBlocksBuffer.getMetadata(urlKey) != null || fileMetadata.get(null, urlKey) != null;
+	}
+
+	private void addDownloadedBlock(Buf urlKey, int blockId, long storedBytes) {
+		fileMetadata.update(urlKey, prevBytes -> {
+			if (prevBytes == null) {
+				// The file has been removed after its block has been written
+				return null;
+			}
+			DiskMetadata prevMeta = deserializeMetadata(prevBytes);
+			if (prevMeta.isDownloadedBlock(blockId)) {
+				return prevBytes;
+			}
+			return serializeMetadata(prevMeta.withDownloadedBlock(blockId).withAddedStoredSize(storedBytes));
+		}, UpdateReturnMode.NOTHING);
+	}
+
+	private void scheduleDownloadedBlocksFlush() {
+		if (downloadedBlocksFlushScheduled.compareAndSet(false, true)) {
+			Schedulers.boundedElastic().schedule(() -> {
+				downloadedBlocksFlushScheduled.set(false);
+				try {
+					flushDownloadedBlocks();
+					// The files that are still being written will read their metadata again
+					downloadedBlocksBuffer.removeIdle();
+				} catch (Throwable ex) {
+					logger.error("Failed to store the downloaded blocks", ex);
+				}
+			}, DOWNLOADED_BLOCKS_FLUSH_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void flushDownloadedBlocks() {
+		for (Buf urlKey : downloadedBlocksBuffer.getUrlKeys()) {
+			flushDownloadedBlocks(urlKey);
+		}
+	}
+
+	/**
+	 * Store the pending downloaded blocks of the url key and its last access time in its metadata, with a single update
+	 */
+	private void flushDownloadedBlocks(Buf urlKey) {
+		// The concurrent flushes of the same file would add the same pending bytes twice
+		synchronized (getFileLock(urlKey)) {
+			var pendingBlocks = downloadedBlocksBuffer.get(urlKey);
+			if (pendingBlocks != null) {
+				flushDownloadedBlocks(urlKey, pendingBlocks);
+			}
+		}
+	}
+
+	private void flushDownloadedBlocks(Buf urlKey, DownloadedBlocksBuffer.PendingBlocks pendingBlocks) {
+		long lastAccessTime = accessTracker.getLastAccessTime(urlKey);
+		fileMetadata.update(urlKey, prevBytes -> {
+			if (prevBytes == null) {
+				// The file has been deleted in the meantime
 				return null;
 			}
+			DiskMetadata prevMeta = deserializeMetadata(prevBytes);
+			var newMeta = prevMeta
+					.withDownloadedBlocks(pendingBlocks.blocks())
+					.withAddedStoredSize(pendingBlocks.storedBytes());
+			if (lastAccessTime > prevMeta.lastAccessTime()) {
+				newMeta = newMeta.withLastAccessTime(lastAccessTime);
+			}
+			if (newMeta == prevMeta) {
+				return prevBytes;
+			}
+			return serializeMetadata(newMeta);
 		}, UpdateReturnMode.NOTHING);
+		// Keep the blocks in the buffer until they are stored, so that they are never invisible to the readers
+		downloadedBlocksBuffer.remove(urlKey, pendingBlocks);
+		accessTracker.remove(urlKey, lastAccessTime);
 	}
 
 	@Override
-	public void deleteContentSync(URL url) {
+	public DiskCacheEntry resolveSync(URL url) {
 		Buf urlKey = resolveAliasKey(serializeUrl(url));
-		var prevBytes = fileMetadata.get(null, urlKey);
-		if (prevBytes != null) {
-			DiskMetadata prevMeta = deserializeMetadata(prevBytes);
-			for (int blockId = 0; blockId < prevMeta.downloadedBlocks().size(); blockId++) {
-				if (prevMeta.isDownloadedBlock(blockId)) {
-					Buf blockKey = getBlockKey(urlKey, blockId);
-					fileContent.remove(blockKey, LLDictionaryResultType.VOID);
+		var storedBytes = fileMetadata.get(null, urlKey);
+		if (storedBytes == null) {
+			return new DiskCacheEntry(url, urlKey, null);
+		}
+		var stored = deserializeStoredMetadata(storedBytes);
+		if (stored.metadata().isExpired(clock.millis())) {
+			// Expired files are misses, they are removed in background
+			return new DiskCacheEntry(url, urlKey, null);
+		}
+		recordAccess(urlKey);
+		// Include the downloaded blocks that have not been stored yet
+		var metadata = stored.metadata();
+		var pendingBlocks = downloadedBlocksBuffer.get(urlKey);
+		if (pendingBlocks != null) {
+			metadata = metadata.withDownloadedBlocks(pendingBlocks.blocks());
+		}
+		return new DiskCacheEntry(url, urlKey, metadata, stored.inlineContent());
+	}
+
+	@Override
+	public Mono<DiskCacheEntry> resolve(URL url) {
+		return Mono.fromCallable(() -> resolveSync(url)).subscribeOn(Schedulers.boundedElastic());
+	}
+
+	@Override
+	public void deleteContentSync(URL url) {
+		deleteContentSync(resolveSync(url));
+	}
+
+	@Override
+	public void deleteContentSync(DiskCacheEntry entry) {
+		if (entry.metadata() != null) {
+			deleteContent(entry.key(), meta -> true);
+		}
+	}
+
+	/**
+	 * Remove the metadata of the file, then delete its blocks using the metadata that has been removed,
+	 * so that the file is never deleted with the stale metadata of a file that has been replaced
+	 * @param shouldDelete tests the current metadata of the file
+	 * @return true if the file has been deleted
+	 */
+	private boolean deleteContent(Buf urlKey, Predicate<DiskMetadata> shouldDelete) {
+		synchronized (getFileLock(urlKey)) {
+			DiskMetadata[] removedMeta = new DiskMetadata[1];
+			fileMetadata.update(urlKey, prevBytes -> {
+				removedMeta[0] = null;
+				if (prevBytes == null) {
+					return null;
+				}
+				var prevMeta = deserializeMetadata(prevBytes);
+				if (!shouldDelete.test(prevMeta)) {
+					return prevBytes;
 				}
+				removedMeta[0] = prevMeta;
+				return null;
+			}, UpdateReturnMode.NOTHING);
+			if (removedMeta[0] == null) {
+				return false;
+			}
+			deleteBlocks(urlKey, removedMeta[0]);
+			forgetFile(urlKey, removedMeta[0]);
+			return true;
+		}
+	}
+
+	/**
+	 * Discard the in-memory state of a deleted file
+	 */
+	private void forgetFile(Buf urlKey, DiskMetadata meta) {
+		long storedBytes = getStoredBytes(urlKey, meta);
+		downloadedBlocksBuffer.clear(urlKey);
+		blockAssembler.clear(urlKey);
+		accessTracker.remove(urlKey);
+		addUsedBytes(-storedBytes);
+		notifyRemoval(urlKey);
+	}
+
+	@Override
+	public void addRemovalListener(Consumer<Buf> listener) {
+		removalListeners.add(listener);
+	}
+
+	private void notifyRemoval(Buf urlKey) {
+		for (Consumer<Buf> listener : removalListeners) {
+			try {
+				listener.accept(urlKey);
+			} catch (Throwable ex) {
+				logger.error("Failed to notify the removal of a file", ex);
+			}
+		}
+	}
+
+	/**
+	 * @return the bytes stored for the file, including the blocks that are not marked as downloaded yet
+	 */
+	private long getStoredBytes(Buf urlKey, DiskMetadata meta) {
+		var pendingBlocks = downloadedBlocksBuffer.get(urlKey);
+		return meta.storedSize() + (pendingBlocks != null ? pendingBlocks.storedBytes() : 0);
+	}
+
+	private void recordAccess(Buf urlKey) {
+		if (accessTracker.recordAccess(urlKey) && accessTimesStoreScheduled.compareAndSet(false, true)) {
+			Schedulers.boundedElastic().schedule(() -> {
+				try {
+					storeAccessTimes(accessTracker.removeOldest());
+				} catch (Throwable ex) {
+					logger.error("Failed to store the access times", ex);
+				} finally {
+					accessTimesStoreScheduled.set(false);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Store the access times in the metadata of the files, so that they are known after they are removed from memory
+	 */
+	private void storeAccessTimes(List<Entry<Buf, Long>> accessTimes) {
+		for (var accessTime : accessTimes) {
+			fileMetadata.update(accessTime.getKey(), prevBytes -> {
+				if (prevBytes == null) {
+					return null;
+				}
+				var stored = deserializeStoredMetadata(prevBytes);
+				if (stored.metadata().lastAccessTime() >= accessTime.getValue()) {
+					return prevBytes;
+				}
+				return serializeMetadata(stored.metadata().withLastAccessTime(accessTime.getValue()), stored.inlineContent());
+			}, UpdateReturnMode.NOTHING);
+		}
+	}
+
+	private void startExpirationSweep() {
+		if (expirationSweep.get() == null) {
+			var sweep = Schedulers.boundedElastic().schedulePeriodically(() -> {
+				try {
+					sweepExpiredSync();
+				} catch (Throwable ex) {
+					logger.error("Failed to remove the expired files", ex);
+				}
+			}, EXPIRATION_SWEEP_INTERVAL.toMillis(), EXPIRATION_SWEEP_INTERVAL.toMillis(), TimeUnit.MILLISECONDS);
+			if (!expirationSweep.compareAndSet(null, sweep)) {
+				sweep.dispose();
+			}
+		}
+	}
+
+	/**
+	 * Remove the expired files, reading the metadata in key order in batches
+	 */
+	void sweepExpiredSync() {
+		if (isPaused()) {
+			return;
+		}
+		long now = clock.millis();
+		int[] expiredFiles = new int[1];
+		forEachMetadata((urlKey, meta) -> {
+			if (meta.isExpired(now) && deleteExpiredContent(urlKey, now)) {
+				expiredFiles[0]++;
+			}
+		});
+		if (expiredFiles[0] > 0) {
+			logger.debug("Removed {} expired files", expiredFiles[0]);
+		}
+	}
+
+	/**
+	 * Read the metadata of all the files in key order, in batches.
+	 * The action is called after each batch has been read, so it can modify the files
+	 */
+	private void forEachMetadata(BiConsumer<Buf, DiskMetadata> action) {
+		LLRange range = LLRange.all();
+		while (range != null) {
+			var batch = readMetadataBatch(range);
+			for (var entry : batch) {
+				action.accept(entry.getT1(), entry.getT2());
+			}
+			if (batch.size() < METADATA_SCAN_BATCH_SIZE) {
+				range = null;
+			} else {
+				range = LLRange.from(getKeyAfter(batch.get(batch.size() - 1).getT1()));
+			}
+		}
+	}
+
+	/**
+	 * @return the first batch of metadata of the range
+	 */
+	private List<Tuple2<Buf, DiskMetadata>> readMetadataBatch(LLRange range) {
+		List<Tuple2<Buf, DiskMetadata>> batch = new ArrayList<>();
+		try (var entries = fileMetadata.getRange(null, range, false, false)) {
+			for (var it = entries.iterator(); it.hasNext() && batch.size() < METADATA_SCAN_BATCH_SIZE; ) {
+				var entry = it.next();
+				batch.add(Tuples.of(entry.getKey(), deserializeMetadata(entry.getValue())));
+			}
+		}
+		return batch;
+	}
+
+	/**
+	 * @return the first key after the key
+	 */
+	private static Buf getKeyAfter(Buf key) {
+		var out = BufDataOutput.create(key.size() + 1);
+		out.writeBytes(key);
+		out.writeByte(0);
+		return out.asList();
+	}
+
+	/**
+	 * Reclaim the space of the overwritten and deleted blocks of the segments.
+	 * The live blocks of the segments that are mostly dead are copied into the active segment.
+	 * A segment is deleted when it has no live blocks in two consecutive compactions,
+	 * so that the reads that have already resolved a location in that segment can complete.
+	 * The live bytes of each segment are counted by the writes and the deletions,
+	 * so only the files that have blocks in the compacted segments are read
+	 */
+	synchronized void compactSegmentsSync() {
+		if (segmentStore == null || isPaused()) {
+			return;
+		}
+		long startTime = System.nanoTime();
+		var sealedSegmentIds = segmentStore.getSealedSegmentIds();
+		if (sealedSegmentIds.isEmpty()) {
+			return;
+		}
+		Set<Long> segmentsToCompact = new HashSet<>();
+		Set<Long> newEmptySegments = new HashSet<>();
+		int deletedSegments = 0;
+		for (long segmentId : sealedSegmentIds) {
+			long segmentLiveBytes = segmentStore.getLiveBytes(segmentId);
+			if (segmentLiveBytes <= 0) {
+				if (emptySegments.contains(segmentId)) {
+					segmentStore.delete(segmentId);
+					segmentFiles.remove(segmentId);
+					deletedSegments++;
+				} else {
+					newEmptySegments.add(segmentId);
+				}
+			} else if (segmentLiveBytes < segmentStore.getSegmentSize(segmentId) * SEGMENTS_COMPACTION_THRESHOLD) {
+				segmentsToCompact.add(segmentId);
+			}
+		}
+		int movedBlocks = 0;
+		if (!segmentsToCompact.isEmpty()) {
+			Set<Buf> urlKeys = new HashSet<>();
+			for (long segmentId : segmentsToCompact) {
+				var files = segmentFiles.remove(segmentId);
+				if (files != null) {
+					urlKeys.addAll(files);
+				}
+			}
+			for (Buf urlKey : urlKeys) {
+				movedBlocks += moveSegmentedBlocks(urlKey, segmentsToCompact);
+			}
+			// The compacted segments are deleted by the next compaction, if no block has been added to them
+			newEmptySegments.addAll(segmentsToCompact);
+		}
+		emptySegments = newEmptySegments;
+		if (logger.isDebugEnabled()) {
+			logger.debug("Compacted {} segments and deleted {} segments in {}ms, {} blocks have been moved",
+					segmentsToCompact.size(),
+					deletedSegments,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime),
+					movedBlocks
+			);
+		}
+	}
+
+	private void addSegmentFile(Buf location, Buf urlKey) {
+		segmentFiles.computeIfAbsent(SegmentStore.getSegmentId(location), id -> ConcurrentHashMap.newKeySet()).add(urlKey);
+	}
+
+	/**
+	 * Copy the blocks of the file that are in the segments into the active segment
+	 * @return the count of the moved blocks
+	 */
+	private int moveSegmentedBlocks(Buf urlKey, Set<Long> segmentIds) {
+		var segments = getSegmentStore();
+		List<Tuple2<LLEntry, Buf>> moves = new ArrayList<>();
+		for (LLEntry block : getBlockEntries(urlKey)) {
+			var location = block.getValue();
+			if (segmentIds.contains(SegmentStore.getSegmentId(location))) {
+				moves.add(Tuples.of(block, segments.append(segments.read(location))));
+			}
+		}
+		if (moves.isEmpty()) {
+			return 0;
+		}
+		segments.sync();
+		for (var move : moves) {
+			var oldLocation = move.getT1().getValue();
+			var newLocation = move.getT2();
+			boolean[] moved = new boolean[1];
+			// Keep the block if it has been overwritten or deleted in the meantime
+			fileContent.update(move.getT1().getKey(), current -> {
+				moved[0] = oldLocation.equals(current);
+				return moved[0] ? newLocation : current;
+			}, UpdateReturnMode.NOTHING);
+			if (moved[0]) {
+				segments.release(oldLocation);
+				addSegmentFile(newLocation, urlKey);
+			} else {
+				segments.release(newLocation);
+			}
+		}
+		return moves.size();
+	}
+
+	private List<LLEntry> getBlockEntries(Buf urlKey) {
+		int blockKeySize = urlKey.size() + Integer.BYTES;
+		var blocksRange = LLRange.of(getBlockKey(urlKey, 0), getBlockKey(urlKey, Integer.MAX_VALUE));
+		try (var blocks = fileContent.getRange(null, blocksRange, false, false)) {
+			return blocks.filter(block -> block.getKey().size() == blockKeySize).toList();
+		}
+	}
+
+	/**
+	 * @return true if the file was still expired, and it has been deleted
+	 */
+	private boolean deleteExpiredContent(Buf urlKey, long now) {
+		// The file may have been downloaded again in the meantime
+		return deleteContent(urlKey, meta -> meta.isExpired(now));
+	}
+
+	private void addUsedBytes(long bytes) {
+		usedBytes.addAndGet(bytes);
+		if (maxSize > 0 && getUsedBytes() > maxSize) {
+			scheduleEviction();
+		}
+	}
+
+	/**
+	 * @return the bytes of the files and of the deduplicated blocks that they reference
+	 */
+	private long getLiveBytes() {
+		return usedBytes.get() + (deduplicatedBlocks != null ? deduplicatedBlocks.getStoredBytes() : 0);
+	}
+
+	/**
+	 * @return the live bytes, and the bytes of the segments that are not referenced anymore
+	 */
+	private long getUsedBytes() {
+		return getLiveBytes() + (segmentStore != null ? segmentStore.getDeadBytes() : 0);
+	}
+
+	private void scheduleEviction() {
+		if (evictionScheduled.compareAndSet(false, true)) {
+			Schedulers.boundedElastic().schedule(() -> {
+				try {
+					evictSync();
+				} catch (Throwable ex) {
+					logger.error("Failed to evict the cached files", ex);
+				} finally {
+					evictionScheduled.set(false);
+				}
+			});
+		}
+	}
+
+	/**
+	 * If the used bytes exceed the max size, evict the partial downloads first, then the least recently used files.
+	 * The metadata is read in batches, starting after the batches read by the previous eviction, and the coldest files
+	 * of each batch are evicted, until enough bytes are freed
+	 */
+	synchronized void evictSync() {
+		if (maxSize <= 0 || isPaused()) {
+			return;
+		}
+		if (getUsedBytes() <= maxSize) {
+			return;
+		}
+		long startTime = System.nanoTime();
+		long activeSince = clock.millis() - EVICTION_MIN_IDLE_TIME.toMillis();
+		long targetBytes = (long) (maxSize * EVICTION_LOW_WATERMARK);
+		Buf startKey = evictionCursor;
+		// The files after the cursor are read first, then the files before it
+		LLRange range = startKey != null ? LLRange.from(startKey) : LLRange.all();
+		boolean wrapped = startKey == null;
+		int evictedFiles = 0;
+		// The space of the evicted blocks in the segments is freed only by the compaction
+		while (getLiveBytes() > targetBytes) {
+			var batch = readMetadataBatch(range);
+			List<EvictionCandidate> candidates = new ArrayList<>(batch.size());
+			for (var entry : batch) {
+				var meta = entry.getT2();
+				var pendingBlocks = downloadedBlocksBuffer.get(entry.getT1());
+				if (pendingBlocks != null) {
+					meta = meta.withDownloadedBlocks(pendingBlocks.blocks());
+				}
+				long lastAccessTime = Math.max(accessTracker.getLastAccessTime(entry.getT1()), meta.lastAccessTime());
+				candidates.add(new EvictionCandidate(entry.getT1(), meta, lastAccessTime >= activeSince, lastAccessTime));
+			}
+			candidates.sort(Comparator
+					.comparing(EvictionCandidate::active)
+					.thenComparing(candidate -> candidate.meta().isDownloadedFully())
+					.thenComparingLong(EvictionCandidate::lastAccessTime));
+			for (EvictionCandidate candidate : candidates) {
+				if (getLiveBytes() <= targetBytes) {
+					break;
+				}
+				// A file that has been replaced or accessed since it has been read is not a candidate anymore
+				if (deleteContent(candidate.key(), meta -> meta.lastAccessTime() <= candidate.lastAccessTime())) {
+					evictedFiles++;
+				}
+			}
+			if (batch.size() == METADATA_SCAN_BATCH_SIZE) {
+				var nextKey = getKeyAfter(batch.get(batch.size() - 1).getT1());
+				evictionCursor = nextKey;
+				range = range.hasMax() ? LLRange.of(nextKey, range.getMax()) : LLRange.from(nextKey);
+			} else if (!wrapped) {
+				wrapped = true;
+				evictionCursor = null;
+				range = LLRange.to(startKey);
+			} else {
+				// Every file has been read
+				evictionCursor = null;
+				break;
+			}
+		}
+		if (segmentStore != null && evictedFiles > 0) {
+			compactSegmentsSync();
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("Evicted {} files in {}ms, {} bytes are used",
+					evictedFiles,
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime),
+					getUsedBytes()
+			);
+		}
+	}
+
+	/**
+	 * Count the bytes of the files that were cached before opening the cache,
+	 * and the bytes of the segments that they reference
+	 */
+	private void countUsedBytesSync() {
+		long[] storedBytes = new long[1];
+		forEachMetadata((urlKey, meta) -> {
+			storedBytes[0] += meta.storedSize();
+			if (meta.segmented() && segmentStore != null) {
+				for (LLEntry block : getBlockEntries(urlKey)) {
+					segmentStore.addLiveBytes(block.getValue());
+					addSegmentFile(block.getValue(), urlKey);
+				}
+			}
+		});
+		usedBytes.addAndGet(storedBytes[0]);
+	}
+
+	/**
+	 * Remove all the blocks of the url key,
+	 * including the blocks that have been written without being marked as downloaded
+	 */
+	private void deleteBlocks(Buf urlKey, DiskMetadata meta) {
+		int blockKeySize = urlKey.size() + Integer.BYTES;
+		var blocksRange = LLRange.of(getBlockKey(urlKey, 0), getBlockKey(urlKey, Integer.MAX_VALUE));
+		if (meta.deduplicated() || meta.segmented()) {
+			try (var blocks = fileContent.getRange(null, blocksRange, false, false)) {
+				blocks
+						.filter(block -> block.getKey().size() == blockKeySize)
+						.forEach(block -> {
+							fileContent.remove(block.getKey(), LLDictionaryResultType.VOID);
+							if (meta.deduplicated()) {
+								getDeduplicatedBlocks().release(block.getValue());
+							} else {
+								getSegmentStore().release(block.getValue());
+							}
+						});
+			}
+		} else {
+			try (var blockKeys = fileContent.getRangeKeys(null, blocksRange, false, false)) {
+				blockKeys
+						.filter(blockKey -> blockKey.size() == blockKeySize)
+						.forEach(blockKey -> fileContent.remove(blockKey, LLDictionaryResultType.VOID));
 			}
-			fileMetadata.remove(urlKey, LLDictionaryResultType.VOID);
 		}
 	}
 
 	@Override
 	public Flux<DataBlock> requestContent(URL url) {
-		return Flux.fromStream(() -> requestContentSync(url)).subscribeOn(Schedulers.boundedElastic());
+		return streamContent(Flux.fromStream(() -> requestContentSync(url)));
+	}
+
+	@Override
+	public Flux<DataBlock> requestContent(URL url, long offset, long length) {
+		FileSpongeUtils.checkRange(offset, length);
+		return streamContent(Flux.fromStream(() -> requestContentSync(url, offset, length)));
+	}
+
+	/**
+	 * Read the blocks on a separate thread, keeping up to readAheadBlocks blocks ready for the subscriber,
+	 * so that the disk reads overlap with the processing of the previous blocks
+	 */
+	private Flux<DataBlock> streamContent(Flux<DataBlock> blocks) {
+		var content = blocks.subscribeOn(Schedulers.boundedElastic());
+		if (readAheadBlocks > 0) {
+			content = content.publishOn(Schedulers.boundedElastic(), readAheadBlocks);
+		}
+		return content;
 	}
 
 	@Override
 	public Stream<DataBlock> requestContentSync(URL url) {
-		record BlockMeta(int blockId, boolean downloaded) {}
-		var meta = this.requestDiskMetadataSync(url);
-		if (meta == null || !meta.isDownloadedFully()) {
+		return requestContentSync(url, 0, -1);
+	}
+
+	@Override
+	public Stream<DataBlock> requestContentSync(URL url, long offset, long length) {
+		FileSpongeUtils.checkRange(offset, length);
+		return requestContentSync(resolveSync(url), offset, length);
+	}
+
+	@Override
+	public Stream<DataBlock> requestContentSync(DiskCacheEntry entry) {
+		return requestContentSync(entry, 0, -1);
+	}
+
+	@Override
+	public Stream<DataBlock> requestContentSync(DiskCacheEntry entry, long offset, long length) {
+		FileSpongeUtils.checkRange(offset, length);
+		Buf urlKey = entry.key();
+		var meta = entry.metadata();
+		if (meta == null) {
 			return Stream.empty();
 		}
-		return StreamUtils.indexed(meta.downloadedBlocks().stream(),
-						(downloaded, blockId) -> new BlockMeta(toIntExact(blockId), downloaded)
-				)
-				// Get only downloaded blocks
-				.filter(BlockMeta::downloaded).map(blockMeta -> {
-					if (!blockMeta.downloaded) {
-						return null;
-					}
-					Buf urlKey = resolveAliasKey(serializeUrl(url));
-					var blockKey = getBlockKey(urlKey, blockMeta.blockId);
-					var data = fileContent.get(null, blockKey);
-					long blockOffset = getBlockOffset(blockMeta.blockId);
-					int blockLength = data.size();
-					if (meta.size() != -1) {
-						if (blockOffset + blockLength >= meta.size()) {
-							if (blockOffset + blockLength > meta.size()) {
-								throw new IllegalStateException("Overflowed data size");
-							}
-						} else {
-							// Intermediate blocks must be of max size
-							assert data.size() == BLOCK_SIZE;
-						}
-					}
-					return DataBlock.of(blockOffset, blockLength, data);
-				}).filter(Objects::nonNull);
+		// The end of a file with unknown size is known only when it's fully downloaded
+		if (meta.size() == -1 && !meta.isDownloadedFully()) {
+			return Stream.empty();
+		}
+		long end = FileSpongeUtils.getRangeEnd(offset, length);
+		if (end <= offset) {
+			return Stream.empty();
+		}
+		var inlineContent = entry.inlineContent();
+		if (inlineContent != null) {
+			return Stream
+					.ofNullable(FileSpongeUtils.trimToRange(DataBlock.of(0, inlineContent.size(), inlineContent), offset, end));
+		}
+		int blocksCount = meta.blocksCount();
+		int fromBlock = toIntExact(Math.min(offset / meta.blockSize(), blocksCount));
+		int toBlock = toIntExact(Math.min((end - 1) / meta.blockSize() + 1, blocksCount));
+		int firstMissingBlock = meta.nextMissingBlock(fromBlock);
+		if (firstMissingBlock < toBlock) {
+			return Stream.empty();
+		}
+		Stream<DataBlock> blocks;
+		if (toBlock - fromBlock == 1) {
+			blocks = Stream.of(readBlock(urlKey, meta, fromBlock));
+		} else {
+			blocks = readBlocks(urlKey, meta, fromBlock, toBlock);
+		}
+		return blocks
+				.map(dataBlock -> FileSpongeUtils.trimToRange(dataBlock, offset, end))
+				.filter(Objects::nonNull);
+	}
+
+	@Override
+	public Mono<Long> transferTo(URL url, long offset, long length, WritableByteChannel channel) {
+		FileSpongeUtils.checkRange(offset, length);
+		FileSpongeUtils.checkBlocking(channel);
+		return Mono
+				.fromCallable(() -> {
+					long writtenBytes = transferToSync(url, offset, length, channel);
+					return writtenBytes != -1 ? writtenBytes : null;
+				})
+				.subscribeOn(Schedulers.boundedElastic());
+	}
+
+	@Override
+	public long transferToSync(URL url, long offset, long length, WritableByteChannel channel) {
+		FileSpongeUtils.checkRange(offset, length);
+		FileSpongeUtils.checkBlocking(channel);
+		var entry = resolveSync(url);
+		Buf urlKey = entry.key();
+		var meta = entry.metadata();
+		if (meta == null || (meta.size() == -1 && !meta.isDownloadedFully())) {
+			return -1;
+		}
+		long end = FileSpongeUtils.getRangeEnd(offset, length);
+		if (end <= offset) {
+			return 0;
+		}
+		var inlineContent = entry.inlineContent();
+		if (inlineContent != null) {
+			var dataBlock = FileSpongeUtils.trimToRange(DataBlock.of(0, inlineContent.size(), inlineContent), offset, end);
+			if (dataBlock == null) {
+				return 0;
+			}
+			FileSpongeUtils.writeFully(channel, dataBlock.getData());
+			return dataBlock.getLength();
+		}
+		int blocksCount = meta.blocksCount();
+		int fromBlock = toIntExact(Math.min(offset / meta.blockSize(), blocksCount));
+		int toBlock = toIntExact(Math.min((end - 1) / meta.blockSize() + 1, blocksCount));
+		if (meta.nextMissingBlock(fromBlock) < toBlock) {
+			return -1;
+		}
+		if (toBlock - fromBlock == 1) {
+			return transferBlock(meta, fromBlock, readStoredBlock(urlKey, fromBlock), offset, end, channel);
+		}
+		try (var writtenBytes = readStoredBlocks(urlKey,
+				fromBlock,
+				toBlock,
+				(blockId, storedData) -> transferBlock(meta, blockId, storedData, offset, end, channel)
+		)) {
+			return writtenBytes.mapToLong(Long::longValue).sum();
+		}
+	}
+
+	/**
+	 * Write the part of the block that is inside the range.
+	 * The blocks stored in segments without compression are transferred directly from the segment file
+	 * @return the count of the written bytes
+	 */
+	private long transferBlock(DiskMetadata meta, int blockId, Buf storedData, long offset, long end,
+			WritableByteChannel channel) {
+		if (meta.segmented()) {
+			var location = storedData;
+			var segments = getSegmentStore();
+			boolean raw = true;
+			int headerSize = 0;
+			if (getBlockCodec(meta.codecId()) != BlockCodec.NONE) {
+				// The blocks that didn't compress are stored as they are, after the block type
+				raw = segments.read(SegmentStore.slice(location, 0, Byte.BYTES)).getByte(0) == BLOCK_RAW;
+				headerSize = Byte.BYTES;
+			}
+			if (raw) {
+				long blockOffset = meta.getBlockOffset(blockId);
+				int blockLength = SegmentStore.getLength(location) - headerSize;
+				long from = Math.max(offset, blockOffset);
+				long to = Math.min(end, blockOffset + blockLength);
+				if (from >= to) {
+					return 0;
+				}
+				segments.transferTo(SegmentStore.slice(location,
+						toIntExact(headerSize + from - blockOffset),
+						toIntExact(headerSize + to - blockOffset)
+				), channel);
+				return to - from;
+			}
+		}
+		var dataBlock = FileSpongeUtils.trimToRange(toDataBlock(meta, blockId, storedData), offset, end);
+		if (dataBlock == null) {
+			return 0;
+		}
+		FileSpongeUtils.writeFully(channel, dataBlock.getData());
+		return dataBlock.getLength();
+	}
+
+	/**
+	 * Read the blocks with a single ordered iteration, because the blocks of a file are contiguous.
+	 * The returned stream must be closed
+	 * @param toBlock exclusive
+	 */
+	private Stream<DataBlock> readBlocks(Buf urlKey, DiskMetadata meta, int fromBlock, int toBlock) {
+		return readStoredBlocks(urlKey, fromBlock, toBlock, (blockId, storedData) -> toDataBlock(meta, blockId, storedData));
+	}
+
+	/**
+	 * Read the stored values of the blocks with a single ordered iteration.
+	 * The returned stream must be closed
+	 * @param toBlock exclusive
+	 * @param mapper called with the id and the stored value of each block, in order
+	 */
+	private <T> Stream<T> readStoredBlocks(Buf urlKey, int fromBlock, int toBlock, BiFunction<Integer, Buf, T> mapper) {
+		var blocksRange = LLRange.of(getBlockKey(urlKey, fromBlock), getBlockKey(urlKey, toBlock));
+		int blockKeySize = urlKey.size() + Integer.BYTES;
+		class BlocksSpliterator extends AbstractSpliterator<T> {
+			private int nextBlockId = fromBlock;
+			/**
+			 * Opened on the first block, so that an unconsumed stream doesn't hold the range iterator
+			 */
+			private Stream<LLEntry> entries;
+			private Iterator<LLEntry> entriesIterator;
+
+			BlocksSpliterator() {
+				super(toBlock - fromBlock, ORDERED | NONNULL);
+			}
+
+			@Override
+			public boolean tryAdvance(Consumer<? super T> action) {
+				if (nextBlockId >= toBlock) {
+					return false;
+				}
+				if (entriesIterator == null) {
+					entries = fileContent.getRange(null, blocksRange, false, false);
+					entriesIterator = entries
+							// Skip the keys of other urls that share the same prefix
+							.filter(entry -> entry.getKey().size() == blockKeySize)
+							.iterator();
+				}
+				if (!entriesIterator.hasNext()) {
+					throw new IllegalStateException("Block " + nextBlockId + " not found for url key: " + urlKey);
+				}
+				var entry = entriesIterator.next();
+				int blockId = getBlockId(entry.getKey());
+				if (blockId != nextBlockId) {
+					throw new IllegalStateException("Block " + nextBlockId + " not found for url key: " + urlKey);
+				}
+				nextBlockId++;
+				action.accept(mapper.apply(blockId, entry.getValue()));
+				return true;
+			}
+
+			void close() {
+				if (entries != null) {
+					entries.close();
+				}
+			}
+		}
+		var blocks = new BlocksSpliterator();
+		return StreamSupport.stream(blocks, false).onClose(blocks::close);
+	}
+
+	private DataBlock readBlock(Buf urlKey, DiskMetadata meta, int blockId) {
+		return toDataBlock(meta, blockId, readStoredBlock(urlKey, blockId));
+	}
+
+	private Buf readStoredBlock(Buf urlKey, int blockId) {
+		var data = fileContent.get(null, getBlockKey(urlKey, blockId));
+		if (data == null) {
+			throw new IllegalStateException("Block " + blockId + " not found for url key: " + urlKey);
+		}
+		return data;
+	}
+
+	/**
+	 * @return the value to store in the block key: the encoded block, or its location if it's stored in a segment.
+	 * Deduplicated blocks are replaced by their reference when they are committed
+	 */
+	private Buf toStoredBlock(DiskMetadata meta, Buf data) {
+		var encoded = encodeBlock(meta, data);
+		if (meta.segmented()) {
+			return getSegmentStore().append(encoded);
+		}
+		return encoded;
+	}
+
+	private SegmentStore getSegmentStore() {
+		if (segmentStore == null) {
+			throw new IllegalStateException("The file has blocks in segments, but the segments directory is not configured");
+		}
+		return segmentStore;
+	}
+
+	private DeduplicatedBlocks getDeduplicatedBlocks() {
+		if (deduplicatedBlocks == null) {
+			throw new IllegalStateException("The file has deduplicated blocks, but the block content dictionary is missing");
+		}
+		return deduplicatedBlocks;
+	}
+
+	private Buf encodeBlock(DiskMetadata meta, Buf data) {
+		var codec = getBlockCodec(meta.codecId());
+		if (codec == BlockCodec.NONE) {
+			return data;
+		}
+		var encoded = codec.encode(data);
+		if (encoded == null || encoded.size() + Integer.BYTES >= data.size()) {
+			var out = BufDataOutput.create(Byte.BYTES + data.size());
+			out.writeByte(BLOCK_RAW);
+			out.writeBytes(data);
+			return out.asList();
+		}
+		var out = BufDataOutput.create(Byte.BYTES + Integer.BYTES + encoded.size());
+		out.writeByte(BLOCK_ENCODED);
+		out.writeInt(data.size());
+		out.writeBytes(encoded);
+		return out.asList();
+	}
+
+	private Buf decodeBlock(DiskMetadata meta, Buf stored) {
+		var codec = getBlockCodec(meta.codecId());
+		if (codec == BlockCodec.NONE) {
+			return stored;
+		}
+		var input = BufDataInput.create(stored);
+		byte blockType = input.readByte();
+		return switch (blockType) {
+			case BLOCK_RAW -> stored.subList(Byte.BYTES, stored.size());
+			case BLOCK_ENCODED -> {
+				int decodedLength = input.readInt();
+				int headerSize = Byte.BYTES + Integer.BYTES;
+				yield codec.decode(stored.subList(headerSize, stored.size()), decodedLength);
+			}
+			default -> throw new IllegalStateException("Unknown block type: " + blockType);
+		};
+	}
+
+	private BlockCodec getBlockCodec(int codecId) {
+		if (codecId == blockCodec.id()) {
+			return blockCodec;
+		} else if (codecId == BlockCodec.NONE.id()) {
+			return BlockCodec.NONE;
+		} else if (codecId == BlockCodec.DEFLATE.id()) {
+			return BlockCodec.DEFLATE;
+		} else {
+			throw new IllegalStateException("Block codec " + codecId + " is not configured");
+		}
+	}
+
+	private DataBlock toDataBlock(DiskMetadata meta, int blockId, Buf storedData) {
+		if (meta.deduplicated()) {
+			storedData = getDeduplicatedBlocks().get(storedData);
+		} else if (meta.segmented()) {
+			storedData = getSegmentStore().read(storedData);
+		}
+		var data = decodeBlock(meta, storedData);
+		long blockOffset = meta.getBlockOffset(blockId);
+		int blockLength = data.size();
+		if (meta.size() != -1) {
+			if (blockOffset + blockLength >= meta.size()) {
+				if (blockOffset + blockLength > meta.size()) {
+					throw new IllegalStateException("Overflowed data size");
+				}
+			} else {
+				// Intermediate blocks must be of max size
+				assert data.size() == meta.blockSize();
+			}
+		}
+		return DataBlock.of(blockOffset, blockLength, data);
 	}
 
 	private Buf getBlockKey(Buf urlKey, int blockId) {
@@ -300,8 +1665,12 @@ class DiskCacheImpl implements DiskCache {
 		return out.asList();
 	}
 
-	private static long getBlockOffset(int blockId) {
-		return blockId * (long) BLOCK_SIZE;
+	private static int getBlockId(Buf blockKey) {
+		int size = blockKey.size();
+		return (blockKey.getByte(size - 4) & 0xFF) << 24
+				| (blockKey.getByte(size - 3) & 0xFF) << 16
+				| (blockKey.getByte(size - 2) & 0xFF) << 8
+				| (blockKey.getByte(size - 1) & 0xFF);
 	}
 
 	@Override
@@ -311,13 +1680,7 @@ class DiskCacheImpl implements DiskCache {
 
 	@Override
 	public DiskMetadata requestDiskMetadataSync(URL url) {
-		Buf urlKey = resolveAliasKey(serializeUrl(url));
-		var prevBytes = fileMetadata.get(null, urlKey);
-		if (prevBytes != null) {
-			return deserializeMetadata(prevBytes);
-		} else {
-			return null;
-		}
+		return resolveSync(url).metadata();
 	}
 
 	@Override
@@ -343,22 +1706,25 @@ class DiskCacheImpl implements DiskCache {
 					if (tuple == null) {
 						return null;
 					}
-					return tuple.mapT2(s -> Flux.fromStream(s).subscribeOn(Schedulers.boundedElastic()));
+					return tuple.mapT2(s -> streamContent(Flux.fromStream(s)));
 				})
 				.subscribeOn(Schedulers.boundedElastic());
 	}
 
 	@Override
 	public Tuple2<Metadata, Stream<DataBlock>> requestSync(URL url) {
-		Buf urlKey = resolveAliasKey(serializeUrl(url));
-		var serialized = fileMetadata.get(null, urlKey);
-		if (serialized == null) {
+		return requestSync(resolveSync(url));
+	}
+
+	@Override
+	public Tuple2<Metadata, Stream<DataBlock>> requestSync(DiskCacheEntry entry) {
+		DiskMetadata diskMeta = entry.metadata();
+		if (diskMeta == null) {
 			return null;
 		}
-		DiskMetadata diskMeta = deserializeMetadata(serialized);
 		var meta = diskMeta.asMetadata();
 		if (diskMeta.isDownloadedFully()) {
-			return Tuples.of(meta, this.requestContentSync(url));
+			return Tuples.of(meta, this.requestContentSync(entry));
 		} else {
 			return Tuples.of(meta, Stream.empty());
 		}
@@ -366,6 +1732,7 @@ class DiskCacheImpl implements DiskCache {
 
 	@Override
 	public void tidyDatabaseUnsafe(Buf targetValue) {
+		aliasCache.clear();
 		java.util.stream.IntStream.range(0, 256).parallel().forEach(i -> {
 			Buf min = Buf.wrap(new byte[] { 0, (byte) i });
 			Buf max = i == 255 ? Buf.wrap(new byte[] { 1 }) : Buf.wrap(new byte[] { 0, (byte) (i + 1) });
@@ -387,10 +1754,36 @@ class DiskCacheImpl implements DiskCache {
 				}
 			});
 		}
+		if (aliasSources != null) {
+			aliasSources.removeAll(targetValue);
+		}
 	}
 
+	private record EvictionCandidate(Buf key, DiskMetadata meta, boolean active, long lastAccessTime) {}
+
+	private record StoredMetadata(DiskMetadata metadata, @Nullable Buf inlineContent) {}
+
+	/**
+	 * @param data encoded content of the block, or its location if it's stored in a segment
+	 * @param length length of the content of the block before encoding it
+	 */
+	private record BlockWrite(Buf urlKey, int blockId, Buf blockKey, Buf data, int length, boolean unknownSize,
+			boolean deduplicated, boolean segmented) {}
+
 	@Override
 	public void close() {
+		var sweep = expirationSweep.getAndSet(null);
+		if (sweep != null) {
+			sweep.dispose();
+		}
+		if (segmentsCompaction != null) {
+			segmentsCompaction.dispose();
+		}
+		flushDownloadedBlocks();
+		storeAccessTimes(accessTracker.removeAll());
+		if (segmentStore != null) {
+			segmentStore.close();
+		}
 		if (ownedDb != null) {
 			ownedDb.close();
 		}
@@ -398,6 +1791,7 @@ class DiskCacheImpl implements DiskCache {
 
 	@Override
 	public void pauseForBackup() {
+		flushDownloadedBlocks();
 		if (ownedDb != null) {
 			ownedDb.pauseForBackup();
 		}
@@ -0,0 +1,121 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import io.soabase.recordbuilder.core.RecordBuilder;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.util.function.Function;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * @param aliasCacheSize max count of resolved aliases kept in memory, 0 to disable the cache
+ * @param readAheadBlocks max count of blocks read from the disk before the subscriber requests them,
+ *                        0 to read each block only when it's requested
+ * @param blockSize size of the blocks of the new files of known size. The block size of each file is stored in its
+ *                  metadata, so changing it doesn't affect the files that are already cached
+ * @param inlineMaxSize max size of the files that are stored together with their metadata, so that reading them
+ *                      requires a single lookup. 0 to store every file in blocks. It's reduced to the block size if
+ *                      it's larger
+ * @param assembledBlocksMaxSize max count of bytes kept in memory for the blocks that are received in parts smaller
+ *                               than the block size. When it's exceeded, the oldest partial blocks are discarded
+ * @param blockCodec codec of the blocks of the new files. Blocks that don't compress are stored as they are
+ * @param deduplicateBlocks store the blocks of the new files by content hash, so that the blocks shared by multiple
+ *                          files are stored once
+ * @param maxSize max count of bytes of the cached files, 0 for no limit. When it's exceeded, the partial
+ *                downloads and the least recently used files are evicted in background
+ * @param timeToLivePolicy time to live of the new files, null if a file never expires.
+ *                         Expired files are misses, and they are removed in background
+ * @param segmentsDirectory directory of the segment files where the blocks of the new files are appended, so that the
+ *                          database stores only their locations. Null to store the blocks in the database
+ * @param metrics receives the measurements of the cache
+ * @param clock time source of the access times, of the expirations and of the eviction
+ */
+@RecordBuilder
+public record DiskCacheOptions(int aliasCacheSize,
+		int readAheadBlocks,
+		int blockSize,
+		int inlineMaxSize,
+		long assembledBlocksMaxSize,
+		BlockCodec blockCodec,
+		boolean deduplicateBlocks,
+		long maxSize,
+		Function<URL, @Nullable Duration> timeToLivePolicy,
+		@Nullable Path segmentsDirectory,
+		FileSpongeMetrics metrics,
+		Clock clock) implements DiskCacheOptionsBuilder.With {
+
+	/**
+	 * Policy of the files that never expire
+	 */
+	public static final Function<URL, @Nullable Duration> NO_EXPIRATION = url -> null;
+
+	public static final DiskCacheOptions DEFAULT = new DiskCacheOptions(10_000,
+			4,
+			FileSponge.BLOCK_SIZE,
+			4096,
+			256L * 1024 * 1024,
+			BlockCodec.NONE,
+			false,
+			0,
+			DiskCacheOptions.NO_EXPIRATION,
+			null,
+			FileSpongeMetrics.NONE,
+			Clock.systemUTC()
+	);
+
+	public DiskCacheOptions {
+		if (aliasCacheSize < 0) {
+			throw new IllegalArgumentException("Alias cache size must not be negative: " + aliasCacheSize);
+		}
+		if (readAheadBlocks < 0) {
+			throw new IllegalArgumentException("Read-ahead blocks must not be negative: " + readAheadBlocks);
+		}
+		if (blockSize <= 0) {
+			throw new IllegalArgumentException("Block size must be positive: " + blockSize);
+		}
+		if (inlineMaxSize < 0) {
+			throw new IllegalArgumentException("Inline max size must not be negative: " + inlineMaxSize);
+		}
+		// An inline file is stored as a single block
+		inlineMaxSize = Math.min(inlineMaxSize, blockSize);
+		if (assembledBlocksMaxSize < 0) {
+			throw new IllegalArgumentException("Assembled blocks max size must not be negative: " + assembledBlocksMaxSize);
+		}
+		if (maxSize < 0) {
+			throw new IllegalArgumentException("Max size must not be negative: " + maxSize);
+		}
+		if (timeToLivePolicy == null) {
+			throw new IllegalArgumentException("Time to live policy must not be null");
+		}
+		if (blockCodec == null) {
+			throw new IllegalArgumentException("Block codec must not be null");
+		}
+		if (metrics == null) {
+			throw new IllegalArgumentException("Metrics must not be null");
+		}
+		if (clock == null) {
+			throw new IllegalArgumentException("Clock must not be null");
+		}
+		if (deduplicateBlocks && segmentsDirectory != null) {
+			throw new IllegalArgumentException("Deduplicated blocks can't be stored in segments");
+		}
+	}
+}
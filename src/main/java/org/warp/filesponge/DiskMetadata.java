@@ -25,34 +25,135 @@ import it.cavallium.buffer.BufDataOutput;
 import it.cavallium.dbengine.database.serialization.SerializationException;
 import it.cavallium.dbengine.database.serialization.Serializer;
 import it.unimi.dsi.fastutil.booleans.BooleanArrayList;
+import java.util.BitSet;
 import org.jetbrains.annotations.NotNull;
 
 /**
  * size -1 = unknown size
+ * @param blockSize size of each block, except the last one
+ * @param codecId id of the {@link BlockCodec} used to store the blocks
+ * @param deduplicated true if the blocks are stored by content hash, and the file holds only references to them
+ * @param segmented true if the blocks are stored in the segment files, and the file holds only their locations
+ * @param expirationTime time in milliseconds since the epoch after which the file is not valid anymore,
+ *                       0 if the file never expires
+ * @param storedSize bytes stored for the blocks that are marked as downloaded, after encoding them.
+ *                   The blocks shared with other files are not counted
+ * @param lastAccessTime time in milliseconds since the epoch of the last access to the file that has been stored,
+ *                       0 if it's not known. Recent accesses are kept in memory
+ * @param blocksCount total blocks count, or the count of the known blocks if the size is unknown
+ * @param downloadedBlocks it's copied, and {@link #downloadedBlocks()} returns a copy
+ * @param downloadedBlocksCount count of the set bits of downloadedBlocks
  */
-public record DiskMetadata(long size, BooleanArrayList downloadedBlocks) {
+public record DiskMetadata(long size, int blockSize, int codecId, boolean deduplicated, boolean segmented,
+		long expirationTime,
+		long storedSize,
+		long lastAccessTime,
+		int blocksCount,
+		BitSet downloadedBlocks, int downloadedBlocksCount) {
 
-	public boolean isDownloadedFully() {
-		boolean downloadedFullyVal;
-		// Ensure blocks count is valid by calling getBlocksCount()
-		getBlocksCount();
-		// It's fully downloaded if every block is true
-		downloadedFullyVal = !this.downloadedBlocks.contains(false);
-		return downloadedFullyVal;
+	public DiskMetadata {
+		if (blockSize <= 0) {
+			throw new IllegalStateException("Block size must be positive: " + blockSize);
+		}
+		if (size != -1) {
+			var expectedBlocksCount = getBlocksCount(size, blockSize);
+			if (blocksCount != expectedBlocksCount) {
+				throw new IllegalStateException(
+						"Blocks array length (" + blocksCount + ") != expected blocks count (" + expectedBlocksCount + ")");
+			}
+		}
+		if (downloadedBlocks.length() > blocksCount) {
+			throw new IllegalStateException(
+					"Downloaded block " + (downloadedBlocks.length() - 1) + " is out of bounds, blocks count: " + blocksCount);
+		}
+		if (downloadedBlocksCount != downloadedBlocks.cardinality()) {
+			throw new IllegalStateException("Downloaded blocks count (" + downloadedBlocksCount
+					+ ") != count of the downloaded blocks (" + downloadedBlocks.cardinality() + ")");
+		}
+		downloadedBlocks = (BitSet) downloadedBlocks.clone();
 	}
 
-	@SuppressWarnings("UnusedReturnValue")
-	private int getBlocksCount() {
-		if (size == -1) {
-			return downloadedBlocks.size();
+	public DiskMetadata(long size, int blocksCount, BitSet downloadedBlocks) {
+		this(size,
+				FileSponge.BLOCK_SIZE,
+				BlockCodec.NONE.id(),
+				false,
+				false,
+				0,
+				getDownloadedBytes(size, FileSponge.BLOCK_SIZE, blocksCount, downloadedBlocks, downloadedBlocks.cardinality()),
+				0,
+				blocksCount,
+				downloadedBlocks,
+				downloadedBlocks.cardinality()
+		);
+	}
+
+	/**
+	 * @param downloadedBlocks one element for each block, true if the block is downloaded
+	 * @deprecated use {@link #DiskMetadata(long, int, BitSet)}
+	 */
+	@Deprecated
+	public DiskMetadata(long size, BooleanArrayList downloadedBlocks) {
+		this(size, downloadedBlocks.size(), toBitSet(downloadedBlocks));
+	}
+
+	private static BitSet toBitSet(BooleanArrayList blocks) {
+		var bitSet = new BitSet(blocks.size());
+		for (int i = 0; i < blocks.size(); i++) {
+			if (blocks.getBoolean(i)) {
+				bitSet.set(i);
+			}
 		}
-		var expectedBlocksCount = getBlocksCount(size, FileSponge.BLOCK_SIZE);
-		if (this.downloadedBlocks.size() != expectedBlocksCount) {
-			throw new IllegalStateException(
-					"Blocks array length (" + this.downloadedBlocks.size() + ") != expected blocks count ("
-							+ expectedBlocksCount + ")");
+		return bitSet;
+	}
+
+	/**
+	 * @return metadata of a file with no downloaded blocks
+	 */
+	public static DiskMetadata create(long size) {
+		return create(size, FileSponge.BLOCK_SIZE);
+	}
+
+	/**
+	 * @return metadata of a file with no downloaded blocks, stored as they are received.
+	 * The storage of the blocks is set by {@link #withCodecId(int)}, {@link #withDeduplicated(boolean)}
+	 * and {@link #withSegmented(boolean)}
+	 */
+	public static DiskMetadata create(long size, int blockSize) {
+		return new DiskMetadata(size,
+				blockSize,
+				BlockCodec.NONE.id(),
+				false,
+				false,
+				0,
+				0,
+				0,
+				getBlocksCount(size, blockSize),
+				new BitSet(),
+				0
+		);
+	}
+
+	public boolean isDownloadedFully() {
+		// It's fully downloaded if every block is set
+		return downloadedBlocksCount == blocksCount;
+	}
+
+	/**
+	 * @return the count of the downloaded bytes, approximated if the size is unknown
+	 */
+	public long getDownloadedBytes() {
+		return getDownloadedBytes(size, blockSize, blocksCount, downloadedBlocks, downloadedBlocksCount);
+	}
+
+	private static long getDownloadedBytes(long size, int blockSize, int blocksCount, BitSet downloadedBlocks,
+			int downloadedBlocksCount) {
+		long downloadedBytes = downloadedBlocksCount * (long) blockSize;
+		if (size != -1 && blocksCount > 0 && downloadedBlocks.get(blocksCount - 1)) {
+			// The last block can be smaller
+			downloadedBytes -= blocksCount * (long) blockSize - size;
 		}
-		return expectedBlocksCount;
+		return downloadedBytes;
 	}
 
 	public static int getBlocksCount(long size, int blockSize) {
@@ -66,24 +167,279 @@ public record DiskMetadata(long size, BooleanArrayList downloadedBlocks) {
 		return new Metadata(size);
 	}
 
+	/**
+	 * @return the offset of the first byte of the block
+	 */
+	public long getBlockOffset(int id) {
+		return id * (long) blockSize;
+	}
+
+	/**
+	 * @return the id of the block that contains the byte at the offset
+	 */
+	public int getBlockId(long offset) {
+		return toIntExact(offset / blockSize);
+	}
+
+	/**
+	 * @return a copy of the downloaded blocks
+	 */
+	@Override
+	public BitSet downloadedBlocks() {
+		return (BitSet) downloadedBlocks.clone();
+	}
+
+	/**
+	 * @return the id of the first block, starting from the given one, that is not downloaded
+	 */
+	public int nextMissingBlock(int fromBlock) {
+		return downloadedBlocks.nextClearBit(fromBlock);
+	}
+
 	public boolean isDownloadedBlock(int id) {
-		if (size == -1 && downloadedBlocks.size() <= id) {
+		if (size == -1 && blocksCount <= id) {
 			return false;
 		} else {
-			return downloadedBlocks.getBoolean(id);
+			return downloadedBlocks.get(id);
+		}
+	}
+
+	/**
+	 * @return a copy of this metadata with the block marked as downloaded
+	 */
+	public DiskMetadata withDownloadedBlock(int id) {
+		if (isDownloadedBlock(id)) {
+			return this;
+		}
+		int newBlocksCount = blocksCount;
+		if (size == -1) {
+			if (id == blocksCount) {
+				newBlocksCount++;
+			} else if (id > blocksCount) {
+				throw new IndexOutOfBoundsException(
+						"Trying to write a block too much far from the last block. Previous total blocks: "
+								+ blocksCount + " Current block id: " + id);
+			}
+		} else if (id >= blocksCount) {
+			throw new IndexOutOfBoundsException("Block " + id + " is out of bounds, blocks count: " + blocksCount);
 		}
+		var newDownloadedBlocks = (BitSet) downloadedBlocks.clone();
+		newDownloadedBlocks.set(id);
+		return new DiskMetadata(size,
+				blockSize,
+				codecId,
+				deduplicated,
+				segmented,
+				expirationTime,
+				storedSize,
+				lastAccessTime,
+				newBlocksCount,
+				newDownloadedBlocks,
+				downloadedBlocksCount + 1
+		);
+	}
+
+	/**
+	 * @return a copy of this metadata with the blocks marked as downloaded
+	 */
+	public DiskMetadata withDownloadedBlocks(BitSet blocks) {
+		if (size == -1) {
+			// The blocks count of a file with unknown size can grow only by one block at a time
+			var result = this;
+			for (int id = blocks.nextSetBit(0); id >= 0; id = blocks.nextSetBit(id + 1)) {
+				result = result.withDownloadedBlock(id);
+			}
+			return result;
+		}
+		var newDownloadedBlocks = (BitSet) downloadedBlocks.clone();
+		newDownloadedBlocks.or(blocks);
+		if (newDownloadedBlocks.length() > blocksCount) {
+			throw new IndexOutOfBoundsException(
+					"Block " + (newDownloadedBlocks.length() - 1) + " is out of bounds, blocks count: " + blocksCount);
+		}
+		if (newDownloadedBlocks.equals(downloadedBlocks)) {
+			return this;
+		}
+		return new DiskMetadata(size,
+				blockSize,
+				codecId,
+				deduplicated,
+				segmented,
+				expirationTime,
+				storedSize,
+				lastAccessTime,
+				blocksCount,
+				newDownloadedBlocks,
+				newDownloadedBlocks.cardinality()
+		);
+	}
+
+	/**
+	 * @return a copy of this metadata with the blocks encoded by the {@link BlockCodec} with the id
+	 */
+	public DiskMetadata withCodecId(int codecId) {
+		return new DiskMetadata(size,
+				blockSize,
+				codecId,
+				deduplicated,
+				segmented,
+				expirationTime,
+				storedSize,
+				lastAccessTime,
+				blocksCount,
+				downloadedBlocks,
+				downloadedBlocksCount
+		);
+	}
+
+	public DiskMetadata withDeduplicated(boolean deduplicated) {
+		return new DiskMetadata(size,
+				blockSize,
+				codecId,
+				deduplicated,
+				segmented,
+				expirationTime,
+				storedSize,
+				lastAccessTime,
+				blocksCount,
+				downloadedBlocks,
+				downloadedBlocksCount
+		);
+	}
+
+	public DiskMetadata withSegmented(boolean segmented) {
+		return new DiskMetadata(size,
+				blockSize,
+				codecId,
+				deduplicated,
+				segmented,
+				expirationTime,
+				storedSize,
+				lastAccessTime,
+				blocksCount,
+				downloadedBlocks,
+				downloadedBlocksCount
+		);
+	}
+
+	/**
+	 * @param expirationTime time in milliseconds since the epoch, 0 if the file never expires
+	 * @return a copy of this metadata with the expiration time
+	 */
+	public DiskMetadata withExpirationTime(long expirationTime) {
+		return new DiskMetadata(size,
+				blockSize,
+				codecId,
+				deduplicated,
+				segmented,
+				expirationTime,
+				storedSize,
+				lastAccessTime,
+				blocksCount,
+				downloadedBlocks,
+				downloadedBlocksCount
+		);
+	}
+
+	/**
+	 * @param storedSize bytes stored for the downloaded blocks
+	 */
+	public DiskMetadata withStoredSize(long storedSize) {
+		return new DiskMetadata(size,
+				blockSize,
+				codecId,
+				deduplicated,
+				segmented,
+				expirationTime,
+				storedSize,
+				lastAccessTime,
+				blocksCount,
+				downloadedBlocks,
+				downloadedBlocksCount
+		);
+	}
+
+	/**
+	 * @return a copy of this metadata with more stored bytes
+	 */
+	public DiskMetadata withAddedStoredSize(long storedBytes) {
+		if (storedBytes == 0) {
+			return this;
+		}
+		return withStoredSize(storedSize + storedBytes);
+	}
+
+	/**
+	 * @param lastAccessTime time in milliseconds since the epoch
+	 */
+	public DiskMetadata withLastAccessTime(long lastAccessTime) {
+		return new DiskMetadata(size,
+				blockSize,
+				codecId,
+				deduplicated,
+				segmented,
+				expirationTime,
+				storedSize,
+				lastAccessTime,
+				blocksCount,
+				downloadedBlocks,
+				downloadedBlocksCount
+		);
+	}
+
+	/**
+	 * @param now current time in milliseconds since the epoch
+	 */
+	public boolean isExpired(long now) {
+		return expirationTime != 0 && expirationTime <= now;
 	}
 
 	public static class DiskMetadataSerializer implements Serializer<DiskMetadata> {
 
+		/**
+		 * Legacy format: the size is a long, and each block is a boolean
+		 */
+		private static final int FORMAT_V2 = -2;
+		/**
+		 * Header with the block size, the blocks counts and a flags word, followed by the optional fields
+		 * marked in the flags word, then by the downloaded blocks in the most compact encoding.
+		 * Each optional field is prefixed by its length, so the readers skip the fields that they don't know
+		 */
+		private static final int FORMAT_V3 = -3;
+
+		/**
+		 * The flags of the lower half change how the blocks are stored, so they must be known by the reader
+		 */
+		private static final int STORAGE_FLAGS_MASK = 0xFFFF;
+		private static final int FLAG_DEDUPLICATED = 1;
+		private static final int FLAG_SEGMENTED = 1 << 1;
+		/**
+		 * The flags of the upper half mark the optional fields that are present, in the order of their bits
+		 */
+		private static final int FIELD_CODEC_ID = 1 << 16;
+		private static final int FIELD_EXPIRATION_TIME = 1 << 17;
+		private static final int FIELD_STORED_SIZE = 1 << 18;
+		private static final int FIELD_LAST_ACCESS_TIME = 1 << 19;
+
+		private static final byte ENCODING_COMPLETE = 0;
+		private static final byte ENCODING_EMPTY = 1;
+		private static final byte ENCODING_BITSET = 2;
+		private static final byte ENCODING_RUNS = 3;
+
+		private static final int HEADER_SIZE
+				= Integer.BYTES + Long.BYTES + Integer.BYTES + Integer.BYTES + Integer.BYTES + Integer.BYTES + Byte.BYTES;
+
 		@Override
 		public @NotNull DiskMetadata deserialize(@NotNull BufDataInput dis) throws SerializationException {
-			int legacySize = dis.readInt();
+			int formatOrLegacySize = dis.readInt();
+			if (formatOrLegacySize == FORMAT_V3) {
+				return deserializeV3(dis);
+			}
 			long size;
-			if (legacySize == -2) {
+			if (formatOrLegacySize == FORMAT_V2) {
 				size = dis.readLong();
 			} else {
-				size = legacySize;
+				size = formatOrLegacySize;
 			}
 			int blocksCount;
 			if (size == -1) {
@@ -91,29 +447,178 @@ public record DiskMetadata(long size, BooleanArrayList downloadedBlocks) {
 			} else {
 				blocksCount = getBlocksCount(size, FileSponge.BLOCK_SIZE);
 			}
-			var downloadedBlocks = new BooleanArrayList(blocksCount);
+			var downloadedBlocks = new BitSet(blocksCount);
 			for (int i = 0; i < blocksCount; i++) {
-				downloadedBlocks.add(dis.readBoolean());
+				if (dis.readBoolean()) {
+					downloadedBlocks.set(i);
+				}
+			}
+			return new DiskMetadata(size, blocksCount, downloadedBlocks);
+		}
+
+		private DiskMetadata deserializeV3(BufDataInput dis) throws SerializationException {
+			long size = dis.readLong();
+			int blockSize = dis.readInt();
+			int blocksCount = dis.readInt();
+			int downloadedBlocksCount = dis.readInt();
+			int flags = dis.readInt();
+			int unknownStorageFlags = flags & STORAGE_FLAGS_MASK & ~(FLAG_DEDUPLICATED | FLAG_SEGMENTED);
+			if (unknownStorageFlags != 0) {
+				throw new SerializationException("Unknown storage flags: " + Integer.toBinaryString(unknownStorageFlags));
+			}
+			int codecId = BlockCodec.NONE.id();
+			long expirationTime = 0;
+			long storedSizeDifference = 0;
+			long lastAccessTime = 0;
+			int optionalFields = flags & ~STORAGE_FLAGS_MASK;
+			while (optionalFields != 0) {
+				int field = Integer.lowestOneBit(optionalFields);
+				optionalFields &= ~field;
+				int fieldLength = dis.readInt();
+				switch (field) {
+					case FIELD_CODEC_ID -> codecId = dis.readInt();
+					case FIELD_EXPIRATION_TIME -> expirationTime = dis.readLong();
+					case FIELD_STORED_SIZE -> storedSizeDifference = dis.readLong();
+					case FIELD_LAST_ACCESS_TIME -> lastAccessTime = dis.readLong();
+					// Fields added by newer versions
+					default -> dis.skipBytes(fieldLength);
+				}
 			}
-			return new DiskMetadata(size, downloadedBlocks);
+			var downloadedBlocks = deserializeBlocks(dis, blocksCount);
+			long storedSize = getDownloadedBytes(size, blockSize, blocksCount, downloadedBlocks, downloadedBlocksCount)
+					+ storedSizeDifference;
+			return new DiskMetadata(size,
+					blockSize,
+					codecId,
+					(flags & FLAG_DEDUPLICATED) != 0,
+					(flags & FLAG_SEGMENTED) != 0,
+					expirationTime,
+					storedSize,
+					lastAccessTime,
+					blocksCount,
+					downloadedBlocks,
+					downloadedBlocksCount
+			);
+		}
+
+		private BitSet deserializeBlocks(BufDataInput dis, int blocksCount) throws SerializationException {
+			byte encoding = dis.readByte();
+			return switch (encoding) {
+				case ENCODING_COMPLETE -> {
+					var bitSet = new BitSet(blocksCount);
+					bitSet.set(0, blocksCount);
+					yield bitSet;
+				}
+				case ENCODING_EMPTY -> new BitSet();
+				case ENCODING_BITSET -> {
+					var bytes = new byte[dis.readInt()];
+					dis.readFully(bytes);
+					yield BitSet.valueOf(bytes);
+				}
+				case ENCODING_RUNS -> {
+					int runsCount = dis.readInt();
+					var bitSet = new BitSet(blocksCount);
+					for (int i = 0; i < runsCount; i++) {
+						int runStart = dis.readInt();
+						int runLength = dis.readInt();
+						bitSet.set(runStart, runStart + runLength);
+					}
+					yield bitSet;
+				}
+				default -> throw new SerializationException("Unknown downloaded blocks encoding: " + encoding);
+			};
 		}
 
 		@Override
 		public void serialize(@NotNull DiskMetadata deserialized, BufDataOutput dos) throws SerializationException {
-			dos.writeInt(-2);
+			int flags = 0;
+			if (deserialized.deduplicated) {
+				flags |= FLAG_DEDUPLICATED;
+			}
+			if (deserialized.segmented) {
+				flags |= FLAG_SEGMENTED;
+			}
+			if (deserialized.codecId != BlockCodec.NONE.id()) {
+				flags |= FIELD_CODEC_ID;
+			}
+			if (deserialized.expirationTime != 0) {
+				flags |= FIELD_EXPIRATION_TIME;
+			}
+			// The stored size is written only if it differs from the downloaded bytes
+			long storedSizeDifference = deserialized.storedSize - deserialized.getDownloadedBytes();
+			if (storedSizeDifference != 0) {
+				flags |= FIELD_STORED_SIZE;
+			}
+			if (deserialized.lastAccessTime != 0) {
+				flags |= FIELD_LAST_ACCESS_TIME;
+			}
+			dos.writeInt(FORMAT_V3);
 			dos.writeLong(deserialized.size);
-			var blocksCount = deserialized.getBlocksCount();
-			if (deserialized.size == -1) {
-				dos.writeShort(blocksCount);
+			dos.writeInt(deserialized.blockSize);
+			dos.writeInt(deserialized.blocksCount);
+			dos.writeInt(deserialized.downloadedBlocksCount);
+			dos.writeInt(flags);
+			// The optional fields are written in the order of their flags
+			if ((flags & FIELD_CODEC_ID) != 0) {
+				dos.writeInt(Integer.BYTES);
+				dos.writeInt(deserialized.codecId);
+			}
+			if ((flags & FIELD_EXPIRATION_TIME) != 0) {
+				dos.writeInt(Long.BYTES);
+				dos.writeLong(deserialized.expirationTime);
 			}
-			for (boolean downloadedBlock : deserialized.downloadedBlocks) {
-				dos.writeBoolean(downloadedBlock);
+			if ((flags & FIELD_STORED_SIZE) != 0) {
+				dos.writeInt(Long.BYTES);
+				dos.writeLong(storedSizeDifference);
+			}
+			if ((flags & FIELD_LAST_ACCESS_TIME) != 0) {
+				dos.writeInt(Long.BYTES);
+				dos.writeLong(deserialized.lastAccessTime);
+			}
+			serializeBlocks(deserialized, dos);
+		}
+
+		private void serializeBlocks(DiskMetadata deserialized, BufDataOutput dos) {
+			if (deserialized.isDownloadedFully()) {
+				dos.writeByte(ENCODING_COMPLETE);
+			} else if (deserialized.downloadedBlocksCount == 0) {
+				dos.writeByte(ENCODING_EMPTY);
+			} else {
+				var downloadedBlocks = deserialized.downloadedBlocks;
+				int runsCount = countRuns(downloadedBlocks);
+				var bitSetBytes = downloadedBlocks.toByteArray();
+				// Runs are smaller for mostly downloaded files, because the missing blocks are usually contiguous
+				if (runsCount * 2 * Integer.BYTES < bitSetBytes.length) {
+					dos.writeByte(ENCODING_RUNS);
+					dos.writeInt(runsCount);
+					int runStart = downloadedBlocks.nextSetBit(0);
+					while (runStart >= 0) {
+						int runEnd = downloadedBlocks.nextClearBit(runStart);
+						dos.writeInt(runStart);
+						dos.writeInt(runEnd - runStart);
+						runStart = downloadedBlocks.nextSetBit(runEnd);
+					}
+				} else {
+					dos.writeByte(ENCODING_BITSET);
+					dos.writeInt(bitSetBytes.length);
+					dos.write(bitSetBytes);
+				}
+			}
+		}
+
+		private static int countRuns(BitSet bitSet) {
+			int runsCount = 0;
+			int runStart = bitSet.nextSetBit(0);
+			while (runStart >= 0) {
+				runsCount++;
+				runStart = bitSet.nextSetBit(bitSet.nextClearBit(runStart));
 			}
+			return runsCount;
 		}
 
 		@Override
 		public int getSerializedSizeHint() {
-			return Integer.BYTES + Long.BYTES;
+			return HEADER_SIZE;
 		}
 	}
 }
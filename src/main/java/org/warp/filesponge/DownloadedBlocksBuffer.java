@@ -0,0 +1,149 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import it.cavallium.buffer.Buf;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Blocks that have been written, but that are not marked as downloaded in the stored metadata yet,
+ * and the metadata of the files that are being written, so that each block write doesn't read it again
+ */
+class DownloadedBlocksBuffer {
+
+	private final ConcurrentHashMap<Buf, PendingFile> pendingFiles = new ConcurrentHashMap<>();
+	/**
+	 * Incremented on every clear, to discard the metadata read before the clear
+	 */
+	private final AtomicLong generation = new AtomicLong();
+
+	/**
+	 * @param storedBytes bytes stored for the block
+	 * @return the count of the pending blocks of the url key
+	 */
+	public int add(Buf urlKey, int blockId, long storedBytes) {
+		int[] pendingCount = new int[1];
+		pendingFiles.compute(urlKey, (key, file) -> {
+			if (file == null) {
+				file = new PendingFile(null);
+			}
+			file.blocks.set(blockId);
+			file.storedBytes += storedBytes;
+			pendingCount[0] = file.blocks.cardinality();
+			return file;
+		});
+		return pendingCount[0];
+	}
+
+	/**
+	 * @return a copy of the pending blocks of the url key, or null if there are no pending blocks
+	 */
+	public @Nullable PendingBlocks get(Buf urlKey) {
+		PendingBlocks[] pendingCopy = new PendingBlocks[1];
+		pendingFiles.computeIfPresent(urlKey, (key, file) -> {
+			if (!file.blocks.isEmpty()) {
+				pendingCopy[0] = new PendingBlocks((BitSet) file.blocks.clone(), file.storedBytes);
+			}
+			return file;
+		});
+		return pendingCopy[0];
+	}
+
+	/**
+	 * @return the stored metadata of the file that is being written, or null if it's not known.
+	 * Only the fields that don't change while the file is written are valid: the downloaded blocks are not
+	 */
+	public @Nullable DiskMetadata getMetadata(Buf urlKey) {
+		var file = pendingFiles.get(urlKey);
+		return file != null ? file.metadata : null;
+	}
+
+	public long getGeneration() {
+		return generation.get();
+	}
+
+	/**
+	 * @param generation generation read before reading the metadata
+	 */
+	public void putMetadata(Buf urlKey, DiskMetadata metadata, long generation) {
+		pendingFiles.compute(urlKey, (key, file) -> {
+			if (this.generation.get() != generation) {
+				return file;
+			}
+			var newFile = new PendingFile(metadata);
+			if (file != null) {
+				newFile.blocks.or(file.blocks);
+				newFile.storedBytes = file.storedBytes;
+			}
+			return newFile;
+		});
+	}
+
+	/**
+	 * Remove the blocks that have been stored in the metadata
+	 */
+	public void remove(Buf urlKey, PendingBlocks storedBlocks) {
+		pendingFiles.computeIfPresent(urlKey, (key, file) -> {
+			file.blocks.andNot(storedBlocks.blocks());
+			file.storedBytes -= storedBlocks.storedBytes();
+			return file.blocks.isEmpty() && file.metadata == null ? null : file;
+		});
+	}
+
+	/**
+	 * Forget the metadata of the files that have no pending blocks
+	 */
+	public void removeIdle() {
+		for (Buf urlKey : pendingFiles.keySet()) {
+			pendingFiles.computeIfPresent(urlKey, (key, file) -> file.blocks.isEmpty() ? null : file);
+		}
+	}
+
+	public void clear(Buf urlKey) {
+		generation.incrementAndGet();
+		pendingFiles.remove(urlKey);
+	}
+
+	public List<Buf> getUrlKeys() {
+		return List.copyOf(pendingFiles.keySet());
+	}
+
+	/**
+	 * @param storedBytes bytes stored for the blocks
+	 */
+	public record PendingBlocks(BitSet blocks, long storedBytes) {}
+
+	/**
+	 * @param metadata null if the metadata has not been read
+	 */
+	private static final class PendingFile {
+
+		private final @Nullable DiskMetadata metadata;
+		private final BitSet blocks = new BitSet();
+		private long storedBytes;
+
+		private PendingFile(@Nullable DiskMetadata metadata) {
+			this.metadata = metadata;
+		}
+	}
+}
@@ -18,15 +18,33 @@
 
 package org.warp.filesponge;
 
+import static java.lang.Math.toIntExact;
+
 import it.cavallium.dbengine.database.LLUtils;
 import it.unimi.dsi.fastutil.objects.ObjectOpenHashSet;
+import java.nio.channels.WritableByteChannel;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
+import reactor.core.publisher.BufferOverflowStrategy;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
 import reactor.core.scheduler.Schedulers;
 
 public class FileSponge implements URLsHandlerCached {
@@ -35,13 +53,76 @@ public class FileSponge implements URLsHandlerCached {
 
 	public static final int BLOCK_SIZE = 1024 * 1024; // 1 MiB
 
+	/**
+	 * Latency percentile of a source after which the next source is requested too
+	 */
+	private static final double HEDGE_LATENCY_PERCENTILE = 0.95;
+	/**
+	 * Time to wait for a source that has never returned a value before requesting the next source
+	 */
+	private static final Duration DEFAULT_HEDGE_DELAY = Duration.ofMillis(500);
+	private static final Duration MIN_HEDGE_DELAY = Duration.ofMillis(10);
+	private static final Duration MAX_HEDGE_DELAY = Duration.ofSeconds(5);
+	/**
+	 * Multiple of the hedge delay of a source after which its request fails if it has not returned a value,
+	 * so that a source that doesn't answer times out even when there are no other sources to start
+	 */
+	private static final int FIRST_VALUE_TIMEOUT_HEDGE_DELAYS = 10;
+	/**
+	 * Consecutive failures or timeouts of a source after which it's skipped
+	 */
+	private static final int CIRCUIT_CONSECUTIVE_FAILURES = 5;
+	private static final Duration MIN_CIRCUIT_COOL_DOWN = Duration.ofSeconds(30);
+	private static final Duration MAX_CIRCUIT_COOL_DOWN = Duration.ofMinutes(5);
+	/**
+	 * Max concurrent block requests sent to each source when a file is downloaded from all the sources
+	 */
+	private static final int SWARM_REQUESTS_PER_SOURCE = 2;
+	/**
+	 * Default max count of downloaded blocks that are waiting to be written into the caches
+	 */
+	public static final int DEFAULT_CACHE_WRITE_QUEUE_SIZE = 64;
+	/**
+	 * Max count of downloaded blocks that are replayed to the identical requests that join a download late,
+	 * and that are buffered for each of them while they read the previous blocks again from the caches
+	 */
+	private static final int REPLAYED_CONTENT_BLOCKS = 16;
+
 	private final Object structuresLock = new Object();
 	private volatile ObjectOpenHashSet<URLsHandler> urlsHandlers = ObjectOpenHashSet.of();
 	private volatile ObjectOpenHashSet<URLsDiskHandler> cacheAccess = ObjectOpenHashSet.of();
 	private volatile ObjectOpenHashSet<URLsWriter> cacheWrite = ObjectOpenHashSet.of();
+	private final ConcurrentHashMap<ContentRange, Flux<DataBlock>> inFlightContent = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<URL, Flux<Metadata>> inFlightMetadata = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<URLsHandler, SourceHealth> sourceHealth = new ConcurrentHashMap<>();
+	private final CacheWriteQueue cacheWriteQueue;
+	private final FileSpongeMetrics metrics;
 
 	public FileSponge() {
+		this(DEFAULT_CACHE_WRITE_QUEUE_SIZE, CacheWriteOverflowPolicy.BLOCK);
+	}
+
+	public FileSponge(FileSpongeMetrics metrics) {
+		this(DEFAULT_CACHE_WRITE_QUEUE_SIZE, CacheWriteOverflowPolicy.BLOCK, metrics);
+	}
+
+	/**
+	 * @param cacheWriteQueueSize max count of downloaded blocks that are waiting to be written into the caches.
+	 *                            The blocks are emitted without waiting for the cache writes
+	 * @param cacheWriteOverflowPolicy what to do with the downloaded blocks when the queue is full
+	 */
+	public FileSponge(int cacheWriteQueueSize, CacheWriteOverflowPolicy cacheWriteOverflowPolicy) {
+		this(cacheWriteQueueSize, cacheWriteOverflowPolicy, FileSpongeMetrics.NONE);
+	}
 
+	/**
+	 * @param metrics receives the measurements of the requests, of the sources and of the caches
+	 */
+	public FileSponge(int cacheWriteQueueSize,
+			CacheWriteOverflowPolicy cacheWriteOverflowPolicy,
+			FileSpongeMetrics metrics) {
+		this.cacheWriteQueue = new CacheWriteQueue(cacheWriteQueueSize, cacheWriteOverflowPolicy);
+		this.metrics = metrics;
 	}
 
 	public Mono<Void> registerSource(URLsHandler urLsHandler) {
@@ -64,6 +145,7 @@ public class FileSponge implements URLsHandlerCached {
 						clone.remove(urLsHandler);
 						this.urlsHandlers = clone;
 					}
+					sourceHealth.remove(urLsHandler);
 				})
 				.subscribeOn(Schedulers.boundedElastic());
 	}
@@ -87,12 +169,12 @@ public class FileSponge implements URLsHandlerCached {
 	@Override
 	public Flux<DataBlock> requestContent(URL url) {
 		AtomicBoolean alreadyPrintedDebug = new AtomicBoolean(false);
-		return Mono
+		var content = Mono
 				.fromCallable(() -> {
 					var ca = this.cacheAccess;
 					List<Flux<DataBlock>> contentRequests = new ArrayList<>(ca.size());
 					for (URLsDiskHandler urlsHandler : ca) {
-						contentRequests.add(urlsHandler.requestContent(url));
+						contentRequests.add(measuredCacheLookup(urlsHandler, urlsHandler.requestContent(url)));
 					}
 					return contentRequests;
 				})
@@ -102,34 +184,568 @@ public class FileSponge implements URLsHandlerCached {
 						logger.debug("File \"{}\" content has been found in the cache", url);
 					}
 				})
-				.switchIfEmpty(Mono
-						.fromCallable(() -> {
-							logger.debug("Downloading file \"{}\" content", url);
-							var uh = this.urlsHandlers;
-							List<Flux<DataBlock>> contentRequestsAndCaching = new ArrayList<>(uh.size());
-							for (URLsHandler urlsHandler : uh) {
-								contentRequestsAndCaching.add(urlsHandler
-										.requestContent(url)
-										.flatMapSequential(dataBlock -> {
-											var cw = this.cacheWrite;
-											List<Mono<Void>> cacheWriteActions = new ArrayList<>(cw.size());
-											for (URLsWriter urlsWriter : cw) {
-												cacheWriteActions.add(urlsWriter.writeContentBlock(url, dataBlock, false));
-											}
-											return Mono.whenDelayError(cacheWriteActions).thenReturn(dataBlock);
-										})
-								);
-							}
-							return contentRequestsAndCaching;
-						})
-						.flatMapMany(FileSpongeUtils::firstWithValueFlux)
-						.doOnComplete(() -> logger.debug("Downloaded file \"{}\" content", url))
-				)
-				.distinct(DataBlock::getId)
+				.switchIfEmpty(fillCacheGaps(url, 0, -1).switchIfEmpty(downloadContent(url, 0, -1)));
+		return Flux
+				.defer(() -> {
+					// Join the identical download that is in flight, or whose blocks are still being cached
+					var download = inFlightContent.get(new ContentRange(url, 0, -1));
+					return download != null ? download : content;
+				})
+				.distinct(DataBlock::getOffset)
+				.doOnSubscribe(s -> metrics.recordRequestStarted())
+				.doFinally(signal -> metrics.recordRequestFinished())
+				.doOnDiscard(DataBlock.class, LLUtils::onDiscard);
+	}
 
+	/**
+	 * Request only the content between offset (inclusive) and offset + length (exclusive).
+	 * The blocks that contain the range are downloaded and cached entirely,
+	 * then the first and the last data blocks are trimmed to fit the range
+	 * @param length length of the range, -1 to read until the end of the file
+	 */
+	@Override
+	public Flux<DataBlock> requestContent(URL url, long offset, long length) {
+		FileSpongeUtils.checkRange(offset, length);
+		if (offset == 0 && length == -1) {
+			return requestContent(url);
+		} else if (length == 0) {
+			return Flux.empty();
+		}
+		AtomicBoolean alreadyPrintedDebug = new AtomicBoolean(false);
+		long alignedOffset = offset - offset % BLOCK_SIZE;
+		long alignedLength;
+		long end = FileSpongeUtils.getRangeEnd(offset, length);
+		if (end > Long.MAX_VALUE - BLOCK_SIZE) {
+			// The aligned end would overflow, the range reads until the end of the file
+			alignedLength = -1;
+		} else {
+			long alignedEnd = end + (BLOCK_SIZE - end % BLOCK_SIZE) % BLOCK_SIZE;
+			alignedLength = alignedEnd - alignedOffset;
+		}
+		var content = Mono
+				.fromCallable(() -> {
+					var ca = this.cacheAccess;
+					List<Flux<DataBlock>> contentRequests = new ArrayList<>(ca.size());
+					for (URLsDiskHandler urlsHandler : ca) {
+						contentRequests.add(measuredCacheLookup(urlsHandler, urlsHandler.requestContent(url, offset, length)));
+					}
+					return contentRequests;
+				})
+				.flatMapMany(FileSpongeUtils::firstWithValueFlux)
+				.doOnNext(dataBlock -> {
+					if (alreadyPrintedDebug.compareAndSet(false, true)) {
+						logger.debug("File \"{}\" content range {}+{} has been found in the cache", url, offset, length);
+					}
+				})
+				.switchIfEmpty(FileSpongeUtils.trimToRange(fillCacheGaps(url, alignedOffset, alignedLength)
+						.switchIfEmpty(downloadContent(url, alignedOffset, alignedLength)), offset, length));
+		return Flux
+				.defer(() -> {
+					// Join the identical download that is in flight, or whose blocks are still being cached
+					var download = inFlightContent.get(new ContentRange(url, alignedOffset, alignedLength));
+					return download != null ? FileSpongeUtils.trimToRange(download, offset, length) : content;
+				})
+				.distinct(DataBlock::getOffset)
+				.doOnSubscribe(s -> metrics.recordRequestStarted())
+				.doFinally(signal -> metrics.recordRequestFinished())
 				.doOnDiscard(DataBlock.class, LLUtils::onDiscard);
 	}
 
+	/**
+	 * Record a hit when the cache returns its first block, and a miss when it returns nothing
+	 */
+	private Flux<DataBlock> measuredCacheLookup(URLsDiskHandler cache, Flux<DataBlock> lookup) {
+		return Flux.defer(() -> {
+			var hit = new AtomicBoolean();
+			return lookup
+					.doOnNext(dataBlock -> {
+						if (hit.compareAndSet(false, true)) {
+							metrics.recordCacheLookup(cache, true);
+						}
+						metrics.recordBytesFromCache(dataBlock.getLength());
+					})
+					.doOnComplete(() -> {
+						if (!hit.get()) {
+							metrics.recordCacheLookup(cache, false);
+						}
+					});
+		});
+	}
+
+	/**
+	 * Serve the blocks that a cache has already downloaded, and download only the missing ones.
+	 * The result is empty if no cache has downloaded some of the blocks of the range
+	 * @param offset must be aligned to the block size
+	 * @param length must be aligned to the block size, or -1
+	 */
+	private Flux<DataBlock> fillCacheGaps(URL url, long offset, long length) {
+		return Flux
+				.defer(() -> Flux.fromIterable(this.cacheAccess))
+				.concatMap(cache -> cache
+						.requestDiskMetadata(url)
+						.mapNotNull(diskMetadata -> createGapsFillingRequest(url, cache, diskMetadata, offset, length)))
+				.next()
+				.flatMapMany(request -> request);
+	}
+
+	private @Nullable Flux<DataBlock> createGapsFillingRequest(URL url,
+			URLsDiskHandler cache,
+			DiskMetadata diskMetadata,
+			long offset,
+			long length) {
+		// Files with an unknown size must be downloaded again
+		if (diskMetadata.size() == -1 || diskMetadata.isDownloadedFully()) {
+			return null;
+		}
+		int blocksCount = diskMetadata.blocksCount();
+		// The blocks of the cache can be of a different size than the range alignment
+		int blockSize = diskMetadata.blockSize();
+		int fromBlock = toIntExact(Math.min(offset / blockSize, blocksCount));
+		int toBlock;
+		if (length == -1) {
+			toBlock = blocksCount;
+		} else {
+			toBlock = toIntExact(Math.min((FileSpongeUtils.getRangeEnd(offset, length) - 1) / blockSize + 1, blocksCount));
+		}
+		List<Flux<DataBlock>> parts = new ArrayList<>();
+		int missingBlocks = 0;
+		int runStart = fromBlock;
+		while (runStart < toBlock) {
+			boolean downloaded = diskMetadata.isDownloadedBlock(runStart);
+			int runEnd = runStart + 1;
+			while (runEnd < toBlock && diskMetadata.isDownloadedBlock(runEnd) == downloaded) {
+				runEnd++;
+			}
+			long runOffset = diskMetadata.getBlockOffset(runStart);
+			long runLength = (runEnd - runStart) * (long) blockSize;
+			if (downloaded) {
+				// Download the blocks again if they have been removed in the meantime
+				parts.add(measuredCacheLookup(cache, cache.requestContent(url, runOffset, runLength))
+						.switchIfEmpty(downloadContent(url, runOffset, runLength)));
+			} else {
+				missingBlocks += runEnd - runStart;
+				parts.add(downloadContent(url, runOffset, runLength));
+			}
+			runStart = runEnd;
+		}
+		// Download everything with a single request if no block is cached
+		if (missingBlocks == toBlock - fromBlock) {
+			return null;
+		}
+		logger.debug("File \"{}\" content is partially cached, {} missing blocks will be downloaded", url, missingBlocks);
+		return Flux.concat(parts);
+	}
+
+	/**
+	 * Download the content from the sources and write it into the caches
+	 * @param offset must be aligned to the block size
+	 * @param length must be aligned to the block size, or -1
+	 */
+	private Flux<DataBlock> downloadContent(URL url, long offset, long length) {
+		return singleFlight(inFlightContent,
+				new ContentRange(url, offset, length),
+				() -> requestContentFromSources(url, offset, length),
+				REPLAYED_CONTENT_BLOCKS,
+				replayedBlocks -> joinDownload(url, offset, replayedBlocks),
+				() -> rereadContent(url, offset, length),
+				// Serve the downloaded blocks from the download until they have been written into the caches
+				cacheWriteQueue::flush
+		);
+	}
+
+	/**
+	 * Serve a download to a request that joins it late.
+	 * The replayed blocks are buffered without slowing down the download, and the blocks that have been emitted
+	 * before them, or that don't fit in the buffer, are read again from the caches
+	 * @param offset must be aligned to the block size
+	 */
+	private Flux<DataBlock> joinDownload(URL url, long offset, Flux<DataBlock> replayedBlocks) {
+		return Flux.defer(() -> {
+			long[] nextOffset = {offset};
+			var droppedEnd = new AtomicLong(offset);
+			return replayedBlocks
+					.onBackpressureBuffer(REPLAYED_CONTENT_BLOCKS,
+							dropped -> droppedEnd.accumulateAndGet(dropped.getOffset() + dropped.getLength(), Math::max),
+							BufferOverflowStrategy.DROP_LATEST
+					)
+					.concatMap(dataBlock -> {
+						long missingOffset = nextOffset[0];
+						nextOffset[0] = Math.max(missingOffset, dataBlock.getOffset() + dataBlock.getLength());
+						if (dataBlock.getOffset() <= missingOffset) {
+							return Flux.just(dataBlock);
+						}
+						return rereadContent(url, missingOffset, dataBlock.getOffset() - missingOffset)
+								.concatWith(Flux.just(dataBlock));
+					})
+					.concatWith(Flux.defer(() -> {
+						// The last blocks have been dropped
+						long missingOffset = nextOffset[0];
+						long missingEnd = droppedEnd.get();
+						return missingEnd > missingOffset ? rereadContent(url, missingOffset, missingEnd - missingOffset) : Flux.empty();
+					}));
+		});
+	}
+
+	/**
+	 * Read again the blocks of a download from the caches, once the pending cache writes have been executed.
+	 * The blocks that are not in the caches are downloaded again
+	 * @param offset must be aligned to the block size
+	 * @param length must be aligned to the block size, or -1
+	 */
+	private Flux<DataBlock> rereadContent(URL url, long offset, long length) {
+		return cacheWriteQueue
+				.flush()
+				.thenMany(Flux.defer(() -> {
+					var ca = this.cacheAccess;
+					List<Flux<DataBlock>> contentRequests = new ArrayList<>(ca.size());
+					for (URLsDiskHandler urlsHandler : ca) {
+						contentRequests.add(measuredCacheLookup(urlsHandler, urlsHandler.requestContent(url, offset, length)));
+					}
+					return FileSpongeUtils.firstWithValueFlux(contentRequests);
+				}))
+				// Don't join the download again, it has already emitted these blocks
+				.switchIfEmpty(fillCacheGaps(url, offset, length)
+						.switchIfEmpty(Flux.defer(() -> requestContentFromSources(url, offset, length))));
+	}
+
+	private Flux<DataBlock> requestContentFromSources(URL url, long offset, long length) {
+		boolean fullContent = offset == 0 && length == -1;
+		return requestCachedDiskMetadata(url)
+				.mapNotNull(diskMetadata -> createSwarmRequest(url, diskMetadata.size(), diskMetadata.blockSize(), offset, length))
+				.flatMapMany(request -> request)
+				.switchIfEmpty(hedgedRequest(urlsHandler -> {
+					if (fullContent) {
+						return urlsHandler.requestContent(url);
+					} else {
+						return urlsHandler.requestContent(url, offset, length);
+					}
+				}))
+				.doOnSubscribe(s -> {
+					if (fullContent) {
+						logger.debug("Downloading file \"{}\" content", url);
+					} else {
+						logger.debug("Downloading file \"{}\" content range {}+{}", url, offset, length);
+					}
+				})
+				.doOnNext(dataBlock -> metrics.recordBytesFromSources(dataBlock.getLength()))
+				// Only the blocks of the sources that won are cached, in the background
+				.concatMap(dataBlock -> cacheWriteQueue.submit(url, writeContentBlock(url, dataBlock)).thenReturn(dataBlock))
+				.doOnComplete(() -> logger.debug("Downloaded file \"{}\" content", url));
+	}
+
+	private Mono<Void> writeContentBlock(URL url, DataBlock dataBlock) {
+		return Mono.defer(() -> {
+			var cw = this.cacheWrite;
+			List<Mono<Void>> cacheWriteActions = new ArrayList<>(cw.size());
+			for (URLsWriter urlsWriter : cw) {
+				cacheWriteActions.add(Mono.defer(() -> {
+					long startTime = System.nanoTime();
+					return urlsWriter
+							.writeContentBlock(url, dataBlock, false)
+							.doOnSuccess(v -> metrics.recordBlockWrite(urlsWriter, System.nanoTime() - startTime));
+				}));
+			}
+			return Mono.whenDelayError(cacheWriteActions);
+		});
+	}
+
+	/**
+	 * @return completes when all the downloaded blocks have been written into the caches
+	 */
+	public Mono<Void> flushCacheWrites() {
+		return cacheWriteQueue.flush();
+	}
+
+	public CacheWriteStats getCacheWriteStats() {
+		return cacheWriteQueue.getStats();
+	}
+
+	/**
+	 * Download the blocks of a file with a known size from all the sources that support range requests,
+	 * one block per request, in parallel. Each block is assigned to the source that is expected to finish first,
+	 * and a block that is late on a slow source is taken over by the next sources after its hedge delay.
+	 * The blocks are reassembled in order
+	 * @param blockSize size of the blocks of the file in the cache, each request downloads one of them
+	 * @param length length of the range, or -1
+	 * @return null if the content can't be split between more than one source
+	 */
+	private @Nullable Flux<DataBlock> createSwarmRequest(URL url, long size, int blockSize, long offset, long length) {
+		if (size == -1) {
+			return null;
+		}
+		long end = Math.min(FileSpongeUtils.getRangeEnd(offset, length), size);
+		if (end - offset <= blockSize) {
+			return null;
+		}
+		var sources = new ArrayList<URLsHandler>();
+		for (URLsHandler source : this.urlsHandlers) {
+			if (source.supportsRangeRequests() && getSourceHealth(source).circuitBreaker().isAvailable()) {
+				sources.add(source);
+			}
+		}
+		if (sources.size() < 2) {
+			return null;
+		}
+		long firstBlock = offset / blockSize;
+		int blocksCount = toIntExact((end + blockSize - 1) / blockSize - firstBlock);
+		// Block requests that have been assigned to each source and are not finished yet
+		int[] assignedRequests = new int[sources.size()];
+		logger.debug("Downloading file \"{}\" {} blocks from {} sources", url, blocksCount, sources.size());
+		return Flux
+				.range(0, blocksCount)
+				.flatMapSequential(i -> {
+					long blockStart = (firstBlock + i) * blockSize;
+					long blockOffset = Math.max(offset, blockStart);
+					long blockLength = Math.min(blockStart + blockSize, end) - blockOffset;
+					return Mono.defer(() -> {
+						int sourceIndex = assignSwarmSource(sources, assignedRequests);
+						// The latency of the first value is measured, like the other requests, not the time to download the block
+						return hedgedRequest(sources,
+								sources.get(sourceIndex),
+								source -> source.requestContent(url, blockOffset, blockLength),
+								blocks -> blocks
+										.collectList()
+										// A source that doesn't have the block must not win over the others
+										.filter(dataBlocks -> !dataBlocks.isEmpty())
+										.flux()
+						)
+								.next()
+								.switchIfEmpty(Mono.error(() -> new IllegalStateException("File \"" + url
+										+ "\" block at offset " + blockOffset + " has not been found in any source")))
+								.doFinally(signal -> {
+									synchronized (assignedRequests) {
+										assignedRequests[sourceIndex]--;
+									}
+								});
+					});
+				}, sources.size() * SWARM_REQUESTS_PER_SOURCE, 1)
+				.flatMapIterable(dataBlocks -> dataBlocks);
+	}
+
+	/**
+	 * @return the index of the available source that is expected to finish a new request first,
+	 * based on its latency and on the requests that are already assigned to it
+	 */
+	private int assignSwarmSource(List<URLsHandler> sources, int[] assignedRequests) {
+		synchronized (assignedRequests) {
+			int bestIndex = 0;
+			double bestCost = Double.POSITIVE_INFINITY;
+			for (int i = 0; i < sources.size(); i++) {
+				var health = getSourceHealth(sources.get(i));
+				if (!health.circuitBreaker().isAvailable()) {
+					continue;
+				}
+				double latency = health.stats().getScore();
+				if (latency == 0) {
+					// The source has never been measured, expect it to be slow
+					latency = DEFAULT_HEDGE_DELAY.toNanos();
+				}
+				double cost = (assignedRequests[i] + 1) * latency;
+				if (cost < bestCost) {
+					bestIndex = i;
+					bestCost = cost;
+				}
+			}
+			assignedRequests[bestIndex]++;
+			return bestIndex;
+		}
+	}
+
+	/**
+	 * Request from the best ranked source first, and start the next source only if the previous one
+	 * has not returned a value within its usual latency, or if it has failed.
+	 * The first source that returns a value wins, and the other sources are cancelled
+	 */
+	private <T> Flux<T> hedgedRequest(Function<URLsHandler, Flux<T>> request) {
+		return Flux.defer(() -> hedgedRequest(this.urlsHandlers, null, request, Function.identity()));
+	}
+
+	/**
+	 * @param candidates sources that can be requested
+	 * @param preferredSource source to request first, if it's available, regardless of its rank
+	 * @param collect transforms the values of each source after the latency of its first value has been measured
+	 */
+	private <T, R> Flux<R> hedgedRequest(Collection<URLsHandler> candidates,
+			@Nullable URLsHandler preferredSource,
+			Function<URLsHandler, Flux<T>> request,
+			Function<Flux<T>, Flux<R>> collect) {
+		return Flux.defer(() -> {
+			var sources = new ArrayList<URLsHandler>(candidates.size());
+			for (URLsHandler source : candidates) {
+				// Skip the sources with an open circuit
+				if (getSourceHealth(source).circuitBreaker().isAvailable()) {
+					sources.add(source);
+				}
+			}
+			if (sources.isEmpty() && !candidates.isEmpty()) {
+				return Flux.error(new IllegalStateException("All the sources are unavailable"));
+			}
+			// The scores change while sorting, and each of them sorts the latency samples, so they are read once
+			Map<URLsHandler, Double> scores = new HashMap<>(sources.size());
+			for (URLsHandler source : sources) {
+				scores.put(source, getSourceHealth(source).stats().getScore());
+			}
+			sources.sort(Comparator.comparingDouble(scores::get));
+			if (preferredSource != null && sources.remove(preferredSource)) {
+				sources.add(0, preferredSource);
+			}
+			List<Flux<R>> attempts = new ArrayList<>(sources.size());
+			Mono<Void> previousAttemptFailedOrSlow = Mono.empty();
+			for (URLsHandler source : sources) {
+				var health = getSourceHealth(source);
+				Sinks.Empty<Void> started = Sinks.empty();
+				Sinks.Empty<Void> failed = Sinks.empty();
+				var hedged = new AtomicBoolean();
+				var hedgeDelay = getHedgeDelay(health.stats());
+				var firstValueTimeout = hedgeDelay.multipliedBy(FIRST_VALUE_TIMEOUT_HEDGE_DELAYS);
+				attempts.add(collect
+						.apply(measuredRequest(source, health, () -> request.apply(source), hedged, firstValueTimeout, started, failed))
+						.delaySubscription(previousAttemptFailedOrSlow));
+				previousAttemptFailedOrSlow = Mono.firstWithSignal(
+						started.asMono().then(Mono.delay(hedgeDelay)).doOnNext(tick -> hedged.set(true)).then(),
+						failed.asMono()
+				);
+			}
+			return FileSpongeUtils.firstWithValueFlux(attempts);
+		});
+	}
+
+	/**
+	 * Record the latency of the first value of the request, and its failures.
+	 * If the request is cancelled after the next source has been started because it was slow,
+	 * the time waited is recorded as its latency, so that a source that doesn't answer is ranked last,
+	 * and it counts as a timeout for the circuit breaker.
+	 * The request fails if it doesn't return a value before the timeout.
+	 * The errors of the sources that don't have the content are not failures
+	 * @param hedged true after the next source has been started because this request was slow
+	 * @param firstValueTimeout max time to wait for the first value
+	 * @param started completed when the request is subscribed
+	 * @param failed completed when the request fails, when it terminates without values, or when it's skipped
+	 */
+	private <T> Flux<T> measuredRequest(URLsHandler source,
+			SourceHealth health,
+			Supplier<Flux<T>> request,
+			AtomicBoolean hedged,
+			Duration firstValueTimeout,
+			Sinks.Empty<Void> started,
+			Sinks.Empty<Void> failed) {
+		var stats = health.stats();
+		var circuitBreaker = health.circuitBreaker();
+		return Flux.defer(() -> {
+			if (!circuitBreaker.tryAcquire()) {
+				// The circuit has been opened in the meantime
+				failed.tryEmitEmpty();
+				return Flux.empty();
+			}
+			started.tryEmitEmpty();
+			long startTime = System.nanoTime();
+			var hasValue = new AtomicBoolean();
+			// The circuit breaker receives only the first outcome of the request
+			var outcomeRecorded = new AtomicBoolean();
+			return request
+					.get()
+					// The timeout is not recorded as a latency, otherwise each timeout would make the next one longer
+					.timeout(Mono.delay(firstValueTimeout), value -> Mono.never())
+					.doOnNext(value -> {
+						if (hasValue.compareAndSet(false, true)) {
+							long latency = System.nanoTime() - startTime;
+							stats.recordSuccess(latency);
+							metrics.recordSourceLatency(source, latency);
+						}
+						if (outcomeRecorded.compareAndSet(false, true)) {
+							circuitBreaker.onSuccess();
+						}
+					})
+					.doOnCancel(() -> {
+						long waitedTime = System.nanoTime() - startTime;
+						if (!hasValue.get() && hedged.get()) {
+							stats.recordAbandoned(waitedTime);
+							if (outcomeRecorded.compareAndSet(false, true)) {
+								circuitBreaker.onFailure();
+							}
+						} else if (outcomeRecorded.compareAndSet(false, true)) {
+							circuitBreaker.onCancel();
+						}
+					})
+					.doOnError(ex -> {
+						if (ex instanceof NoSuchElementException) {
+							// The source has answered that it doesn't have the content
+							if (outcomeRecorded.compareAndSet(false, true)) {
+								circuitBreaker.onSuccess();
+							}
+						} else {
+							stats.recordFailure();
+							metrics.recordSourceError(source);
+							if (outcomeRecorded.compareAndSet(false, true)) {
+								circuitBreaker.onFailure();
+							}
+						}
+						// The values that have been emitted before the error may not be usable
+						failed.tryEmitEmpty();
+					})
+					.doOnComplete(() -> {
+						if (outcomeRecorded.compareAndSet(false, true)) {
+							circuitBreaker.onSuccess();
+						}
+						if (!hasValue.get()) {
+							failed.tryEmitEmpty();
+						}
+					});
+		});
+	}
+
+	/**
+	 * @return the time to wait for the source before starting the next one
+	 */
+	private static Duration getHedgeDelay(SourceStats stats) {
+		var latency = stats.getLatency(HEDGE_LATENCY_PERCENTILE);
+		if (latency == null) {
+			return DEFAULT_HEDGE_DELAY;
+		}
+		if (latency.compareTo(MIN_HEDGE_DELAY) < 0) {
+			return MIN_HEDGE_DELAY;
+		}
+		if (latency.compareTo(MAX_HEDGE_DELAY) > 0) {
+			return MAX_HEDGE_DELAY;
+		}
+		return latency;
+	}
+
+	private SourceHealth getSourceHealth(URLsHandler source) {
+		return sourceHealth.computeIfAbsent(source, s -> new SourceHealth(new SourceStats(),
+				new CircuitBreaker(CIRCUIT_CONSECUTIVE_FAILURES, MIN_CIRCUIT_COOL_DOWN, MAX_CIRCUIT_COOL_DOWN)
+		));
+	}
+
+	public Mono<Long> transferTo(URL url, WritableByteChannel channel) {
+		return transferTo(url, 0, -1, channel);
+	}
+
+	/**
+	 * Write the content between offset (inclusive) and offset + length (exclusive) into the channel,
+	 * directly from the first cache that has the whole range, otherwise from the sources.
+	 * The caches are tried one at a time, so that only one of them writes into the channel
+	 * @param length length of the range, -1 to read until the end of the file
+	 * @param channel blocking channel, the non-blocking channels are rejected
+	 * @return the count of the written bytes, or empty if the content has not been found anywhere
+	 */
+	public Mono<Long> transferTo(URL url, long offset, long length, WritableByteChannel channel) {
+		FileSpongeUtils.checkRange(offset, length);
+		FileSpongeUtils.checkBlocking(channel);
+		return Flux
+				.defer(() -> Flux.fromIterable(this.cacheAccess))
+				.concatMap(cache -> cache
+						.transferTo(url, offset, length, channel)
+						.doOnNext(writtenBytes -> {
+							// The misses are recorded by the content request that follows
+							metrics.recordCacheLookup(cache, true);
+							metrics.recordBytesFromCache(writtenBytes);
+						}))
+				.next()
+				.doOnNext(writtenBytes -> logger.debug("File \"{}\" content has been transferred from the cache", url))
+				.switchIfEmpty(Mono.defer(() -> FileSpongeUtils.writeTo(requestContent(url, offset, length), channel)));
+	}
+
 	public Mono<Metadata> requestCachedMetadata(URL url) {
 		return Mono
 				.fromCallable(() -> {
@@ -148,37 +764,99 @@ public class FileSponge implements URLsHandlerCached {
 				});
 	}
 
+	private Mono<DiskMetadata> requestCachedDiskMetadata(URL url) {
+		return Mono
+				.fromCallable(() -> {
+					var ca = this.cacheAccess;
+					List<Mono<DiskMetadata>> metadataRequests = new ArrayList<>(ca.size());
+					for (URLsDiskHandler urlsHandler : ca) {
+						metadataRequests.add(urlsHandler.requestDiskMetadata(url));
+					}
+					return metadataRequests;
+				})
+				.flatMap(FileSpongeUtils::firstWithValueMono);
+	}
+
 	@Override
 	public Mono<Metadata> requestMetadata(URL url) {
 		return requestCachedMetadata(url)
-				.switchIfEmpty(Mono
-						.fromCallable(() -> {
-							logger.debug("Downloading file \"{}\" metadata", url);
-							var uh = this.urlsHandlers;
-							List<Mono<Metadata>> metadataRequestsAndCaching = new ArrayList<>(uh.size());
-							for (URLsHandler urlsHandler : uh) {
-								metadataRequestsAndCaching.add(urlsHandler
-										.requestMetadata(url)
-										.flatMap(meta -> {
-											var cw = this.cacheWrite;
-											List<Mono<Void>> cacheWriteActions = new ArrayList<>(cw.size());
-											for (URLsWriter urlsWriter : cw) {
-												cacheWriteActions.add(urlsWriter.writeMetadata(url, meta, false));
-											}
-											return Mono.whenDelayError(cacheWriteActions).thenReturn(meta);
-										})
-								);
-							}
-							return metadataRequestsAndCaching;
-						})
-						.flatMap(FileSpongeUtils::firstWithValueMono)
-						.doOnSuccess(s -> {
-							if (s != null) {
-								logger.debug("Downloaded file \"{}\" metadata", url);
-							} else {
-								logger.debug("File \"{}\" metadata has not been found anywhere", url);
+				.switchIfEmpty(singleFlight(inFlightMetadata,
+						url,
+						() -> downloadMetadata(url).flux(),
+						1,
+						replayedMetadata -> replayedMetadata,
+						// The metadata is written into the caches before it's emitted
+						() -> requestCachedMetadata(url).flux(),
+						Mono::empty
+				).singleOrEmpty());
+	}
+
+	private Mono<Metadata> downloadMetadata(URL url) {
+		return hedgedRequest(urlsHandler -> urlsHandler.requestMetadata(url).flux())
+				.next()
+				.doOnSubscribe(s -> logger.debug("Downloading file \"{}\" metadata", url))
+				.flatMap(meta -> {
+					var cw = this.cacheWrite;
+					List<Mono<Void>> cacheWriteActions = new ArrayList<>(cw.size());
+					for (URLsWriter urlsWriter : cw) {
+						cacheWriteActions.add(urlsWriter.writeMetadata(url, meta, false));
+					}
+					return Mono.whenDelayError(cacheWriteActions).thenReturn(meta);
+				})
+				.doOnSuccess(s -> {
+					if (s != null) {
+						logger.debug("Downloaded file \"{}\" metadata", url);
+					} else {
+						logger.debug("File \"{}\" metadata has not been found anywhere", url);
+					}
+				});
+	}
+
+	/**
+	 * Share a single upstream request between all the concurrent identical requests.
+	 * Only the last elements are replayed to the subscribers that join late, through {@code join}.
+	 * The request is removed from the in-flight registry as soon as it fails or gets cancelled.
+	 * When it completes, its elements are read again with {@code reread} until the result has settled
+	 * @param replayedValues count of the last elements that are kept in memory
+	 * @param join serves the replayed elements to a subscriber that joins late, it must not slow them down
+	 * @param reread reads all the elements again, after the request has completed
+	 * @param settled completes when the result of a completed request is available elsewhere
+	 */
+	private static <K, T> Flux<T> singleFlight(ConcurrentHashMap<K, Flux<T>> inFlight,
+			K requestKey,
+			Supplier<Flux<T>> request,
+			int replayedValues,
+			UnaryOperator<Flux<T>> join,
+			Supplier<Flux<T>> reread,
+			Supplier<Mono<Void>> settled) {
+		return Flux.defer(() -> {
+			var started = new AtomicReference<Flux<T>>();
+			var joined = inFlight.computeIfAbsent(requestKey, key -> {
+				var shared = new AtomicReference<Flux<T>>();
+				// Unregister before the terminal signal reaches the subscribers
+				Runnable unregister = () -> inFlight.remove(key, shared.get());
+				var replayed = request
+						.get()
+						.doOnError(ex -> unregister.run())
+						.doOnCancel(unregister)
+						.doOnComplete(() -> {
+							var completed = Flux.defer(reread);
+							if (inFlight.replace(key, shared.get(), completed)) {
+								settled.get().doFinally(signal -> inFlight.remove(key, completed)).subscribe();
 							}
 						})
-				);
+						.replay(replayedValues)
+						.refCount();
+				// The subscriber that starts the request sets its pace, the others join it without slowing it down
+				started.set(replayed);
+				shared.set(join.apply(replayed));
+				return shared.get();
+			});
+			return started.get() != null ? started.get() : joined;
+		});
 	}
+
+	private record ContentRange(URL url, long offset, long length) {}
+
+	private record SourceHealth(SourceStats stats, CircuitBreaker circuitBreaker) {}
 }
@@ -0,0 +1,81 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+/**
+ * Receives the measurements of {@link FileSponge} and of the disk caches.
+ * Every method does nothing by default. The methods are called on the hot paths,
+ * from any thread, so they must be cheap and thread-safe
+ */
+public interface FileSpongeMetrics {
+
+	FileSpongeMetrics NONE = new FileSpongeMetrics() {};
+
+	/**
+	 * A cache has been looked up for some content
+	 * @param hit true if the cache had the content
+	 */
+	default void recordCacheLookup(URLsDiskHandler cache, boolean hit) {}
+
+	/**
+	 * A block has been written into a cache
+	 */
+	default void recordBlockWrite(URLsWriter cache, long latencyNanos) {}
+
+	/**
+	 * The blocks written concurrently into a disk cache have been committed together
+	 * @param batchSize count of the committed blocks
+	 * @param latencyNanos time spent committing the batch
+	 */
+	default void recordBlockWritesBatch(URLsWriter cache, int batchSize, long latencyNanos) {}
+
+	/**
+	 * The alias chain of a url has been resolved from the disk, without the help of the alias cache
+	 * @param depth count of aliases that have been followed
+	 */
+	default void recordAliasResolution(URLsDiskHandler cache, int depth) {}
+
+	/**
+	 * A source has returned the first value of a request
+	 * @param latencyNanos time between the request and its first value
+	 */
+	default void recordSourceLatency(URLsHandler source, long latencyNanos) {}
+
+	/**
+	 * A request to a source has failed
+	 */
+	default void recordSourceError(URLsHandler source) {}
+
+	/**
+	 * Bytes that have been served from the caches
+	 */
+	default void recordBytesFromCache(long bytes) {}
+
+	/**
+	 * Bytes that have been downloaded from the sources
+	 */
+	default void recordBytesFromSources(long bytes) {}
+
+	/**
+	 * A content request has started, it's followed by {@link #recordRequestFinished()}
+	 */
+	default void recordRequestStarted() {}
+
+	default void recordRequestFinished() {}
+}
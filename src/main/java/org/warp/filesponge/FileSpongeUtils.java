@@ -18,7 +18,12 @@
 
 package org.warp.filesponge;
 
+import it.cavallium.buffer.Buf;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Duration;
@@ -28,6 +33,7 @@ import java.util.NoSuchElementException;
 import java.util.concurrent.TimeUnit;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.jetbrains.annotations.Nullable;
 import reactor.core.Exceptions;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
@@ -65,6 +71,102 @@ public class FileSpongeUtils {
 		}
 	}
 
+	/**
+	 * @param length length of the range, -1 to read until the end of the file
+	 */
+	public static void checkRange(long offset, long length) {
+		if (offset < 0) {
+			throw new IllegalArgumentException("Offset must be positive: " + offset);
+		}
+		if (length < -1) {
+			throw new IllegalArgumentException("Length must be positive or -1: " + length);
+		}
+	}
+
+	/**
+	 * @return the end offset of the range (exclusive), {@link Long#MAX_VALUE} if the range reaches the end of any file
+	 */
+	public static long getRangeEnd(long offset, long length) {
+		if (length == -1) {
+			return Long.MAX_VALUE;
+		}
+		// A range longer than any file reads until the end
+		long end = offset + length;
+		return end < offset ? Long.MAX_VALUE : end;
+	}
+
+	/**
+	 * Keep only the parts of the ordered data blocks that are inside the range
+	 */
+	public static Flux<DataBlock> trimToRange(Flux<DataBlock> dataBlocks, long offset, long length) {
+		long end = getRangeEnd(offset, length);
+		return dataBlocks
+				// Stop reading as soon as the range has been passed
+				.takeWhile(dataBlock -> dataBlock.getOffset() < end)
+				.mapNotNull(dataBlock -> trimToRange(dataBlock, offset, end));
+	}
+
+	/**
+	 * @param end end offset of the range (exclusive)
+	 * @return the part of the data block inside the range, or null if the block is outside the range
+	 */
+	public static @Nullable DataBlock trimToRange(DataBlock dataBlock, long offset, long end) {
+		long blockStart = dataBlock.getOffset();
+		long blockEnd = blockStart + dataBlock.getLength();
+		if (blockEnd <= offset || blockStart >= end) {
+			return null;
+		}
+		long from = Math.max(offset, blockStart);
+		long to = Math.min(end, blockEnd);
+		if (from == blockStart && to == blockEnd) {
+			return dataBlock;
+		}
+		var data = dataBlock.getData().subList((int) (from - blockStart), (int) (to - blockStart));
+		return DataBlock.of(from, (int) (to - from), data);
+	}
+
+	/**
+	 * Write the data blocks into the channel, in order
+	 * @param channel blocking channel
+	 * @return the count of the written bytes, or empty if there are no data blocks
+	 */
+	public static Mono<Long> writeTo(Flux<DataBlock> dataBlocks, WritableByteChannel channel) {
+		checkBlocking(channel);
+		return dataBlocks
+				.publishOn(Schedulers.boundedElastic())
+				.map(dataBlock -> {
+					writeFully(channel, dataBlock.getData());
+					return (long) dataBlock.getLength();
+				})
+				.reduce(Long::sum);
+	}
+
+	/**
+	 * Write the data into the channel without copying it
+	 * @param channel blocking channel
+	 */
+	public static void writeFully(WritableByteChannel channel, Buf data) {
+		checkBlocking(channel);
+		var buffer = ByteBuffer.wrap(data.getBackingByteArray(), data.getBackingByteArrayOffset(), data.size());
+		try {
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * A non-blocking channel can accept no bytes, so the writes would spin until it's ready
+	 * @throws IllegalArgumentException if the channel is in non-blocking mode
+	 */
+	public static void checkBlocking(WritableByteChannel channel) {
+		if (channel instanceof SelectableChannel selectableChannel && !selectableChannel.isBlocking()) {
+			throw new IllegalArgumentException("Non-blocking channels are not supported");
+		}
+	}
+
 	public static Mono<Path> deleteFileAfter(Path path, Duration delay) {
 		return Mono.fromCallable(() -> {
 			Schedulers.boundedElastic().schedule(() -> {
@@ -0,0 +1,94 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+/**
+ * Approximate access frequency of the keys, with 4-bit counters in a count-min sketch.
+ * The counters are halved periodically, so that the keys that are no longer accessed become cold.
+ * It's not thread safe
+ */
+class FrequencySketch {
+
+	private static final int ROWS = 4;
+	private static final int MAX_FREQUENCY = 15;
+	private static final int[] SEEDS = {0x97cb3127, 0x5b2d4c33, 0xc13c5a3b, 0x3d4f8e65};
+
+	private final byte[][] counters;
+	private final int mask;
+	private final int sampleSize;
+	private int additions;
+
+	/**
+	 * @param expectedKeys count of the keys that are tracked at the same time
+	 */
+	public FrequencySketch(int expectedKeys) {
+		int width = Integer.highestOneBit(Math.max(16, Math.min(expectedKeys, 1 << 24)) * 2 - 1);
+		this.counters = new byte[ROWS][width];
+		this.mask = width - 1;
+		this.sampleSize = width * 10;
+	}
+
+	public void increment(Object key) {
+		int hash = spread(key.hashCode());
+		boolean incremented = false;
+		for (int row = 0; row < ROWS; row++) {
+			int index = index(hash, row);
+			if (counters[row][index] < MAX_FREQUENCY) {
+				counters[row][index]++;
+				incremented = true;
+			}
+		}
+		if (incremented && ++additions >= sampleSize) {
+			reset();
+		}
+	}
+
+	public int frequency(Object key) {
+		int hash = spread(key.hashCode());
+		int frequency = MAX_FREQUENCY;
+		for (int row = 0; row < ROWS; row++) {
+			frequency = Math.min(frequency, counters[row][index(hash, row)]);
+		}
+		return frequency;
+	}
+
+	/**
+	 * Halve all the counters
+	 */
+	private void reset() {
+		for (byte[] row : counters) {
+			for (int i = 0; i < row.length; i++) {
+				row[i] = (byte) (row[i] >>> 1);
+			}
+		}
+		additions /= 2;
+	}
+
+	private int index(int hash, int row) {
+		int h = (hash ^ SEEDS[row]) * 0x9e3779b9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private static int spread(int hash) {
+		hash ^= hash >>> 17;
+		hash *= 0xed5ad4bb;
+		hash ^= hash >>> 11;
+		return hash;
+	}
+}
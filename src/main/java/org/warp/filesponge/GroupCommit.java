@@ -0,0 +1,136 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Groups the writes of concurrent threads into batches.
+ * The first waiting thread commits all the queued writes with a single batch,
+ * while the other threads wait until their write has been committed
+ */
+class GroupCommit<T> {
+
+	private final int maxBatchSize;
+	private final Function<List<T>, Map<Integer, RuntimeException>> batchCommitter;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition batchCommitted = lock.newCondition();
+	private List<PendingWrite<T>> queue = new ArrayList<>();
+	private boolean committing;
+
+	/**
+	 * @param batchCommitter commits the batch, and returns the errors of the elements that have not been committed,
+	 *                       by their index in the batch. If it throws, no element of the batch has been committed
+	 */
+	public GroupCommit(int maxBatchSize, Function<List<T>, Map<Integer, RuntimeException>> batchCommitter) {
+		if (maxBatchSize <= 0) {
+			throw new IllegalArgumentException("Max batch size must be positive: " + maxBatchSize);
+		}
+		this.maxBatchSize = maxBatchSize;
+		this.batchCommitter = batchCommitter;
+	}
+
+	/**
+	 * Wait until the element has been committed
+	 */
+	public void write(T element) {
+		var write = new PendingWrite<>(element, new CompletableFuture<Void>());
+		lock.lock();
+		try {
+			queue.add(write);
+		} finally {
+			lock.unlock();
+		}
+		while (!write.committed().isDone()) {
+			List<PendingWrite<T>> batch = null;
+			lock.lock();
+			try {
+				if (!committing && !queue.isEmpty()) {
+					committing = true;
+					batch = takeBatch();
+				} else if (!write.committed().isDone()) {
+					batchCommitted.awaitUninterruptibly();
+				}
+			} finally {
+				lock.unlock();
+			}
+			if (batch != null) {
+				commit(batch);
+			}
+		}
+		try {
+			write.committed().join();
+		} catch (CompletionException ex) {
+			if (ex.getCause() instanceof RuntimeException runtimeException) {
+				throw runtimeException;
+			}
+			throw ex;
+		}
+	}
+
+	private List<PendingWrite<T>> takeBatch() {
+		if (queue.size() <= maxBatchSize) {
+			var batch = queue;
+			queue = new ArrayList<>();
+			return batch;
+		}
+		var batch = new ArrayList<>(queue.subList(0, maxBatchSize));
+		queue = new ArrayList<>(queue.subList(maxBatchSize, queue.size()));
+		return batch;
+	}
+
+	private void commit(List<PendingWrite<T>> batch) {
+		try {
+			List<T> elements = new ArrayList<>(batch.size());
+			for (PendingWrite<T> write : batch) {
+				elements.add(write.element());
+			}
+			var failures = batchCommitter.apply(elements);
+			for (int i = 0; i < batch.size(); i++) {
+				var failure = failures.get(i);
+				if (failure != null) {
+					batch.get(i).committed().completeExceptionally(failure);
+				} else {
+					batch.get(i).committed().complete(null);
+				}
+			}
+		} catch (Throwable ex) {
+			for (PendingWrite<T> write : batch) {
+				write.committed().completeExceptionally(ex);
+			}
+		} finally {
+			lock.lock();
+			try {
+				committing = false;
+				batchCommitted.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+	}
+
+	private record PendingWrite<T>(T element, CompletableFuture<Void> committed) {}
+}
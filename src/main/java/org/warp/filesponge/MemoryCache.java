@@ -0,0 +1,425 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import static java.lang.Math.toIntExact;
+
+import it.cavallium.buffer.Buf;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import org.jetbrains.annotations.Nullable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Cache that keeps the hot blocks in memory, bounded by their total size.
+ * It can be registered alone with {@link FileSponge#registerCache}, or in front of a {@link DiskCache}:
+ * in that case every file is written to the disk too, the blocks read from the disk are kept in memory,
+ * and the files removed from the disk are removed from memory.
+ * <p>
+ * The least recently used blocks are evicted first, but a new block doesn't evict blocks that have been accessed
+ * more frequently than itself, so reading a large file once doesn't flush the hot blocks.
+ * A large cache is split in shards by url, each with its own lock and its own share of the max size.
+ * Hits are served directly from the calling thread, without disk reads or copies
+ */
+public class MemoryCache implements URLsDiskHandler, URLsWriter {
+
+	/**
+	 * Memory used by the bookkeeping of each file and of each block
+	 */
+	private static final int ENTRY_OVERHEAD = 128;
+	/**
+	 * Expected average size of the blocks, used to size the frequency sketch
+	 */
+	private static final int EXPECTED_BLOCK_SIZE = 64 * 1024;
+	private static final int MAX_SHARDS = 16;
+	/**
+	 * Minimum max size of each shard, so that a small cache is not split in shards that can't hold a block
+	 */
+	private static final long MIN_SHARD_SIZE = 64L * 1024 * 1024;
+
+	private final Predicate<URL> shouldCache;
+	private final @Nullable DiskCache diskCache;
+
+	private final Shard[] shards;
+	/**
+	 * Urls of the files that are in memory, by the key of their file in the disk cache
+	 */
+	private final ConcurrentHashMap<Buf, Set<URL>> urlsByDiskKey = new ConcurrentHashMap<>();
+
+	public MemoryCache(long maxSize, Predicate<URL> shouldCache) {
+		this(maxSize, shouldCache, null);
+	}
+
+	/**
+	 * @param maxSize maximum size of the blocks kept in memory, in bytes
+	 * @param diskCache cache that stores all the files, or null to keep the files only in memory
+	 */
+	public MemoryCache(long maxSize, Predicate<URL> shouldCache, @Nullable DiskCache diskCache) {
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Max size must be positive: " + maxSize);
+		}
+		this.shouldCache = shouldCache;
+		this.diskCache = diskCache;
+		int shardsCount = toIntExact(Math.max(1, Math.min(maxSize / MIN_SHARD_SIZE, MAX_SHARDS)));
+		this.shards = new Shard[shardsCount];
+		for (int i = 0; i < shardsCount; i++) {
+			shards[i] = new Shard(maxSize / shardsCount);
+		}
+		if (diskCache != null) {
+			diskCache.addRemovalListener(this::removeDiskFile);
+		}
+	}
+
+	@Override
+	public Mono<Void> writeMetadata(URL url, Metadata metadata, boolean force) {
+		if (diskCache == null) {
+			return Mono.fromRunnable(() -> {
+				if (force || shouldCache.test(url)) {
+					getShard(url).registerFile(url, metadata.size(), FileSponge.BLOCK_SIZE, null);
+				}
+			});
+		}
+		// The file is registered with the block size and the key of the file stored by the disk cache
+		return diskCache.writeMetadata(url, metadata, force).then(Mono.defer(() -> {
+			if (!force && !shouldCache.test(url)) {
+				return Mono.empty();
+			}
+			return diskCache.resolve(url).doOnNext(this::registerDiskFile).then();
+		}));
+	}
+
+	@Override
+	public Mono<Void> writeContentBlock(URL url, DataBlock dataBlock, boolean force) {
+		var memoryWrite = Mono.<Void>fromRunnable(() -> {
+			if (force || shouldCache.test(url)) {
+				getShard(url).admitBlock(url, dataBlock);
+			}
+		});
+		if (diskCache == null) {
+			return memoryWrite;
+		}
+		return memoryWrite.then(diskCache.writeContentBlock(url, dataBlock, force));
+	}
+
+	@Override
+	public Flux<DataBlock> requestContent(URL url) {
+		return requestContent(url, 0, -1);
+	}
+
+	/**
+	 * The content is served from memory only if all the blocks of the range are in memory,
+	 * otherwise it's read from the disk cache
+	 */
+	@Override
+	public Flux<DataBlock> requestContent(URL url, long offset, long length) {
+		FileSpongeUtils.checkRange(offset, length);
+		return Flux.defer(() -> {
+			var cachedBlocks = getShard(url).getCachedBlocks(url, offset, length);
+			if (cachedBlocks != null) {
+				return Flux.fromIterable(cachedBlocks);
+			} else if (diskCache != null) {
+				return readFromDisk(diskCache, url, offset, length);
+			} else {
+				return Flux.empty();
+			}
+		});
+	}
+
+	private Flux<DataBlock> readFromDisk(DiskCache diskCache, URL url, long offset, long length) {
+		return diskCache
+				.resolve(url)
+				.filter(DiskCacheEntry::isCached)
+				.flatMapMany(entry -> {
+					registerDiskFile(entry);
+					// The entry has already been resolved, the content is read without resolving it again
+					return Flux
+							.fromStream(() -> diskCache.requestContentSync(entry, offset, length))
+							.subscribeOn(Schedulers.boundedElastic())
+							.doOnNext(dataBlock -> getShard(url).admitBlock(url, dataBlock));
+				});
+	}
+
+	@Override
+	public Mono<DiskMetadata> requestDiskMetadata(URL url) {
+		return Mono.defer(() -> {
+			var diskMetadata = getShard(url).getDiskMetadata(url);
+			// The disk cache can have more blocks than the memory
+			if (diskCache != null && (diskMetadata == null || !diskMetadata.isDownloadedFully())) {
+				return diskCache.requestDiskMetadata(url);
+			}
+			return Mono.justOrEmpty(diskMetadata);
+		});
+	}
+
+	@Override
+	public Mono<Metadata> requestMetadata(URL url) {
+		return Mono.defer(() -> {
+			Metadata metadata = getShard(url).getMetadata(url);
+			if (metadata == null && diskCache != null) {
+				return diskCache.requestMetadata(url);
+			}
+			return Mono.justOrEmpty(metadata);
+		});
+	}
+
+	private Shard getShard(URL url) {
+		return shards[Math.floorMod(url.hashCode(), shards.length)];
+	}
+
+	private void registerDiskFile(DiskCacheEntry entry) {
+		var diskMetadata = entry.metadata();
+		if (diskMetadata != null) {
+			getShard(entry.url()).registerFile(entry.url(), diskMetadata.size(), diskMetadata.blockSize(), entry.key());
+		}
+	}
+
+	/**
+	 * Remove the files that have been removed from the disk cache, because their content may have changed
+	 */
+	private void removeDiskFile(Buf diskKey) {
+		var urls = urlsByDiskKey.remove(diskKey);
+		if (urls != null) {
+			for (URL url : urls) {
+				getShard(url).removeFile(url, diskKey);
+			}
+		}
+	}
+
+	private void addDiskKey(Buf diskKey, URL url) {
+		urlsByDiskKey.computeIfAbsent(diskKey, k -> ConcurrentHashMap.newKeySet()).add(url);
+	}
+
+	private void removeDiskKey(Buf diskKey, URL url) {
+		urlsByDiskKey.computeIfPresent(diskKey, (k, urls) -> {
+			urls.remove(url);
+			return urls.isEmpty() ? null : urls;
+		});
+	}
+
+	/**
+	 * Files and blocks of the urls of a shard, guarded by the shard
+	 */
+	private final class Shard {
+
+		private final long maxSize;
+		private final LinkedHashMap<URL, MemoryFile> files = new LinkedHashMap<>(16, 0.75f, true);
+		private final LinkedHashMap<BlockKey, CachedBlock> blocks = new LinkedHashMap<>(16, 0.75f, true);
+		private final FrequencySketch frequencies;
+		private long usedBytes;
+
+		private Shard(long maxSize) {
+			this.maxSize = maxSize;
+			this.frequencies = new FrequencySketch(toIntExact(Math.min(maxSize / EXPECTED_BLOCK_SIZE, Integer.MAX_VALUE)));
+		}
+
+		private synchronized @Nullable Metadata getMetadata(URL url) {
+			var file = files.get(url);
+			return file != null ? new Metadata(file.size) : null;
+		}
+
+		/**
+		 * @return the blocks of the range, or null if some of them are not in memory
+		 */
+		private synchronized @Nullable List<DataBlock> getCachedBlocks(URL url, long offset, long length) {
+			var file = files.get(url);
+			if (file == null || file.size == -1) {
+				return null;
+			}
+			long end = FileSpongeUtils.getRangeEnd(offset, length);
+			int fromBlock = toIntExact(Math.min(offset / file.blockSize, file.blocksCount));
+			int toBlock = end <= offset ? fromBlock
+					: toIntExact(Math.min((end - 1) / file.blockSize + 1, file.blocksCount));
+			if (file.cachedBlocks.nextClearBit(fromBlock) < toBlock) {
+				return null;
+			}
+			List<DataBlock> result = new ArrayList<>(toBlock - fromBlock);
+			for (int blockId = fromBlock; blockId < toBlock; blockId++) {
+				var key = new BlockKey(url, blockId);
+				frequencies.increment(key);
+				var dataBlock = FileSpongeUtils.trimToRange(blocks.get(key).dataBlock(), offset, end);
+				if (dataBlock != null) {
+					result.add(dataBlock);
+				}
+			}
+			return result;
+		}
+
+		private synchronized @Nullable DiskMetadata getDiskMetadata(URL url) {
+			var file = files.get(url);
+			if (file == null) {
+				return null;
+			}
+			return DiskMetadata.create(file.size, file.blockSize).withDownloadedBlocks(file.cachedBlocks);
+		}
+
+		/**
+		 * Add the file if it's missing, or replace it if its size, its block size or its disk key has changed
+		 * @param diskKey key of the file in the disk cache, null if the file is only in memory
+		 */
+		private synchronized void registerFile(URL url, long size, int blockSize, @Nullable Buf diskKey) {
+			var file = files.get(url);
+			if (file != null) {
+				boolean sameBlocks = file.blockSize == blockSize || file.cachedBlocks.isEmpty();
+				if (file.size == size && sameBlocks && Objects.equals(file.diskKey, diskKey)) {
+					return;
+				}
+				removeFile(url);
+			}
+			// Make room for the file, evicting the least recently used files if there are no blocks to evict
+			if (!makeRoom(ENTRY_OVERHEAD, Integer.MAX_VALUE)) {
+				while (usedBytes + ENTRY_OVERHEAD > maxSize && !files.isEmpty()) {
+					removeFile(files.keySet().iterator().next());
+				}
+			}
+			files.put(url, new MemoryFile(size, blockSize, diskKey));
+			usedBytes += ENTRY_OVERHEAD;
+			if (diskKey != null) {
+				addDiskKey(diskKey, url);
+			}
+		}
+
+		/**
+		 * Keep the block in memory if it's a whole block of a known file,
+		 * and if it's accessed more frequently than the blocks that it would evict
+		 */
+		private synchronized void admitBlock(URL url, DataBlock dataBlock) {
+			var file = files.get(url);
+			// The blocks of the files with unknown size are not aligned
+			if (file == null || file.size == -1 || dataBlock.getOffset() % file.blockSize != 0) {
+				return;
+			}
+			int blockId = dataBlock.getId(file.blockSize);
+			if (blockId >= file.blocksCount
+					|| dataBlock.getLength() != Math.min(file.blockSize, file.size - dataBlock.getOffset())) {
+				return;
+			}
+			var key = new BlockKey(url, blockId);
+			frequencies.increment(key);
+			if (file.cachedBlocks.get(blockId)) {
+				return;
+			}
+			long weight = dataBlock.getLength() + ENTRY_OVERHEAD;
+			if (!makeRoom(weight, frequencies.frequency(key))) {
+				return;
+			}
+			blocks.put(key, new CachedBlock(file, compact(dataBlock)));
+			file.cachedBlocks.set(blockId);
+			usedBytes += weight;
+		}
+
+		/**
+		 * Evict the least recently used blocks until there is enough free memory.
+		 * Nothing is evicted if a block that would be evicted has a higher frequency than the new entry
+		 * @return true if there is enough free memory
+		 */
+		private boolean makeRoom(long weight, int frequency) {
+			long freeBytes = maxSize - usedBytes;
+			if (freeBytes >= weight) {
+				return true;
+			}
+			List<BlockKey> victims = new ArrayList<>();
+			for (var it = blocks.entrySet().iterator(); freeBytes < weight && it.hasNext(); ) {
+				var entry = it.next();
+				if (frequencies.frequency(entry.getKey()) > frequency) {
+					return false;
+				}
+				victims.add(entry.getKey());
+				freeBytes += entry.getValue().dataBlock().getLength() + ENTRY_OVERHEAD;
+			}
+			if (freeBytes < weight) {
+				return false;
+			}
+			for (BlockKey victim : victims) {
+				removeBlock(victim);
+			}
+			return true;
+		}
+
+		private void removeBlock(BlockKey key) {
+			var removed = blocks.remove(key);
+			if (removed != null) {
+				removed.file().cachedBlocks.clear(key.blockId());
+				usedBytes -= removed.dataBlock().getLength() + ENTRY_OVERHEAD;
+			}
+		}
+
+		/**
+		 * Remove the file if it's still the file with the disk key
+		 */
+		private synchronized void removeFile(URL url, Buf diskKey) {
+			var file = files.get(url);
+			if (file != null && diskKey.equals(file.diskKey)) {
+				removeFile(url);
+			}
+		}
+
+		private void removeFile(URL url) {
+			var file = files.remove(url);
+			if (file != null) {
+				for (int blockId = file.cachedBlocks.nextSetBit(0); blockId >= 0;
+						blockId = file.cachedBlocks.nextSetBit(blockId + 1)) {
+					removeBlock(new BlockKey(url, blockId));
+				}
+				usedBytes -= ENTRY_OVERHEAD;
+				if (file.diskKey != null) {
+					removeDiskKey(file.diskKey, url);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Copy the data if it's a small view of a larger array, so that the larger array is not retained
+	 */
+	private static DataBlock compact(DataBlock dataBlock) {
+		var data = dataBlock.getData();
+		if (data.getBackingByteArray().length == data.size()) {
+			return dataBlock;
+		}
+		return DataBlock.of(dataBlock.getOffset(), dataBlock.getLength(), data.copy());
+	}
+
+	private static final class MemoryFile {
+
+		private final long size;
+		private final int blockSize;
+		private final int blocksCount;
+		private final @Nullable Buf diskKey;
+		private final BitSet cachedBlocks = new BitSet();
+
+		private MemoryFile(long size, int blockSize, @Nullable Buf diskKey) {
+			this.size = size;
+			this.blockSize = blockSize;
+			this.blocksCount = DiskMetadata.getBlocksCount(size, blockSize);
+			this.diskKey = diskKey;
+		}
+	}
+
+	private record BlockKey(URL url, int blockId) {}
+
+	private record CachedBlock(MemoryFile file, DataBlock dataBlock) {}
+}
@@ -0,0 +1,151 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the measurements in memory, so that they can be read or exported periodically
+ */
+public class MetricsRegistry implements FileSpongeMetrics {
+
+	private final ConcurrentHashMap<URLsDiskHandler, LongAdder> cacheHits = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<URLsDiskHandler, LongAdder> cacheMisses = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<URLsWriter, Histogram> blockWriteLatencies = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<URLsWriter, Histogram> blockWritesBatchSizes = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<URLsWriter, Histogram> blockWritesBatchLatencies = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<URLsHandler, Histogram> sourceLatencies = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<URLsHandler, LongAdder> sourceErrors = new ConcurrentHashMap<>();
+	private final Histogram aliasResolutionDepth = new Histogram();
+	private final LongAdder bytesFromCache = new LongAdder();
+	private final LongAdder bytesFromSources = new LongAdder();
+	private final AtomicInteger inFlightRequests = new AtomicInteger();
+
+	@Override
+	public void recordCacheLookup(URLsDiskHandler cache, boolean hit) {
+		(hit ? cacheHits : cacheMisses).computeIfAbsent(cache, c -> new LongAdder()).increment();
+	}
+
+	@Override
+	public void recordBlockWrite(URLsWriter cache, long latencyNanos) {
+		blockWriteLatencies.computeIfAbsent(cache, c -> new Histogram()).record(latencyNanos);
+	}
+
+	@Override
+	public void recordBlockWritesBatch(URLsWriter cache, int batchSize, long latencyNanos) {
+		blockWritesBatchSizes.computeIfAbsent(cache, c -> new Histogram()).record(batchSize);
+		blockWritesBatchLatencies.computeIfAbsent(cache, c -> new Histogram()).record(latencyNanos);
+	}
+
+	@Override
+	public void recordAliasResolution(URLsDiskHandler cache, int depth) {
+		aliasResolutionDepth.record(depth);
+	}
+
+	@Override
+	public void recordSourceLatency(URLsHandler source, long latencyNanos) {
+		sourceLatencies.computeIfAbsent(source, s -> new Histogram()).record(latencyNanos);
+	}
+
+	@Override
+	public void recordSourceError(URLsHandler source) {
+		sourceErrors.computeIfAbsent(source, s -> new LongAdder()).increment();
+	}
+
+	@Override
+	public void recordBytesFromCache(long bytes) {
+		bytesFromCache.add(bytes);
+	}
+
+	@Override
+	public void recordBytesFromSources(long bytes) {
+		bytesFromSources.add(bytes);
+	}
+
+	@Override
+	public void recordRequestStarted() {
+		inFlightRequests.incrementAndGet();
+	}
+
+	@Override
+	public void recordRequestFinished() {
+		inFlightRequests.decrementAndGet();
+	}
+
+	public long getCacheHits(URLsDiskHandler cache) {
+		var hits = cacheHits.get(cache);
+		return hits != null ? hits.sum() : 0;
+	}
+
+	public long getCacheMisses(URLsDiskHandler cache) {
+		var misses = cacheMisses.get(cache);
+		return misses != null ? misses.sum() : 0;
+	}
+
+	/**
+	 * @return the write latencies of the blocks, in nanoseconds
+	 */
+	public Histogram getBlockWriteLatency(URLsWriter cache) {
+		return blockWriteLatencies.computeIfAbsent(cache, c -> new Histogram());
+	}
+
+	/**
+	 * @return the count of the blocks committed together by each batch
+	 */
+	public Histogram getBlockWritesBatchSize(URLsWriter cache) {
+		return blockWritesBatchSizes.computeIfAbsent(cache, c -> new Histogram());
+	}
+
+	/**
+	 * @return the commit latencies of the batches of block writes, in nanoseconds
+	 */
+	public Histogram getBlockWritesBatchLatency(URLsWriter cache) {
+		return blockWritesBatchLatencies.computeIfAbsent(cache, c -> new Histogram());
+	}
+
+	public Histogram getAliasResolutionDepth() {
+		return aliasResolutionDepth;
+	}
+
+	/**
+	 * @return the latencies of the first value of the requests, in nanoseconds
+	 */
+	public Histogram getSourceLatency(URLsHandler source) {
+		return sourceLatencies.computeIfAbsent(source, s -> new Histogram());
+	}
+
+	public long getSourceErrors(URLsHandler source) {
+		var errors = sourceErrors.get(source);
+		return errors != null ? errors.sum() : 0;
+	}
+
+	public long getBytesFromCache() {
+		return bytesFromCache.sum();
+	}
+
+	public long getBytesFromSources() {
+		return bytesFromSources.sum();
+	}
+
+	public int getInFlightRequests() {
+		return inFlightRequests.get();
+	}
+}
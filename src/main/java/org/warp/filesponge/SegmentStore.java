@@ -0,0 +1,370 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import it.cavallium.buffer.Buf;
+import it.cavallium.buffer.BufDataInput;
+import it.cavallium.buffer.BufDataOutput;
+import it.cavallium.dbengine.database.SafeCloseable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Blocks appended to large segment files, so that the database stores only their locations.
+ * Segments are never modified after they are written: the space of the overwritten or deleted blocks is reclaimed
+ * by copying the live blocks of a segment into the active segment, then deleting the old segment.
+ * A new segment is started each time the store is opened, so a crash can only leave garbage at the end of a segment.
+ * The bytes of the referenced blocks of each segment are counted as they are appended and released, while the blocks
+ * of the segments written before opening the store must be counted with {@link #addLiveBytes(Buf)}
+ */
+class SegmentStore implements SafeCloseable {
+
+	private static final Logger logger = LogManager.getLogger(SegmentStore.class);
+
+	private static final String SEGMENT_EXTENSION = ".segment";
+	/**
+	 * Segment id, offset and length
+	 */
+	static final int LOCATION_SIZE = Long.BYTES + Long.BYTES + Integer.BYTES;
+
+	private final Path directory;
+	private final long maxSegmentSize;
+	private final ConcurrentHashMap<Long, FileChannel> readChannels = new ConcurrentHashMap<>();
+	private final Object appendLock = new Object();
+	private long activeSegmentId;
+	private FileChannel activeChannel;
+	private long activeSegmentSize;
+	/**
+	 * Id of the first segment written after opening the store
+	 */
+	private final long openedSegmentId;
+	private final AtomicLong size = new AtomicLong();
+	private final AtomicLong liveBytes = new AtomicLong();
+	private final ConcurrentHashMap<Long, AtomicLong> segmentLiveBytes = new ConcurrentHashMap<>();
+
+	/**
+	 * @param maxSegmentSize size after which a new segment is started
+	 */
+	public SegmentStore(Path directory, long maxSegmentSize) {
+		this.directory = directory;
+		this.maxSegmentSize = maxSegmentSize;
+		try {
+			Files.createDirectories(directory);
+			var segmentIds = getSegmentIds();
+			for (long segmentId : segmentIds) {
+				size.addAndGet(getSegmentSize(segmentId));
+			}
+			long lastSegmentId = segmentIds.stream().mapToLong(Long::longValue).max().orElse(-1);
+			this.openedSegmentId = lastSegmentId + 1;
+			openActiveSegment(openedSegmentId);
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Append the data to the active segment. The data is durable only after {@link #sync()}
+	 * @return the location of the data
+	 */
+	public Buf append(Buf data) {
+		synchronized (appendLock) {
+			try {
+				if (activeSegmentSize > 0 && activeSegmentSize + data.size() > maxSegmentSize) {
+					// The full segment is sealed, it's only read from now on
+					activeChannel.force(false);
+					activeChannel.close();
+					openActiveSegment(activeSegmentId + 1);
+				}
+				long offset = activeSegmentSize;
+				var buffer = ByteBuffer.wrap(data.getBackingByteArray(), data.getBackingByteArrayOffset(), data.size());
+				long position = offset;
+				while (buffer.hasRemaining()) {
+					position += activeChannel.write(buffer, position);
+				}
+				activeSegmentSize += data.size();
+				size.addAndGet(data.size());
+				addLiveBytes(activeSegmentId, data.size());
+				return serializeLocation(activeSegmentId, offset, data.size());
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	/**
+	 * Make the appended data durable, it must be called before storing the locations
+	 */
+	public void sync() {
+		synchronized (appendLock) {
+			try {
+				activeChannel.force(false);
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		}
+	}
+
+	public Buf read(Buf location) {
+		var input = BufDataInput.create(location);
+		long segmentId = input.readLong();
+		long offset = input.readLong();
+		int length = input.readInt();
+		var data = new byte[length];
+		var buffer = ByteBuffer.wrap(data);
+		try {
+			var channel = getReadChannel(segmentId);
+			long position = offset;
+			while (buffer.hasRemaining()) {
+				int read = channel.read(buffer, position);
+				if (read < 0) {
+					throw new IllegalStateException("Block at " + offset + "+" + length + " is outside of segment " + segmentId);
+				}
+				position += read;
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+		return Buf.wrap(data);
+	}
+
+	/**
+	 * Write the data into the channel without reading it into memory, when the channel allows it
+	 */
+	public void transferTo(Buf location, WritableByteChannel target) {
+		FileSpongeUtils.checkBlocking(target);
+		var input = BufDataInput.create(location);
+		long segmentId = input.readLong();
+		long offset = input.readLong();
+		int length = input.readInt();
+		try {
+			var channel = getReadChannel(segmentId);
+			long position = offset;
+			long end = offset + length;
+			while (position < end) {
+				long transferred = channel.transferTo(position, end - position, target);
+				if (transferred <= 0 && position >= channel.size()) {
+					throw new IllegalStateException("Block at " + offset + "+" + length + " is outside of segment " + segmentId);
+				}
+				position += transferred;
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * @return the location of a part of the data
+	 */
+	public static Buf slice(Buf location, int from, int to) {
+		var input = BufDataInput.create(location);
+		long segmentId = input.readLong();
+		long offset = input.readLong();
+		int length = input.readInt();
+		if (from < 0 || to > length || from > to) {
+			throw new IndexOutOfBoundsException("Slice " + from + "-" + to + " is outside of the length " + length);
+		}
+		return serializeLocation(segmentId, offset + from, to - from);
+	}
+
+	/**
+	 * Count a block of a segment written before opening the store, that is still referenced
+	 */
+	public void addLiveBytes(Buf location) {
+		long segmentId = getSegmentId(location);
+		if (segmentId < openedSegmentId) {
+			addLiveBytes(segmentId, getLength(location));
+		}
+	}
+
+	/**
+	 * Stop counting a block that is not referenced anymore, its space is reclaimed by the compaction
+	 */
+	public void release(Buf location) {
+		addLiveBytes(getSegmentId(location), -getLength(location));
+	}
+
+	private void addLiveBytes(long segmentId, long bytes) {
+		liveBytes.addAndGet(bytes);
+		segmentLiveBytes.computeIfAbsent(segmentId, id -> new AtomicLong()).addAndGet(bytes);
+	}
+
+	/**
+	 * @return the bytes of the blocks of the segment that are referenced
+	 */
+	public long getLiveBytes(long segmentId) {
+		var segmentBytes = segmentLiveBytes.get(segmentId);
+		return segmentBytes != null ? segmentBytes.get() : 0;
+	}
+
+	/**
+	 * @return the size of all the segments
+	 */
+	public long getSize() {
+		return size.get();
+	}
+
+	/**
+	 * @return the bytes of the blocks that are not referenced anymore
+	 */
+	public long getDeadBytes() {
+		return Math.max(0, size.get() - liveBytes.get());
+	}
+
+	/**
+	 * @return the ids of the segments that are not written anymore
+	 */
+	public List<Long> getSealedSegmentIds() {
+		long activeId;
+		synchronized (appendLock) {
+			activeId = activeSegmentId;
+		}
+		List<Long> sealedSegmentIds = new ArrayList<>();
+		for (Long segmentId : getSegmentIds()) {
+			if (segmentId < activeId) {
+				sealedSegmentIds.add(segmentId);
+			}
+		}
+		return sealedSegmentIds;
+	}
+
+	public long getSegmentSize(long segmentId) {
+		try {
+			return Files.size(getSegmentPath(segmentId));
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Delete a sealed segment. Its blocks must not be referenced anymore
+	 */
+	public void delete(long segmentId) {
+		var channel = readChannels.remove(segmentId);
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+			var path = getSegmentPath(segmentId);
+			long segmentSize = Files.size(path);
+			Files.delete(path);
+			size.addAndGet(-segmentSize);
+			var segmentBytes = segmentLiveBytes.remove(segmentId);
+			if (segmentBytes != null) {
+				liveBytes.addAndGet(-segmentBytes.get());
+			}
+		} catch (NoSuchFileException ex) {
+			// Already deleted
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	public static long getSegmentId(Buf location) {
+		return BufDataInput.create(location).readLong();
+	}
+
+	public static int getLength(Buf location) {
+		return BufDataInput.create(location.subList(Long.BYTES + Long.BYTES, LOCATION_SIZE)).readInt();
+	}
+
+	private FileChannel getReadChannel(long segmentId) throws IOException {
+		var channel = readChannels.get(segmentId);
+		if (channel != null) {
+			return channel;
+		}
+		try {
+			channel = FileChannel.open(getSegmentPath(segmentId), StandardOpenOption.READ);
+		} catch (NoSuchFileException ex) {
+			throw new IllegalStateException("Segment " + segmentId + " not found", ex);
+		}
+		var previous = readChannels.putIfAbsent(segmentId, channel);
+		if (previous != null) {
+			channel.close();
+			return previous;
+		}
+		return channel;
+	}
+
+	private void openActiveSegment(long segmentId) throws IOException {
+		this.activeChannel = FileChannel.open(getSegmentPath(segmentId),
+				StandardOpenOption.CREATE_NEW,
+				StandardOpenOption.WRITE
+		);
+		this.activeSegmentId = segmentId;
+		this.activeSegmentSize = 0;
+	}
+
+	private List<Long> getSegmentIds() {
+		try (Stream<Path> files = Files.list(directory)) {
+			return files
+					.map(path -> path.getFileName().toString())
+					.filter(name -> name.endsWith(SEGMENT_EXTENSION))
+					.map(name -> Long.parseUnsignedLong(name.substring(0, name.length() - SEGMENT_EXTENSION.length()), 16))
+					.toList();
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	private Path getSegmentPath(long segmentId) {
+		return directory.resolve("%016x%s".formatted(segmentId, SEGMENT_EXTENSION));
+	}
+
+	private static Buf serializeLocation(long segmentId, long offset, int length) {
+		var out = BufDataOutput.create(LOCATION_SIZE);
+		out.writeLong(segmentId);
+		out.writeLong(offset);
+		out.writeInt(length);
+		return out.asList();
+	}
+
+	@Override
+	public void close() {
+		synchronized (appendLock) {
+			try {
+				activeChannel.force(false);
+				activeChannel.close();
+			} catch (IOException ex) {
+				logger.warn("Failed to close segment {}", activeSegmentId, ex);
+			}
+		}
+		for (FileChannel channel : readChannels.values()) {
+			try {
+				channel.close();
+			} catch (IOException ex) {
+				logger.warn("Failed to close a segment", ex);
+			}
+		}
+		readChannels.clear();
+	}
+}
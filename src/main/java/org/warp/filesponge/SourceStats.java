@@ -0,0 +1,100 @@
+/*
+ *     FileSponge
+ *     Copyright (C) 2026 Andrea Cavalli
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+
+package org.warp.filesponge;
+
+import java.time.Duration;
+import java.util.Arrays;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Latency and failure rate of a source, used to rank the sources and to decide when to hedge a request
+ */
+class SourceStats {
+
+	/**
+	 * Count of the most recent latencies that are kept
+	 */
+	private static final int LATENCY_SAMPLES = 128;
+	/**
+	 * Weight of the latest outcome in the failure rate
+	 */
+	private static final double FAILURE_RATE_WEIGHT = 0.1;
+
+	private final long[] latencies = new long[LATENCY_SAMPLES];
+	private int latenciesCount;
+	private int nextLatency;
+	private double failureRate;
+
+	/**
+	 * @param latencyNanos time between the request and its first value
+	 */
+	public synchronized void recordSuccess(long latencyNanos) {
+		addLatency(latencyNanos);
+		failureRate -= failureRate * FAILURE_RATE_WEIGHT;
+	}
+
+	/**
+	 * Record a request that has been abandoned before its first value
+	 * @param waitedNanos time waited for the first value, it's counted as the latency of the request
+	 */
+	public synchronized void recordAbandoned(long waitedNanos) {
+		addLatency(waitedNanos);
+	}
+
+	public synchronized void recordFailure() {
+		failureRate += (1 - failureRate) * FAILURE_RATE_WEIGHT;
+	}
+
+	private void addLatency(long latencyNanos) {
+		latencies[nextLatency] = latencyNanos;
+		nextLatency = (nextLatency + 1) % LATENCY_SAMPLES;
+		latenciesCount = Math.min(latenciesCount + 1, LATENCY_SAMPLES);
+	}
+
+	public synchronized double getFailureRate() {
+		return failureRate;
+	}
+
+	/**
+	 * @param percentile between 0 and 1
+	 * @return the latency percentile of the recent successful requests, or null if there are none
+	 */
+	public synchronized @Nullable Duration getLatency(double percentile) {
+		if (latenciesCount == 0) {
+			return null;
+		}
+		var sorted = Arrays.copyOf(latencies, latenciesCount);
+		Arrays.sort(sorted);
+		int index = (int) Math.min(Math.ceil(percentile * latenciesCount) - 1, latenciesCount - 1);
+		return Duration.ofNanos(sorted[Math.max(index, 0)]);
+	}
+
+	/**
+	 * Expected cost of a request: the median latency, increased by the failure rate.
+	 * Sources that have never been used come first, so that they get measured,
+	 * and sources that have only failed come last
+	 */
+	public synchronized double getScore() {
+		var medianLatency = getLatency(0.5);
+		if (medianLatency == null) {
+			return failureRate > 0 ? Double.MAX_VALUE : 0;
+		}
+		return medianLatency.toNanos() / Math.max(1 - failureRate, 0.01);
+	}
+}
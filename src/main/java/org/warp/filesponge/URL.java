@@ -24,6 +24,13 @@ public interface URL {
 
 	URLSerializer<? extends URL> getSerializer();
 
+	/**
+	 * Urls that are equal are served by the same in-flight download
+	 */
+	boolean equals(Object o);
+
+	int hashCode();
+
 	/**
 	 * @return String representation of this URL
 	 */
@@ -27,6 +27,14 @@ public interface URLHandler {
 
 	Flux<DataBlock> requestContent();
 
+	/**
+	 * @param length length of the range, -1 to read until the end of the file
+	 */
+	default Flux<DataBlock> requestContent(long offset, long length) {
+		FileSpongeUtils.checkRange(offset, length);
+		return FileSpongeUtils.trimToRange(requestContent(), offset, length);
+	}
+
 	Mono<Metadata> requestMetadata();
 
 	default Mono<Tuple2<Metadata, Flux<DataBlock>>> request() {
@@ -18,6 +18,7 @@
 
 package org.warp.filesponge;
 
+import java.nio.channels.WritableByteChannel;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
@@ -25,6 +26,21 @@ public interface URLsDiskHandler extends URLsHandler {
 
 	Mono<DiskMetadata> requestDiskMetadata(URL url);
 
+	default Mono<Long> transferTo(URL url, WritableByteChannel channel) {
+		return transferTo(url, 0, -1, channel);
+	}
+
+	/**
+	 * Write the cached content between offset (inclusive) and offset + length (exclusive) into the channel.
+	 * Caches that can write the stored bytes directly should override this method,
+	 * by default the content is requested and then written
+	 * @param length length of the range, -1 to read until the end of the file
+	 * @return the count of the written bytes, or empty if the range is not cached. In that case nothing is written
+	 */
+	default Mono<Long> transferTo(URL url, long offset, long length, WritableByteChannel channel) {
+		return FileSpongeUtils.writeTo(requestContent(url, offset, length), channel);
+	}
+
 	default URLDiskHandler asURLDiskHandler(URL url) {
 		return new URLDiskHandler() {
 			@Override
@@ -37,6 +53,11 @@ public interface URLsDiskHandler extends URLsHandler {
 				return URLsDiskHandler.this.requestContent(url);
 			}
 
+			@Override
+			public Flux<DataBlock> requestContent(long offset, long length) {
+				return URLsDiskHandler.this.requestContent(url, offset, length);
+			}
+
 			@Override
 			public Mono<Metadata> requestMetadata() {
 				return URLsDiskHandler.this.requestMetadata(url);
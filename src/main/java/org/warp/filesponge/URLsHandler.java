@@ -27,6 +27,26 @@ public interface URLsHandler {
 
 	Flux<DataBlock> requestContent(URL url);
 
+	/**
+	 * Get only the content between offset (inclusive) and offset + length (exclusive).
+	 * The first and the last data blocks are trimmed to fit the range.
+	 * Sources that are able to read a byte range should override this method,
+	 * by default the whole content is requested and then trimmed
+	 * @param length length of the range, -1 to read until the end of the file
+	 */
+	default Flux<DataBlock> requestContent(URL url, long offset, long length) {
+		FileSpongeUtils.checkRange(offset, length);
+		return FileSpongeUtils.trimToRange(requestContent(url), offset, length);
+	}
+
+	/**
+	 * @return true if {@link #requestContent(URL, long, long)} reads only the requested range,
+	 * so that the blocks of a file can be downloaded from different sources in parallel
+	 */
+	default boolean supportsRangeRequests() {
+		return false;
+	}
+
 	/**
 	 * Get metadata from cached sources, if not found, retrieve it online
 	 */
@@ -43,6 +63,11 @@ public interface URLsHandler {
 				return URLsHandler.this.requestContent(url);
 			}
 
+			@Override
+			public Flux<DataBlock> requestContent(long offset, long length) {
+				return URLsHandler.this.requestContent(url, offset, length);
+			}
+
 			@Override
 			public Mono<Metadata> requestMetadata() {
 				return URLsHandler.this.requestMetadata(url);
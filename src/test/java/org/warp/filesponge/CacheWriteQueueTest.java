@@ -0,0 +1,113 @@
+package org.warp.filesponge;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+
+public class CacheWriteQueueTest {
+
+	@Test
+	void testStuckWriteDoesNotBlockTheOtherFiles() {
+		var queue = new CacheWriteQueue(64, CacheWriteOverflowPolicy.BLOCK);
+		queue.submit(new TestURL("stuck"), Mono.never()).block();
+		var executed = new AtomicInteger();
+		for (int i = 0; i < 16; i++) {
+			queue.submit(new TestURL("file-" + i), Mono.fromRunnable(executed::incrementAndGet)).block();
+		}
+
+		// Only the writes in the same lane of the stuck write are waiting
+		assertTrue(executed.get() > 0);
+		assertEquals(16 - executed.get() + 1, queue.getStats().queuedWrites());
+	}
+
+	@Test
+	void testSynchronousWriteDoesNotBlockTheSubmits() throws Exception {
+		var queue = new CacheWriteQueue(64, CacheWriteOverflowPolicy.BLOCK);
+		var writeStarted = new CountDownLatch(1);
+		var writeGate = new CountDownLatch(1);
+		var synchronousWrite = CompletableFuture.runAsync(() -> queue.submit(new TestURL("synchronous"),
+				Mono.fromRunnable(() -> {
+					writeStarted.countDown();
+					awaitUninterruptibly(writeGate);
+				})
+		).block());
+		assertTrue(writeStarted.await(1, TimeUnit.SECONDS));
+
+		try {
+			CompletableFuture
+					.runAsync(() -> queue.submit(new TestURL("other"), Mono.empty()).block())
+					.get(1, TimeUnit.SECONDS);
+		} finally {
+			writeGate.countDown();
+		}
+		synchronousWrite.get(1, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void testWritesOfTheSameFileAreExecutedInOrder() {
+		var queue = new CacheWriteQueue(64, CacheWriteOverflowPolicy.BLOCK);
+		var url = new TestURL("ordered");
+		List<Integer> executed = new CopyOnWriteArrayList<>();
+		for (int i = 0; i < 8; i++) {
+			int write = i;
+			// The first writes are the slowest ones
+			queue.submit(url, Mono.delay(Duration.ofMillis((8 - i) * 5L)).then(Mono.fromRunnable(() -> executed.add(write)))).block();
+		}
+		queue.flush().block(Duration.ofSeconds(1));
+
+		assertEquals(IntStream.range(0, 8).boxed().toList(), executed);
+	}
+
+	@Test
+	void testFlushDoesNotWaitForTheLaterWrites() {
+		var queue = new CacheWriteQueue(64, CacheWriteOverflowPolicy.BLOCK);
+		Sinks.Empty<Void> gate = Sinks.empty();
+		queue.submit(new TestURL("gated"), gate.asMono()).block();
+		var flushed = queue.flush().toFuture();
+		queue.submit(new TestURL("gated"), Mono.never()).block();
+		queue.submit(new TestURL("later"), Mono.never()).block();
+
+		assertFalse(flushed.isDone());
+		gate.tryEmitEmpty();
+		flushed.join();
+		assertEquals(2, queue.getStats().queuedWrites());
+	}
+
+	@Test
+	void testFlushOfAnEmptyQueueCompletesImmediately() {
+		var queue = new CacheWriteQueue(1, CacheWriteOverflowPolicy.BLOCK);
+		assertTrue(queue.flush().toFuture().isDone());
+	}
+
+	private static void awaitUninterruptibly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private record TestURL(String id) implements URL {
+
+		@Override
+		public URLSerializer<? extends URL> getSerializer() {
+			return new URLStringSerializer<TestURL>() {
+				@Override
+				public @NotNull String serialize(@NotNull TestURL url) {
+					return url.id();
+				}
+			};
+		}
+	}
+}
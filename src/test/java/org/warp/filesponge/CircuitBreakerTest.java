@@ -0,0 +1,95 @@
+package org.warp.filesponge;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class CircuitBreakerTest {
+
+	private static final Duration COOL_DOWN = Duration.ofMillis(50);
+
+	private final AtomicLong nanoTime = new AtomicLong();
+
+	@Test
+	void testCircuitOpensAfterConsecutiveFailures() {
+		var circuitBreaker = new CircuitBreaker(3, COOL_DOWN, COOL_DOWN.multipliedBy(4), nanoTime::get);
+		for (int i = 0; i < 2; i++) {
+			assertTrue(circuitBreaker.tryAcquire());
+			circuitBreaker.onFailure();
+		}
+		assertTrue(circuitBreaker.isAvailable());
+		assertTrue(circuitBreaker.tryAcquire());
+		circuitBreaker.onFailure();
+
+		assertFalse(circuitBreaker.isAvailable());
+		assertFalse(circuitBreaker.tryAcquire());
+	}
+
+	@Test
+	void testSuccessResetsConsecutiveFailures() {
+		var circuitBreaker = new CircuitBreaker(3, COOL_DOWN, COOL_DOWN.multipliedBy(4), nanoTime::get);
+		for (int i = 0; i < 6; i++) {
+			assertTrue(circuitBreaker.tryAcquire());
+			if (i % 3 == 2) {
+				circuitBreaker.onSuccess();
+			} else {
+				circuitBreaker.onFailure();
+			}
+		}
+		assertTrue(circuitBreaker.isAvailable());
+	}
+
+	@Test
+	void testSuccessfulProbeClosesTheCircuit() {
+		var circuitBreaker = open();
+		elapse(COOL_DOWN);
+
+		assertTrue(circuitBreaker.isAvailable());
+		assertTrue(circuitBreaker.tryAcquire());
+		// Only one probe at a time
+		assertFalse(circuitBreaker.isAvailable());
+		assertFalse(circuitBreaker.tryAcquire());
+		circuitBreaker.onSuccess();
+
+		assertTrue(circuitBreaker.tryAcquire());
+		assertTrue(circuitBreaker.tryAcquire());
+	}
+
+	@Test
+	void testFailedProbeOpensTheCircuitForLonger() {
+		var circuitBreaker = open();
+		elapse(COOL_DOWN);
+
+		assertTrue(circuitBreaker.tryAcquire());
+		circuitBreaker.onFailure();
+		// The cool-down is doubled
+		elapse(COOL_DOWN.multipliedBy(2).minusNanos(1));
+		assertFalse(circuitBreaker.isAvailable());
+		elapse(Duration.ofNanos(1));
+		assertTrue(circuitBreaker.isAvailable());
+	}
+
+	@Test
+	void testCancelledProbeIsReleased() {
+		var circuitBreaker = open();
+		elapse(COOL_DOWN);
+
+		assertTrue(circuitBreaker.tryAcquire());
+		circuitBreaker.onCancel();
+		assertTrue(circuitBreaker.tryAcquire());
+	}
+
+	private CircuitBreaker open() {
+		var circuitBreaker = new CircuitBreaker(1, COOL_DOWN, COOL_DOWN.multipliedBy(4), nanoTime::get);
+		assertTrue(circuitBreaker.tryAcquire());
+		circuitBreaker.onFailure();
+		assertFalse(circuitBreaker.isAvailable());
+		return circuitBreaker;
+	}
+
+	private void elapse(Duration duration) {
+		nanoTime.addAndGet(duration.toNanos());
+	}
+}
@@ -7,14 +7,41 @@ import it.cavallium.buffer.Buf;
 import it.cavallium.buffer.BufDataOutput;
 import it.cavallium.dbengine.database.LLDictionary;
 import it.cavallium.dbengine.database.LLDictionaryResultType;
+import it.cavallium.dbengine.database.LLEntry;
+import it.cavallium.dbengine.database.LLRange;
 import it.cavallium.dbengine.database.UpdateReturnMode;
 import it.cavallium.dbengine.database.serialization.SerializationFunction;
 import it.unimi.dsi.fastutil.booleans.BooleanArrayList;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.ArgumentCaptor;
+import reactor.test.StepVerifier;
 
 public class DiskCacheImplTest {
 
@@ -46,15 +73,726 @@ public class DiskCacheImplTest {
         when(fileAliases.get(null, aliasKey)).thenReturn(originalKey);
 
         // Setup metadata for original
+        var metadata = mapBacked(fileMetadata);
         DiskMetadata meta = new DiskMetadata(1024, new BooleanArrayList(new boolean[]{true}));
-        Buf metaBuf = serializeMetadata(meta);
-        when(fileMetadata.get(null, originalKey)).thenReturn(metaBuf);
+        metadata.put(originalKey, serializeMetadata(meta));
 
         // ACT: delete alias
         diskCache.deleteContentSync(aliasUrl);
 
         // VERIFY: it should have deleted from originalKey
-        verify(fileMetadata).remove(eq(originalKey), any());
+        assertFalse(metadata.containsKey(originalKey));
+    }
+
+    @Test
+    void testRequestContentRange() {
+        URL url = mockUrl("range");
+        Buf key = serialize(url);
+        int blockSize = FileSponge.BLOCK_SIZE;
+
+        DiskMetadata meta = new DiskMetadata(3L * blockSize, new BooleanArrayList(new boolean[]{false, true, false}));
+        when(fileMetadata.get(null, key)).thenReturn(serializeMetadata(meta));
+        when(fileContent.get(null, getBlockKey(key, 1))).thenReturn(Buf.wrap(new byte[blockSize]));
+
+        // Only block 1 is needed, even if the file is not fully downloaded
+        var blocks = diskCache.requestContentSync(url, blockSize + 100, 200).toList();
+        assertEquals(1, blocks.size());
+        assertEquals(blockSize + 100, blocks.get(0).getOffset());
+        assertEquals(200, blocks.get(0).getLength());
+        assertEquals(200, blocks.get(0).getData().size());
+        verify(fileContent, times(1)).get(any(), any());
+
+        // The range touches block 2, which is missing
+        assertEquals(0, diskCache.requestContentSync(url, blockSize + 100, blockSize).count());
+    }
+
+    @Test
+    void testDownloadedBlocksAreStoredInBatches() {
+        URL url = mockUrl("batch");
+        Buf key = serialize(url);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        Buf metaBuf = serializeMetadata(DiskMetadata.create(3L * blockSize));
+        when(fileMetadata.get(null, key)).thenReturn(metaBuf);
+
+        diskCache.writeContentBlockSync(url, DataBlock.of(0, blockSize, Buf.wrap(new byte[blockSize])), false);
+        diskCache.writeContentBlockSync(url, DataBlock.of(blockSize, blockSize, Buf.wrap(new byte[blockSize])), false);
+
+        // The blocks are visible before being stored
+        verify(fileMetadata, never()).update(any(), any(), any());
+        DiskMetadata pendingMeta = diskCache.requestDiskMetadataSync(url);
+        assertTrue(pendingMeta.isDownloadedBlock(0));
+        assertTrue(pendingMeta.isDownloadedBlock(1));
+        assertFalse(pendingMeta.isDownloadedBlock(2));
+
+        // Closing the cache stores both blocks with a single update
+        diskCache.close();
+        ArgumentCaptor<SerializationFunction<Buf, Buf>> captor = ArgumentCaptor.forClass(SerializationFunction.class);
+        verify(fileMetadata, times(1)).update(eq(key), captor.capture(), any());
+        DiskMetadata storedMeta = deserializeMetadata(captor.getValue().apply(metaBuf));
+        assertEquals(pendingMeta.downloadedBlocks(), storedMeta.downloadedBlocks());
+        assertEquals(2L * blockSize, storedMeta.storedSize());
+        // The last access time is stored with the blocks
+        assertTrue(storedMeta.lastAccessTime() > 0);
+    }
+
+    @Test
+    void testMetadataIsReadOnceWhileWriting() {
+        mapBacked(fileMetadata);
+        URL url = mockUrl("written");
+        Buf key = serialize(url);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        diskCache.writeMetadataSync(url, new Metadata(3L * blockSize), false);
+        for (int i = 0; i < 3; i++) {
+            diskCache.writeContentBlockSync(url, DataBlock.of(i * (long) blockSize, blockSize, Buf.wrap(new byte[blockSize])), false);
+        }
+        verify(fileMetadata, times(1)).get(null, key);
+
+        // A new version of the file reads the metadata again
+        diskCache.writeMetadataSync(url, new Metadata(2L * blockSize), false);
+        diskCache.writeContentBlockSync(url, DataBlock.of(blockSize, blockSize, Buf.wrap(new byte[blockSize])), false);
+        verify(fileMetadata, times(2)).get(null, key);
+        assertEquals(2, diskCache.requestDiskMetadataSync(url).blocksCount());
+    }
+
+    @Test
+    void testAliasResolutionIsCached() {
+        URL originalUrl = mockUrl("original");
+        URL aliasUrl = mockUrl("alias");
+        Buf originalKey = serialize(originalUrl);
+        Buf aliasKey = serialize(aliasUrl);
+        when(fileAliases.get(null, aliasKey)).thenReturn(originalKey);
+
+        diskCache.requestDiskMetadataSync(aliasUrl);
+        diskCache.requestDiskMetadataSync(aliasUrl);
+
+        verify(fileAliases, times(1)).get(null, aliasKey);
+        verify(fileAliases, times(1)).get(null, originalKey);
+        verify(fileMetadata, times(2)).get(null, originalKey);
+    }
+
+    @Test
+    void testAliasResolutionDepthIsRecorded() {
+        var metrics = new MetricsRegistry();
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache,
+                DiskCacheOptions.DEFAULT.withMetrics(metrics));
+        URL originalUrl = mockUrl("original");
+        URL aliasUrl = mockUrl("alias");
+        Buf originalKey = serialize(originalUrl);
+        Buf aliasKey = serialize(aliasUrl);
+        when(fileAliases.get(null, aliasKey)).thenReturn(originalKey);
+
+        diskCache.requestDiskMetadataSync(aliasUrl);
+        diskCache.requestDiskMetadataSync(aliasUrl);
+        diskCache.requestDiskMetadataSync(originalUrl);
+
+        // The second resolution is served by the alias cache
+        assertEquals(2, metrics.getAliasResolutionDepth().getCount());
+        assertEquals(1, metrics.getAliasResolutionDepth().getMax());
+    }
+
+    @Test
+    void testBlockWritesBatchesAreRecorded() {
+        var metrics = new MetricsRegistry();
+        mapBacked(fileContent);
+        mapBacked(fileMetadata);
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache,
+                DiskCacheOptions.DEFAULT.withMetrics(metrics));
+        int blockSize = FileSponge.BLOCK_SIZE;
+        URL url = mockUrl("batched");
+        diskCache.writeMetadataSync(url, new Metadata(2L * blockSize), false);
+        diskCache.writeContentBlockSync(url, DataBlock.of(0, blockSize, Buf.wrap(new byte[blockSize])), false);
+        diskCache.writeContentBlockSync(url, DataBlock.of(blockSize, blockSize, Buf.wrap(new byte[blockSize])), false);
+
+        assertEquals(2, metrics.getBlockWritesBatchSize(diskCache).getCount());
+        assertEquals(1, metrics.getBlockWritesBatchSize(diskCache).getMax());
+        assertEquals(2, metrics.getBlockWritesBatchLatency(diskCache).getCount());
+    }
+
+    @Test
+    void testWriteAliasPointsToFinalKey() {
+        URL url1 = mockUrl("url1");
+        URL url2 = mockUrl("url2");
+        URL url3 = mockUrl("url3");
+        Buf key1 = serialize(url1);
+        Buf key2 = serialize(url2);
+        Buf key3 = serialize(url3);
+        when(fileAliases.get(null, key2)).thenReturn(key3);
+
+        diskCache.writeAliasSync(url1, url2);
+
+        verify(fileAliases).put(eq(key1), eq(key3), any());
+    }
+
+    @Test
+    void testWriteAliasCollapsesAliasesOfOriginalKey() {
+        var aliases = mapBacked(fileAliases);
+        LLDictionary aliasSources = mock(LLDictionary.class);
+        mapBacked(aliasSources);
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, null, aliasSources,
+                shouldCache, DiskCacheOptions.DEFAULT);
+        URL url1 = mockUrl("url1");
+        URL url2 = mockUrl("url2");
+        URL url3 = mockUrl("url3");
+        Buf key1 = serialize(url1);
+        Buf key3 = serialize(url3);
+
+        diskCache.writeAliasSync(url1, url2);
+        diskCache.requestDiskMetadataSync(url1);
+        diskCache.writeAliasSync(url2, url3);
+
+        // url1 points directly to url3, instead of resolving through url2
+        assertEquals(key3, aliases.get(key1));
+        diskCache.requestDiskMetadataSync(url1);
+        verify(fileMetadata).get(null, key3);
+    }
+
+    @Test
+    void testAliasResolutionDoesNotWrite() {
+        URL url1 = mockUrl("url1");
+        URL url2 = mockUrl("url2");
+        URL url3 = mockUrl("url3");
+        Buf key1 = serialize(url1);
+        Buf key2 = serialize(url2);
+        Buf key3 = serialize(url3);
+        when(fileAliases.get(null, key1)).thenReturn(key2);
+        when(fileAliases.get(null, key2)).thenReturn(key3);
+
+        diskCache.requestDiskMetadataSync(url1);
+
+        verify(fileMetadata).get(null, key3);
+        verify(fileAliases, never()).put(any(), any(), any());
+    }
+
+    @Test
+    void testWriteAliasInvalidatesResolvedKey() {
+        URL url1 = mockUrl("url1");
+        URL url2 = mockUrl("url2");
+        Buf key1 = serialize(url1);
+        Buf key2 = serialize(url2);
+
+        // url1 is not an alias yet
+        diskCache.requestDiskMetadataSync(url1);
+        verify(fileMetadata).get(null, key1);
+
+        diskCache.writeAliasSync(url1, url2);
+        when(fileAliases.get(null, key1)).thenReturn(key2);
+        diskCache.requestDiskMetadataSync(url1);
+        verify(fileMetadata).get(null, key2);
+    }
+
+    @Test
+    void testRequestSyncReadsMetadataOnce() {
+        URL url = mockUrl("once");
+        Buf key = serialize(url);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        DiskMetadata meta = new DiskMetadata(2L * blockSize, 2, BitSet.valueOf(new long[]{0b11}));
+        when(fileMetadata.get(null, key)).thenReturn(serializeMetadata(meta));
+        when(fileContent.getRange(eq(null), any(), eq(false), eq(false))).thenAnswer(inv -> Stream.of(
+                LLEntry.of(getBlockKey(key, 0), Buf.wrap(new byte[blockSize])),
+                LLEntry.of(getBlockKey(key, 1), Buf.wrap(new byte[blockSize]))
+        ));
+
+        var result = diskCache.requestSync(url);
+        assertEquals(2, result.getT2().count());
+
+        // The blocks are read with a single range iteration
+        verify(fileContent, times(1)).getRange(eq(null), any(), eq(false), eq(false));
+        verify(fileContent, never()).get(any(), any());
+
+        verify(fileMetadata, times(1)).get(null, key);
+        verify(fileAliases, times(1)).get(null, key);
+    }
+
+    @Test
+    void testBlocksAreReadOnlyWhenConsumed() {
+        URL url = mockUrl("lazy");
+        Buf key = serialize(url);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        DiskMetadata meta = new DiskMetadata(2L * blockSize, 2, BitSet.valueOf(new long[]{0b11}));
+        when(fileMetadata.get(null, key)).thenReturn(serializeMetadata(meta));
+
+        var result = diskCache.requestSync(url);
+        result.getT2().close();
+
+        verify(fileContent, never()).getRange(any(), any(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    void testRangeScanDetectsMissingBlock() {
+        URL url = mockUrl("missing");
+        Buf key = serialize(url);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        DiskMetadata meta = new DiskMetadata(3L * blockSize, 3, BitSet.valueOf(new long[]{0b111}));
+        when(fileMetadata.get(null, key)).thenReturn(serializeMetadata(meta));
+        when(fileContent.getRange(eq(null), any(), eq(false), eq(false))).thenAnswer(inv -> Stream.of(
+                LLEntry.of(getBlockKey(key, 0), Buf.wrap(new byte[blockSize])),
+                LLEntry.of(getBlockKey(key, 2), Buf.wrap(new byte[blockSize]))
+        ));
+
+        try (var blocks = diskCache.requestContentSync(url)) {
+            assertThrows(IllegalStateException.class, blocks::toList);
+        }
+    }
+
+    @Test
+    void testReadAheadIsBoundedAndCancellable() {
+        URL url = mockUrl("read-ahead");
+        Buf key = serialize(url);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        DiskMetadata meta = new DiskMetadata(8L * blockSize, 8, BitSet.valueOf(new long[]{0xFF}));
+        when(fileMetadata.get(null, key)).thenReturn(serializeMetadata(meta));
+        AtomicInteger readBlocks = new AtomicInteger();
+        AtomicBoolean closed = new AtomicBoolean();
+        when(fileContent.getRange(eq(null), any(), eq(false), eq(false))).thenAnswer(inv -> IntStream
+                .range(0, 8)
+                .mapToObj(blockId -> LLEntry.of(getBlockKey(key, blockId), Buf.wrap(new byte[blockSize])))
+                .peek(entry -> readBlocks.incrementAndGet())
+                .onClose(() -> closed.set(true)));
+
+        int readAheadBlocks = DiskCacheOptions.DEFAULT.readAheadBlocks();
+        StepVerifier
+                .create(diskCache.requestContent(url), 1)
+                .expectNextCount(1)
+                .thenAwait(Duration.ofMillis(200))
+                // The stream iterator looks one entry ahead to detect completion
+                .then(() -> assertEquals(readAheadBlocks + 1, readBlocks.get()))
+                .thenCancel()
+                .verify();
+        assertTrue(closed.get());
+    }
+
+    @Test
+    void testDataBlockIsSplitIntoSmallerBlocks() {
+        int blockSize = FileSponge.BLOCK_SIZE / 4;
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache,
+                DiskCacheOptions.DEFAULT.withBlockSize(blockSize));
+        URL url = mockUrl("small-blocks");
+        Buf key = serialize(url);
+        when(fileMetadata.get(null, key)).thenReturn(serializeMetadata(DiskMetadata.create(FileSponge.BLOCK_SIZE + 10L, blockSize)));
+
+        byte[] data = new byte[FileSponge.BLOCK_SIZE];
+        data[blockSize] = 1;
+        diskCache.writeContentBlockSync(url, DataBlock.of(0, data.length, Buf.wrap(data)), false);
+
+        ArgumentCaptor<Stream<LLEntry>> captor = ArgumentCaptor.forClass(Stream.class);
+        verify(fileContent, times(4)).putMulti(captor.capture());
+        var entries = captor.getAllValues().stream().flatMap(s -> s).toList();
+        assertEquals(4, entries.size());
+        assertEquals(getBlockKey(key, 1), entries.get(1).getKey());
+        assertEquals(blockSize, entries.get(1).getValue().size());
+        assertEquals(1, entries.get(1).getValue().getByte(0));
+        assertTrue(diskCache.requestDiskMetadataSync(url).isDownloadedBlock(3));
+        assertFalse(diskCache.requestDiskMetadataSync(url).isDownloadedBlock(4));
+    }
+
+    @Test
+    void testDataBlocksAreJoinedIntoLargerBlocks() {
+        int blockSize = FileSponge.BLOCK_SIZE * 2;
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache,
+                DiskCacheOptions.DEFAULT.withBlockSize(blockSize));
+        URL url = mockUrl("large-blocks");
+        Buf key = serialize(url);
+        when(fileMetadata.get(null, key)).thenReturn(serializeMetadata(DiskMetadata.create(blockSize, blockSize)));
+
+        byte[] second = new byte[FileSponge.BLOCK_SIZE];
+        second[0] = 2;
+        diskCache.writeContentBlockSync(url, DataBlock.of(FileSponge.BLOCK_SIZE, second.length, Buf.wrap(second)), false);
+        verify(fileContent, never()).putMulti(any());
+        assertFalse(diskCache.requestDiskMetadataSync(url).isDownloadedBlock(0));
+
+        byte[] first = new byte[FileSponge.BLOCK_SIZE];
+        diskCache.writeContentBlockSync(url, DataBlock.of(0, first.length, Buf.wrap(first)), false);
+        ArgumentCaptor<Stream<LLEntry>> captor = ArgumentCaptor.forClass(Stream.class);
+        verify(fileContent, times(1)).putMulti(captor.capture());
+        var entries = captor.getValue().toList();
+        assertEquals(1, entries.size());
+        assertEquals(getBlockKey(key, 0), entries.get(0).getKey());
+        assertEquals(blockSize, entries.get(0).getValue().size());
+        assertEquals(2, entries.get(0).getValue().getByte(FileSponge.BLOCK_SIZE));
+        assertTrue(diskCache.requestDiskMetadataSync(url).isDownloadedFully());
+    }
+
+    @Test
+    void testPartsOverTheAssembledBlocksMaxSizeAreDiscarded() {
+        int blockSize = FileSponge.BLOCK_SIZE * 2;
+        // The received bytes of the block are tracked too, so the block doesn't fit
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache,
+                DiskCacheOptions.DEFAULT.withBlockSize(blockSize).withAssembledBlocksMaxSize(blockSize));
+        URL url = mockUrl("discarded-parts");
+        Buf key = serialize(url);
+        when(fileMetadata.get(null, key)).thenReturn(serializeMetadata(DiskMetadata.create(blockSize, blockSize)));
+
+        byte[] part = new byte[FileSponge.BLOCK_SIZE];
+        diskCache.writeContentBlockSync(url, DataBlock.of(FileSponge.BLOCK_SIZE, part.length, Buf.wrap(part)), false);
+        diskCache.writeContentBlockSync(url, DataBlock.of(0, part.length, Buf.wrap(part)), false);
+
+        verify(fileContent, never()).putMulti(any());
+        assertFalse(diskCache.requestDiskMetadataSync(url).isDownloadedBlock(0));
+    }
+
+    @Test
+    void testInlineMaxSizeIsReducedToTheBlockSize() {
+        var options = DiskCacheOptions.DEFAULT.withBlockSize(1024);
+        assertEquals(1024, options.inlineMaxSize());
+    }
+
+    @Test
+    void testSmallFileIsStoredInline() {
+        URL url = mockUrl("small");
+        Buf key = serialize(url);
+        Buf metaBuf = serializeMetadata(DiskMetadata.create(100));
+        when(fileMetadata.get(null, key)).thenReturn(metaBuf);
+
+        byte[] data = new byte[100];
+        data[99] = 7;
+        diskCache.writeContentBlockSync(url, DataBlock.of(0, data.length, Buf.wrap(data)), false);
+
+        ArgumentCaptor<SerializationFunction<Buf, Buf>> captor = ArgumentCaptor.forClass(SerializationFunction.class);
+        verify(fileMetadata, times(1)).update(eq(key), captor.capture(), any());
+        Buf storedBuf = captor.getValue().apply(metaBuf);
+        assertTrue(deserializeMetadata(storedBuf).isDownloadedFully());
+        when(fileMetadata.get(null, key)).thenReturn(storedBuf);
+
+        // A hit is served by the metadata lookup alone
+        var blocks = diskCache.requestContentSync(url).toList();
+        assertEquals(1, blocks.size());
+        assertEquals(Buf.wrap(data), blocks.get(0).getData());
+        assertEquals(1, diskCache.requestContentSync(url, 99, 10).toList().get(0).getLength());
+        verifyNoInteractions(fileContent);
+    }
+
+    @Test
+    void testBlocksAreCompressed() {
+        int blockSize = FileSponge.BLOCK_SIZE;
+        URL url = mockUrl("compressed");
+        Buf key = serialize(url);
+        when(fileMetadata.get(null, key)).thenReturn(serializeMetadata(
+                DiskMetadata.create(2L * blockSize, blockSize).withCodecId(BlockCodec.DEFLATE.id())));
+
+        byte[] text = new byte[blockSize];
+        for (int i = 0; i < text.length; i++) {
+            text[i] = (byte) ('a' + i % 26);
+        }
+        byte[] media = new byte[blockSize];
+        new java.util.Random(0).nextBytes(media);
+        diskCache.writeContentBlockSync(url, DataBlock.of(0, blockSize, Buf.wrap(text)), false);
+        diskCache.writeContentBlockSync(url, DataBlock.of(blockSize, blockSize, Buf.wrap(media)), false);
+
+        ArgumentCaptor<Stream<LLEntry>> captor = ArgumentCaptor.forClass(Stream.class);
+        verify(fileContent, times(2)).putMulti(captor.capture());
+        var entries = captor.getAllValues().stream().flatMap(s -> s).toList();
+        assertTrue(entries.get(0).getValue().size() < blockSize / 10);
+        // Data that doesn't compress is stored as it is
+        assertEquals(blockSize + 1, entries.get(1).getValue().size());
+
+        when(fileMetadata.get(null, key)).thenReturn(serializeMetadata(
+                DiskMetadata.create(2L * blockSize, blockSize)
+                        .withCodecId(BlockCodec.DEFLATE.id())
+                        .withDownloadedBlocks(BitSet.valueOf(new long[]{0b11}))));
+        when(fileContent.getRange(eq(null), any(), eq(false), eq(false))).thenAnswer(inv -> entries.stream());
+        var blocks = diskCache.requestContentSync(url).toList();
+        assertEquals(Buf.wrap(text), blocks.get(0).getData());
+        assertEquals(Buf.wrap(media), blocks.get(1).getData());
+    }
+
+    @Test
+    void testDeduplicatedBlocksAreStoredOnce() {
+        var content = mapBacked(fileContent);
+        var metadata = mapBacked(fileMetadata);
+        LLDictionary blockContent = mock(LLDictionary.class);
+        var blocks = mapBacked(blockContent);
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, blockContent, shouldCache,
+                DiskCacheOptions.DEFAULT.withDeduplicateBlocks(true).withBlockCodec(BlockCodec.NONE));
+        int blockSize = FileSponge.BLOCK_SIZE;
+        byte[] shared = new byte[blockSize];
+        shared[0] = 1;
+        URL url1 = mockUrl("dedup-1");
+        URL url2 = mockUrl("dedup-2");
+        for (URL url : List.of(url1, url2)) {
+            diskCache.writeMetadataSync(url, new Metadata(blockSize), false);
+            diskCache.writeContentBlockSync(url, DataBlock.of(0, blockSize, Buf.wrap(shared)), false);
+        }
+        // Writing the same block again doesn't add a reference
+        diskCache.writeContentBlockSync(url1, DataBlock.of(0, blockSize, Buf.wrap(shared)), false);
+
+        // One block, its reference count and the stored bytes of its stripe
+        assertEquals(3, blocks.size());
+        verify(blockContent, times(1)).put(argThat(key -> key.size() == 32), any(), any());
+        assertEquals(Buf.wrap(shared), diskCache.requestContentSync(url2).toList().get(0).getData());
+
+        diskCache.deleteContentSync(url1);
+        assertEquals(3, blocks.size());
+        assertEquals(Buf.wrap(shared), diskCache.requestContentSync(url2).toList().get(0).getData());
+
+        diskCache.deleteContentSync(url2);
+        assertTrue(blocks.isEmpty());
+        assertTrue(content.isEmpty());
+        assertTrue(metadata.isEmpty());
+    }
+
+    @Test
+    void testBlocksAreStoredInSegments(@TempDir Path segmentsDirectory) throws IOException {
+        var content = mapBacked(fileContent);
+        mapBacked(fileMetadata);
+        var options = DiskCacheOptions.DEFAULT.withSegmentsDirectory(segmentsDirectory).withBlockCodec(BlockCodec.NONE);
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache, options);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        List<URL> urls = List.of(mockUrl("segment-1"), mockUrl("segment-2"), mockUrl("segment-3"));
+        for (int i = 0; i < urls.size(); i++) {
+            byte[] data = new byte[blockSize];
+            data[0] = (byte) i;
+            diskCache.writeMetadataSync(urls.get(i), new Metadata(blockSize), false);
+            diskCache.writeContentBlockSync(urls.get(i), DataBlock.of(0, blockSize, Buf.wrap(data)), false);
+        }
+        // The database stores only the locations of the blocks
+        content.values().forEach(location -> assertEquals(SegmentStore.LOCATION_SIZE, location.size()));
+        assertEquals(2, diskCache.requestContentSync(urls.get(2)).toList().get(0).getData().getByte(0));
+        diskCache.close();
+
+        // Reopening the cache starts a new segment, so the first one can be compacted
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache, options);
+        diskCache.deleteContentSync(urls.get(0));
+        diskCache.deleteContentSync(urls.get(1));
+        clearInvocations(fileMetadata);
+        diskCache.compactSegmentsSync();
+        // The live bytes of the segments are counted, so the metadata of the files is not scanned
+        verify(fileMetadata, never()).getRange(any(), any(), anyBoolean(), anyBoolean());
+        assertEquals(2, diskCache.requestContentSync(urls.get(2)).toList().get(0).getData().getByte(0));
+        try (var segments = Files.list(segmentsDirectory)) {
+            assertEquals(2, segments.count());
+        }
+        // The compacted segment is deleted by the next compaction
+        diskCache.compactSegmentsSync();
+        assertEquals(2, diskCache.requestContentSync(urls.get(2)).toList().get(0).getData().getByte(0));
+        try (var segments = Files.list(segmentsDirectory)) {
+            assertEquals(1, segments.count());
+        }
+        diskCache.close();
+    }
+
+    @Test
+    void testTransferToWritesTheRange(@TempDir Path segmentsDirectory) {
+        mapBacked(fileContent);
+        mapBacked(fileMetadata);
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache,
+                DiskCacheOptions.DEFAULT.withSegmentsDirectory(segmentsDirectory));
+        int blockSize = FileSponge.BLOCK_SIZE;
+        byte[] content = new byte[3 * blockSize];
+        // The first block doesn't compress, the other blocks are compressed
+        new Random(0).nextBytes(content);
+        Arrays.fill(content, blockSize, content.length, (byte) 7);
+        URL url = mockUrl("transfer");
+        diskCache.writeMetadataSync(url, new Metadata(content.length), false);
+        diskCache.writeContentBlockSync(url, DataBlock.of(0, blockSize, Buf.wrap(content, 0, blockSize)), false);
+
+        var out = new ByteArrayOutputStream();
+        assertEquals(-1, diskCache.transferToSync(url, 0, -1, Channels.newChannel(out)));
+        assertEquals(0, out.size());
+
+        diskCache.writeContentBlockSync(url,
+                DataBlock.of(blockSize, 2 * blockSize, Buf.wrap(content, blockSize, 2 * blockSize)), false);
+        long offset = blockSize - 10;
+        assertEquals(20, diskCache.transferToSync(url, offset, 20, Channels.newChannel(out)));
+        assertArrayEquals(Arrays.copyOfRange(content, (int) offset, (int) offset + 20), out.toByteArray());
+        out.reset();
+        clearInvocations(fileContent);
+        assertEquals(content.length, diskCache.transferToSync(url, 0, -1, Channels.newChannel(out)));
+        assertArrayEquals(content, out.toByteArray());
+        // The blocks are read with a single range iteration
+        verify(fileContent, times(1)).getRange(eq(null), any(), eq(false), eq(false));
+        verify(fileContent, never()).get(any(), any());
+    }
+
+    @Test
+    void testTransferToRejectsNonBlockingChannels() throws IOException {
+        URL url = mockUrl("non-blocking");
+        var pipe = Pipe.open();
+        try (var sink = pipe.sink()) {
+            sink.configureBlocking(false);
+            assertThrows(IllegalArgumentException.class, () -> diskCache.transferToSync(url, 0, -1, sink));
+            assertThrows(IllegalArgumentException.class, () -> FileSpongeUtils.writeFully(sink, Buf.wrap(new byte[1])));
+        } finally {
+            pipe.source().close();
+        }
+    }
+
+    @Test
+    void testEvictionRemovesPartialDownloadsThenLeastRecentlyUsedFiles() {
+        mapBacked(fileContent);
+        var metadata = mapBacked(fileMetadata);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        var clock = new TestClock();
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache,
+                DiskCacheOptions.DEFAULT.withMaxSize(5L * blockSize / 2).withBlockCodec(BlockCodec.NONE).withClock(clock));
+        URL url1 = mockUrl("evict-1");
+        URL url2 = mockUrl("evict-2");
+        URL partialUrl = mockUrl("evict-partial");
+        URL url3 = mockUrl("evict-3");
+        Buf block = Buf.wrap(new byte[blockSize]);
+        for (URL url : List.of(url1, url2)) {
+            diskCache.writeMetadataSync(url, new Metadata(blockSize), false);
+            diskCache.writeContentBlockSync(url, DataBlock.of(0, blockSize, block), false);
+            clock.advance(Duration.ofMillis(5));
+        }
+        diskCache.requestContentSync(url1).close();
+        clock.advance(Duration.ofMillis(5));
+
+        diskCache.writeMetadataSync(partialUrl, new Metadata(2L * blockSize), false);
+        diskCache.writeContentBlockSync(partialUrl, DataBlock.of(0, blockSize, block), false);
+        diskCache.evictSync();
+        // Reading the metadata through the cache would count as an access
+        assertFalse(metadata.containsKey(serialize(partialUrl)));
+        assertTrue(metadata.containsKey(serialize(url2)));
+
+        diskCache.writeMetadataSync(url3, new Metadata(blockSize), false);
+        diskCache.writeContentBlockSync(url3, DataBlock.of(0, blockSize, block), false);
+        diskCache.evictSync();
+        assertFalse(metadata.containsKey(serialize(url2)));
+        assertTrue(metadata.containsKey(serialize(url1)));
+        assertTrue(metadata.containsKey(serialize(url3)));
+    }
+
+    @Test
+    void testEvictionUsesTheAccessTimesStoredBeforeClosing() {
+        mapBacked(fileContent);
+        var metadata = mapBacked(fileMetadata);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        var clock = new TestClock();
+        var options = DiskCacheOptions.DEFAULT
+                .withMaxSize(5L * blockSize / 2)
+                .withBlockCodec(BlockCodec.NONE)
+                .withClock(clock);
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache, options);
+        URL url1 = mockUrl("stored-access-1");
+        URL url2 = mockUrl("stored-access-2");
+        Buf block = Buf.wrap(new byte[blockSize]);
+        for (URL url : List.of(url1, url2)) {
+            diskCache.writeMetadataSync(url, new Metadata(blockSize), false);
+            diskCache.writeContentBlockSync(url, DataBlock.of(0, blockSize, block), false);
+            clock.advance(Duration.ofMillis(5));
+        }
+        diskCache.requestContentSync(url1).close();
+        diskCache.close();
+
+        // The access times in memory are lost when the cache is opened again
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache, options);
+        URL url3 = mockUrl("stored-access-3");
+        diskCache.writeMetadataSync(url3, new Metadata(blockSize), false);
+        diskCache.writeContentBlockSync(url3, DataBlock.of(0, blockSize, block), false);
+        diskCache.evictSync();
+        assertFalse(metadata.containsKey(serialize(url2)));
+        assertTrue(metadata.containsKey(serialize(url1)));
+        assertTrue(metadata.containsKey(serialize(url3)));
+    }
+
+    @Test
+    void testEvictionCountsTheStoredBytes() {
+        mapBacked(fileContent);
+        var metadata = mapBacked(fileMetadata);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache,
+                DiskCacheOptions.DEFAULT.withMaxSize(5L * blockSize / 2).withBlockCodec(BlockCodec.DEFLATE));
+        List<URL> urls = List.of(mockUrl("compressed-1"), mockUrl("compressed-2"), mockUrl("compressed-3"));
+        for (URL url : urls) {
+            diskCache.writeMetadataSync(url, new Metadata(blockSize), false);
+            diskCache.writeContentBlockSync(url, DataBlock.of(0, blockSize, Buf.wrap(new byte[blockSize])), false);
+        }
+        diskCache.evictSync();
+        // The compressed blocks fit in the max size
+        for (URL url : urls) {
+            assertTrue(metadata.containsKey(serialize(url)));
+        }
+    }
+
+    @Test
+    void testRewrittenBlocksAreNotCountedTwice() {
+        mapBacked(fileContent);
+        var metadata = mapBacked(fileMetadata);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache,
+                DiskCacheOptions.DEFAULT.withMaxSize(5L * blockSize / 2).withBlockCodec(BlockCodec.NONE));
+        URL rewrittenUrl = mockUrl("rewritten");
+        URL url = mockUrl("written-once");
+        diskCache.writeMetadataSync(rewrittenUrl, new Metadata(blockSize), false);
+        diskCache.writeMetadataSync(url, new Metadata(blockSize), false);
+        for (int i = 0; i < 3; i++) {
+            diskCache.writeContentBlockSync(rewrittenUrl, DataBlock.of(0, blockSize, Buf.wrap(new byte[blockSize])), false);
+        }
+        diskCache.writeContentBlockSync(url, DataBlock.of(0, blockSize, Buf.wrap(new byte[blockSize])), false);
+        diskCache.evictSync();
+        // The two blocks fit in the max size
+        assertTrue(metadata.containsKey(serialize(rewrittenUrl)));
+        assertTrue(metadata.containsKey(serialize(url)));
+    }
+
+    @Test
+    void testDeleteUsesTheCurrentMetadata() {
+        mapBacked(fileContent);
+        var metadata = mapBacked(fileMetadata);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache,
+                DiskCacheOptions.DEFAULT.withMaxSize(5L * blockSize / 2).withBlockCodec(BlockCodec.NONE));
+        URL deletedUrl = mockUrl("deleted");
+        // The blocks of a file with an unknown size are stored in its metadata immediately
+        diskCache.writeMetadataSync(deletedUrl, new Metadata(-1), false);
+        var staleEntry = diskCache.resolveSync(deletedUrl);
+        diskCache.writeContentBlockSync(deletedUrl, DataBlock.of(0, blockSize, Buf.wrap(new byte[blockSize])), false);
+        diskCache.deleteContentSync(staleEntry);
+        assertFalse(metadata.containsKey(serialize(deletedUrl)));
+
+        List<URL> urls = List.of(mockUrl("kept-1"), mockUrl("kept-2"));
+        for (URL url : urls) {
+            diskCache.writeMetadataSync(url, new Metadata(blockSize), false);
+            diskCache.writeContentBlockSync(url, DataBlock.of(0, blockSize, Buf.wrap(new byte[blockSize])), false);
+        }
+        diskCache.evictSync();
+        // The bytes of the deleted block are not counted anymore
+        for (URL url : urls) {
+            assertTrue(metadata.containsKey(serialize(url)));
+        }
+    }
+
+    @Test
+    void testRemovalListenersAreCalledForRemovedAndReplacedFiles() {
+        mapBacked(fileContent);
+        mapBacked(fileMetadata);
+        List<Buf> removedKeys = new ArrayList<>();
+        diskCache.addRemovalListener(removedKeys::add);
+        URL url = mockUrl("listened");
+        Buf key = serialize(url);
+        diskCache.writeMetadataSync(url, new Metadata(100), false);
+        diskCache.writeMetadataSync(url, new Metadata(100), false);
+        assertTrue(removedKeys.isEmpty());
+
+        diskCache.writeMetadataSync(url, new Metadata(200), false);
+        assertEquals(List.of(key), removedKeys);
+        diskCache.deleteContentSync(url);
+        assertEquals(List.of(key, key), removedKeys);
+    }
+
+    @Test
+    void testExpiredFilesAreMissesAndAreRemoved() {
+        var content = mapBacked(fileContent);
+        var metadata = mapBacked(fileMetadata);
+        var clock = new TestClock();
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, shouldCache,
+                DiskCacheOptions.DEFAULT.withBlockCodec(BlockCodec.NONE).withClock(clock));
+        URL expiringUrl = mockUrl("expiring");
+        URL url = mockUrl("not-expiring");
+        Buf block = Buf.wrap(new byte[FileSponge.BLOCK_SIZE]);
+        diskCache.writeMetadataSync(expiringUrl, new Metadata(FileSponge.BLOCK_SIZE), false, Duration.ofMillis(1));
+        diskCache.writeContentBlockSync(expiringUrl, DataBlock.of(0, FileSponge.BLOCK_SIZE, block), false);
+        diskCache.writeMetadataSync(url, new Metadata(FileSponge.BLOCK_SIZE), false);
+        diskCache.writeContentBlockSync(url, DataBlock.of(0, FileSponge.BLOCK_SIZE, block), false);
+        clock.advance(Duration.ofMillis(5));
+
+        assertNull(diskCache.requestDiskMetadataSync(expiringUrl));
+        assertNotNull(diskCache.requestDiskMetadataSync(url));
+
+        diskCache.sweepExpiredSync();
+        assertFalse(metadata.containsKey(serialize(expiringUrl)));
+        assertTrue(metadata.containsKey(serialize(url)));
+        assertEquals(1, content.size());
     }
 
     @Test
@@ -69,6 +807,7 @@ public class DiskCacheImplTest {
 
     @Test
     void testWriteMetadataTwice() {
+        var metadata = mapBacked(fileMetadata);
         URL url = mockUrl("test");
         Buf key = serialize(url);
         Metadata meta1 = new Metadata(100);
@@ -76,28 +815,63 @@ public class DiskCacheImplTest {
 
         // 1. Write first metadata
         diskCache.writeMetadataSync(url, meta1, false);
-
-        // Capture update lambda
-        ArgumentCaptor<SerializationFunction<Buf, Buf>> captor = ArgumentCaptor.forClass(SerializationFunction.class);
-        verify(fileMetadata).update(eq(key), captor.capture(), any());
-
-        // Simulate update on empty value
-        Buf result1 = captor.getValue().apply(null);
-        assertNotNull(result1);
+        assertEquals(100, deserializeMetadata(metadata.get(key)).size());
 
         // 2. Write second metadata (different size)
-        reset(fileMetadata);
         diskCache.writeMetadataSync(url, meta2, false);
-        verify(fileMetadata).update(eq(key), captor.capture(), any());
 
-        // Simulate update on existing value (old result1)
-        Buf result2 = captor.getValue().apply(result1);
-
-        // If bug exists, result2 is same as result1 (ignoring meta2)
-        DiskMetadata diskMeta2 = deserializeMetadata(result2);
+        // If bug exists, the stored metadata is the first one (ignoring meta2)
+        DiskMetadata diskMeta2 = deserializeMetadata(metadata.get(key));
         assertEquals(200, diskMeta2.size(), "Metadata size should be updated if different");
     }
 
+    @Test
+    void testReplacedFileBlocksAreDeletedBeforeTheNewFileIsVisible() {
+        var content = mapBacked(fileContent);
+        var metadata = mapBacked(fileMetadata);
+        int blockSize = FileSponge.BLOCK_SIZE;
+        URL url = mockUrl("replaced");
+        Buf key = serialize(url);
+        diskCache.writeMetadataSync(url, new Metadata(2L * blockSize), false);
+        diskCache.writeContentBlockSync(url, DataBlock.of(0, blockSize, Buf.wrap(new byte[blockSize])), false);
+
+        List<Buf> metadataOnDelete = new ArrayList<>();
+        doAnswer(inv -> {
+            metadataOnDelete.add(metadata.get(key));
+            return content.remove(inv.<Buf>getArgument(0));
+        }).when(fileContent).remove(any(), any());
+        diskCache.writeMetadataSync(url, new Metadata(3L * blockSize), false);
+
+        assertEquals(1, metadataOnDelete.size());
+        assertNull(metadataOnDelete.get(0));
+        assertTrue(content.isEmpty());
+        assertEquals(3L * blockSize, deserializeMetadata(metadata.get(key)).size());
+    }
+
+    @Test
+    void testDeduplicatedBlockOfFailedWriteIsNotReferenced() {
+        mapBacked(fileMetadata);
+        mapBacked(fileContent);
+        LLDictionary blockContent = mock(LLDictionary.class);
+        var blocks = mapBacked(blockContent);
+        diskCache = new DiskCacheImpl(null, fileContent, fileMetadata, fileAliases, fileHashes, blockContent, shouldCache,
+                DiskCacheOptions.DEFAULT.withDeduplicateBlocks(true));
+        int blockSize = FileSponge.BLOCK_SIZE;
+        URL url = mockUrl("failed-dedup");
+        diskCache.writeMetadataSync(url, new Metadata(2L * blockSize), false);
+        diskCache.writeContentBlockSync(url, DataBlock.of(0, blockSize, Buf.wrap(new byte[blockSize])), false);
+        // The block, its reference count and the stored bytes of its stripe
+        assertEquals(3, blocks.size());
+
+        doThrow(new IllegalStateException("Write failed")).when(fileContent).putMulti(any());
+        byte[] data = new byte[blockSize];
+        data[0] = 1;
+        assertThrows(RuntimeException.class, () ->
+                diskCache.writeContentBlockSync(url, DataBlock.of(blockSize, blockSize, Buf.wrap(data)), false));
+
+        assertEquals(3, blocks.size());
+    }
+
     @Test
     void testWriteAndGetHash() {
         URL url1 = mockUrl("url1");
@@ -262,6 +1036,51 @@ public class DiskCacheImplTest {
         assertNotEquals(key1, key2, "Serialized StoredFileURLs should be different");
     }
 
+    /**
+     * Back the mocked dictionary with a sorted map
+     */
+    private NavigableMap<Buf, Buf> mapBacked(LLDictionary dictionary) {
+        NavigableMap<Buf, Buf> map = new ConcurrentSkipListMap<>((a, b) -> Arrays.compareUnsigned(a.asArray(), b.asArray()));
+        when(dictionary.get(any(), any())).thenAnswer(inv -> map.get(inv.<Buf>getArgument(1)));
+        when(dictionary.put(any(), any(), any())).thenAnswer(inv -> map.put(inv.getArgument(0), inv.getArgument(1)));
+        when(dictionary.remove(any(), any())).thenAnswer(inv -> map.remove(inv.<Buf>getArgument(0)));
+        doAnswer(inv -> {
+            inv.<Stream<LLEntry>>getArgument(0).forEach(entry -> map.put(entry.getKey(), entry.getValue()));
+            return null;
+        }).when(dictionary).putMulti(any());
+        when(dictionary.update(any(), any(), any())).thenAnswer(inv -> {
+            Buf key = inv.getArgument(0);
+            SerializationFunction<Buf, Buf> updater = inv.getArgument(1);
+            var newValue = updater.apply(map.get(key));
+            if (newValue == null) {
+                map.remove(key);
+            } else {
+                map.put(key, newValue);
+            }
+            return null;
+        });
+        when(dictionary.getRange(any(), any(), anyBoolean(), anyBoolean())).thenAnswer(inv -> {
+            var subMap = subMap(map, inv.getArgument(1));
+            return List.copyOf(subMap.entrySet())
+                    .stream()
+                    .map(entry -> LLEntry.of(entry.getKey(), entry.getValue()));
+        });
+        when(dictionary.getRangeKeys(any(), any(), anyBoolean(), anyBoolean())).thenAnswer(inv -> {
+            return List.copyOf(subMap(map, inv.getArgument(1)).keySet()).stream();
+        });
+        return map;
+    }
+
+    private NavigableMap<Buf, Buf> subMap(NavigableMap<Buf, Buf> map, LLRange range) {
+        if (range.hasMin()) {
+            map = map.tailMap(range.getMin(), true);
+        }
+        if (range.hasMax()) {
+            map = map.headMap(range.getMax(), false);
+        }
+        return map;
+    }
+
     private Buf getBlockKey(Buf urlKey, int blockId) {
         var sizeHint = urlKey.size() + Integer.BYTES;
         BufDataOutput out = BufDataOutput.create(sizeHint);
@@ -310,4 +1129,36 @@ public class DiskCacheImplTest {
         }
         return out.asList();
     }
+
+    /**
+     * Clock that advances only when the test advances it
+     */
+    private static class TestClock extends Clock {
+
+        private final AtomicLong millis = new AtomicLong(Instant.parse("2026-01-01T00:00:00Z").toEpochMilli());
+
+        void advance(Duration duration) {
+            millis.addAndGet(duration.toMillis());
+        }
+
+        @Override
+        public long millis() {
+            return millis.get();
+        }
+
+        @Override
+        public Instant instant() {
+            return Instant.ofEpochMilli(millis());
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return ZoneOffset.UTC;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            throw new UnsupportedOperationException();
+        }
+    }
 }
@@ -0,0 +1,223 @@
+package org.warp.filesponge;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import it.cavallium.buffer.Buf;
+import it.cavallium.buffer.BufDataInput;
+import it.cavallium.buffer.BufDataOutput;
+import it.unimi.dsi.fastutil.booleans.BooleanArrayList;
+import it.cavallium.dbengine.database.serialization.SerializationException;
+import java.util.BitSet;
+import org.junit.jupiter.api.Test;
+import org.warp.filesponge.DiskMetadata.DiskMetadataSerializer;
+
+public class DiskMetadataTest {
+
+	private static final int BLOCK_SIZE = FileSponge.BLOCK_SIZE;
+
+	private final DiskMetadataSerializer serializer = new DiskMetadataSerializer();
+
+	@Test
+	void testCompleteFileIsOnlyHeader() {
+		var size = 4096L * BLOCK_SIZE;
+		var meta = DiskMetadata.create(size);
+		for (int i = 0; i < meta.blocksCount(); i++) {
+			// Stored as they are
+			meta = meta.withDownloadedBlock(i).withAddedStoredSize(BLOCK_SIZE);
+		}
+		assertTrue(meta.isDownloadedFully());
+		var serialized = serialize(meta);
+		assertEquals(serializer.getSerializedSizeHint(), serialized.size());
+		assertEquals(meta, deserialize(serialized));
+	}
+
+	@Test
+	void testEmptyFileIsOnlyHeader() {
+		var meta = DiskMetadata.create(4096L * BLOCK_SIZE);
+		assertFalse(meta.isDownloadedFully());
+		assertEquals(0, meta.downloadedBlocksCount());
+		var serialized = serialize(meta);
+		assertEquals(serializer.getSerializedSizeHint(), serialized.size());
+		assertEquals(meta, deserialize(serialized));
+	}
+
+	@Test
+	void testMostlyDownloadedFileUsesRuns() {
+		var downloadedBlocks = new BitSet();
+		downloadedBlocks.set(0, 4000);
+		var meta = new DiskMetadata(4096L * BLOCK_SIZE, 4096, downloadedBlocks);
+		var serialized = serialize(meta);
+		// One run
+		assertEquals(serializer.getSerializedSizeHint() + 3 * Integer.BYTES, serialized.size());
+		assertEquals(meta, deserialize(serialized));
+		assertEquals(4000, deserialize(serialized).downloadedBlocksCount());
+	}
+
+	@Test
+	void testFragmentedFileUsesBitSet() {
+		var downloadedBlocks = new BitSet();
+		for (int i = 0; i < 4096; i += 2) {
+			downloadedBlocks.set(i);
+		}
+		var meta = new DiskMetadata(4096L * BLOCK_SIZE, 4096, downloadedBlocks);
+		var serialized = serialize(meta);
+		assertEquals(serializer.getSerializedSizeHint() + Integer.BYTES + 4096 / Byte.SIZE, serialized.size());
+		var deserialized = deserialize(serialized);
+		assertEquals(meta, deserialized);
+		assertTrue(deserialized.isDownloadedBlock(4094));
+		assertFalse(deserialized.isDownloadedBlock(4095));
+	}
+
+	@Test
+	void testUnknownSizeGrows() {
+		var meta = DiskMetadata.create(-1).withDownloadedBlock(0).withDownloadedBlock(1);
+		assertEquals(2, meta.blocksCount());
+		assertTrue(meta.isDownloadedFully());
+		assertFalse(meta.isDownloadedBlock(2));
+		assertThrows(IndexOutOfBoundsException.class, () -> meta.withDownloadedBlock(3));
+		assertEquals(meta, deserialize(serialize(meta)));
+	}
+
+	@Test
+	void testDeserializeLegacyFormat() {
+		var out = BufDataOutput.create(64);
+		out.writeInt(-2);
+		out.writeLong(3L * BLOCK_SIZE);
+		out.writeBoolean(true);
+		out.writeBoolean(false);
+		out.writeBoolean(true);
+		var meta = deserialize(out.asList());
+		assertEquals(3L * BLOCK_SIZE, meta.size());
+		assertEquals(3, meta.blocksCount());
+		assertEquals(2, meta.downloadedBlocksCount());
+		assertTrue(meta.isDownloadedBlock(0));
+		assertFalse(meta.isDownloadedBlock(1));
+		assertTrue(meta.isDownloadedBlock(2));
+	}
+
+	@Test
+	void testDownloadedBlocksCannotBeChangedFromOutside() {
+		var blocks = BitSet.valueOf(new long[]{0b011});
+		var meta = new DiskMetadata(3L * BLOCK_SIZE, 3, blocks);
+		blocks.set(2);
+		meta.downloadedBlocks().set(2);
+		assertFalse(meta.isDownloadedBlock(2));
+		assertFalse(meta.isDownloadedFully());
+	}
+
+	@Test
+	void testDownloadedBlocksCountMustMatchTheBlocks() {
+		assertThrows(IllegalStateException.class, () -> new DiskMetadata(3L * BLOCK_SIZE, BLOCK_SIZE,
+				BlockCodec.NONE.id(), false, false, 0, 0, 0, 3, BitSet.valueOf(new long[]{0b011}), 3));
+	}
+
+	@Test
+	@SuppressWarnings("deprecation")
+	void testLegacyConstructorIsEquivalent() {
+		var meta = new DiskMetadata(3L * BLOCK_SIZE, new BooleanArrayList(new boolean[]{true, false, true}));
+		assertEquals(new DiskMetadata(3L * BLOCK_SIZE, 3, BitSet.valueOf(new long[]{0b101})), meta);
+	}
+
+	@Test
+	void testBlockSizeIsStored() {
+		int blockSize = 64 * 1024;
+		var meta = DiskMetadata.create(10L * blockSize + 1, blockSize).withDownloadedBlock(10);
+		assertEquals(11, meta.blocksCount());
+		assertEquals(10L * blockSize, meta.getBlockOffset(10));
+		var deserialized = deserialize(serialize(meta));
+		assertEquals(meta, deserialized);
+		assertEquals(blockSize, deserialized.blockSize());
+	}
+
+	@Test
+	void testCodecIdIsStored() {
+		var meta = DiskMetadata.create(3L * BLOCK_SIZE).withCodecId(BlockCodec.DEFLATE.id());
+		assertEquals(BlockCodec.DEFLATE.id(), deserialize(serialize(meta)).codecId());
+	}
+
+	@Test
+	void testStorageFlagsAreStored() {
+		var meta = DiskMetadata.create(3L * BLOCK_SIZE).withSegmented(true);
+		var deserialized = deserialize(serialize(meta));
+		assertTrue(deserialized.segmented());
+		assertFalse(deserialized.deduplicated());
+	}
+
+	@Test
+	void testExpirationTimeIsStored() {
+		var meta = DiskMetadata.create(3L * BLOCK_SIZE).withExpirationTime(1000);
+		var deserialized = deserialize(serialize(meta));
+		assertEquals(1000, deserialized.expirationTime());
+		assertFalse(deserialized.isExpired(999));
+		assertTrue(deserialized.isExpired(1000));
+		assertFalse(deserialize(serialize(DiskMetadata.create(3L * BLOCK_SIZE))).isExpired(Long.MAX_VALUE));
+	}
+
+	@Test
+	void testStoredSizeAndLastAccessTimeAreStored() {
+		var meta = DiskMetadata.create(3L * BLOCK_SIZE).withStoredSize(1234).withLastAccessTime(5678);
+		var deserialized = deserialize(serialize(meta));
+		assertEquals(1234, deserialized.storedSize());
+		assertEquals(5678, deserialized.lastAccessTime());
+		// The stored size of the files stored as they are is the downloaded bytes, and it's not written
+		var downloaded = new DiskMetadata(3L * BLOCK_SIZE, 3, BitSet.valueOf(new long[]{0b11}));
+		assertEquals(2L * BLOCK_SIZE, downloaded.storedSize());
+		assertEquals(serialize(downloaded.withStoredSize(1234)).size() - Integer.BYTES - Long.BYTES,
+				serialize(downloaded).size());
+	}
+
+	@Test
+	void testOptionalFieldsAreStoredOnlyIfSet() {
+		var meta = DiskMetadata.create(3L * BLOCK_SIZE).withDeduplicated(true);
+		assertEquals(serializer.getSerializedSizeHint(), serialize(meta).size());
+		var expiring = meta.withCodecId(BlockCodec.DEFLATE.id()).withExpirationTime(1000);
+		var serialized = serialize(expiring);
+		assertEquals(serializer.getSerializedSizeHint() + 2 * Integer.BYTES + Integer.BYTES + Long.BYTES,
+				serialized.size());
+		assertEquals(expiring, deserialize(serialized));
+	}
+
+	@Test
+	void testUnknownOptionalFieldsAreSkipped() {
+		var out = BufDataOutput.create(64);
+		out.writeInt(-3);
+		out.writeLong(3L * BLOCK_SIZE);
+		out.writeInt(BLOCK_SIZE);
+		out.writeInt(3);
+		out.writeInt(3);
+		// Codec id field, and a field of a newer version
+		out.writeInt(1 << 16 | 1 << 30);
+		out.writeInt(Integer.BYTES);
+		out.writeInt(BlockCodec.DEFLATE.id());
+		out.writeInt(3);
+		out.write(new byte[3]);
+		out.writeByte(0);
+		var meta = deserialize(out.asList());
+		assertEquals(BlockCodec.DEFLATE.id(), meta.codecId());
+		assertEquals(3, meta.blocksCount());
+		assertTrue(meta.isDownloadedFully());
+	}
+
+	@Test
+	void testUnknownStorageFlagsAreRejected() {
+		var out = BufDataOutput.create(64);
+		out.writeInt(-3);
+		out.writeLong(3L * BLOCK_SIZE);
+		out.writeInt(BLOCK_SIZE);
+		out.writeInt(3);
+		out.writeInt(3);
+		out.writeInt(1 << 15);
+		out.writeByte(0);
+		assertThrows(SerializationException.class, () -> deserialize(out.asList()));
+	}
+
+	private Buf serialize(DiskMetadata meta) {
+		var out = BufDataOutput.create(serializer.getSerializedSizeHint());
+		serializer.serialize(meta, out);
+		return out.asList();
+	}
+
+	private DiskMetadata deserialize(Buf buf) {
+		return serializer.deserialize(BufDataInput.create(buf));
+	}
+}
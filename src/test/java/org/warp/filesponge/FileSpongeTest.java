@@ -0,0 +1,720 @@
+package org.warp.filesponge;
+
+import static java.lang.Math.toIntExact;
+import static org.junit.jupiter.api.Assertions.*;
+
+import it.cavallium.buffer.Buf;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.test.StepVerifier;
+
+public class FileSpongeTest {
+
+	private static final int BLOCKS = 4;
+	private static final int SWARM_BLOCKS = 8;
+
+	private FileSponge fileSponge;
+	private AtomicInteger contentSubscriptions;
+	private AtomicInteger metadataSubscriptions;
+	private List<Long> requestedRanges;
+
+	@BeforeEach
+	void setUp() {
+		fileSponge = new FileSponge();
+		contentSubscriptions = new AtomicInteger();
+		metadataSubscriptions = new AtomicInteger();
+		requestedRanges = new CopyOnWriteArrayList<>();
+		fileSponge.registerSource(new URLsHandler() {
+			@Override
+			public Flux<DataBlock> requestContent(URL url) {
+				return Flux
+						.range(0, BLOCKS)
+						.map(FileSpongeTest::block)
+						.delayElements(Duration.ofMillis(20))
+						.doOnSubscribe(s -> contentSubscriptions.incrementAndGet());
+			}
+
+			@Override
+			public Flux<DataBlock> requestContent(URL url, long offset, long length) {
+				requestedRanges.add(offset);
+				requestedRanges.add(length);
+				return URLsHandler.super.requestContent(url, offset, length);
+			}
+
+			@Override
+			public Mono<Metadata> requestMetadata(URL url) {
+				return Mono
+						.just(new Metadata(BLOCKS * (long) FileSponge.BLOCK_SIZE))
+						.delayElement(Duration.ofMillis(50))
+						.doOnSubscribe(s -> metadataSubscriptions.incrementAndGet());
+			}
+		}).block();
+	}
+
+	@Test
+	void testConcurrentContentRequestsShareDownload() {
+		var url = new TestURL("shared");
+		var requests = Flux
+				.range(0, 8)
+				.flatMap(i -> fileSponge.requestContent(url).count())
+				.collectList();
+
+		StepVerifier
+				.create(requests)
+				.assertNext(counts -> counts.forEach(count -> assertEquals(BLOCKS, count)))
+				.verifyComplete();
+		assertEquals(1, contentSubscriptions.get());
+	}
+
+	@Test
+	void testLateContentRequestReplaysDownloadedBlocks() {
+		var url = new TestURL("late");
+		var first = fileSponge.requestContent(url).collectList();
+		var late = Mono.delay(Duration.ofMillis(50)).then(fileSponge.requestContent(url).collectList());
+
+		StepVerifier
+				.create(Mono.zip(first, late))
+				.assertNext(results -> assertEquals(results.getT1(), results.getT2()))
+				.verifyComplete();
+		assertEquals(1, contentSubscriptions.get());
+	}
+
+	@Test
+	void testLateContentRequestReadsTheBlocksThatAreNotReplayedFromTheCache() {
+		int blocksCount = 24;
+		var subscriptions = new AtomicInteger();
+		Sinks.Empty<Void> lastBlockGate = Sinks.empty();
+		var replayingSponge = new FileSponge();
+		replayingSponge.registerCache(new TestCache(blocksCount * (long) FileSponge.BLOCK_SIZE)).block();
+		replayingSponge.registerSource(new CountingSource(subscriptions, Flux
+				.range(0, blocksCount - 1)
+				.map(FileSpongeTest::block)
+				.concatWith(lastBlockGate.asMono().then(Mono.fromCallable(() -> block(blocksCount - 1)))))).block();
+		var url = new TestURL("late-after-replay");
+
+		var first = replayingSponge.requestContent(url).map(DataBlock::getOffset).collectList().toFuture();
+		// Most blocks have already been emitted, only the last ones are replayed
+		var late = replayingSponge.requestContent(url).map(DataBlock::getOffset).collectList().toFuture();
+		lastBlockGate.tryEmitEmpty();
+
+		var offsets = LongStream.range(0, blocksCount).map(i -> i * FileSponge.BLOCK_SIZE).boxed().toList();
+		assertEquals(offsets, first.join());
+		assertEquals(offsets, late.join());
+		assertEquals(1, subscriptions.get());
+	}
+
+	@Test
+	void testLateContentRequestDoesNotSlowDownTheDownload() {
+		int blocksCount = 40;
+		Sinks.Empty<Void> sourceGate = Sinks.empty();
+		Sinks.Empty<Void> cacheReadsGate = Sinks.empty();
+		var cacheReadsGated = new AtomicBoolean();
+		var sponge = new FileSponge();
+		sponge.registerCache(new TestCache(blocksCount * (long) FileSponge.BLOCK_SIZE) {
+			@Override
+			public Flux<DataBlock> requestContent(URL url, long offset, long length) {
+				var content = super.requestContent(url, offset, length);
+				return cacheReadsGated.get() ? cacheReadsGate.asMono().thenMany(content) : content;
+			}
+		}).block();
+		sponge.registerSource(new CountingSource(new AtomicInteger(), Flux
+				.range(0, blocksCount / 2)
+				.map(FileSpongeTest::block)
+				.concatWith(sourceGate.asMono().thenMany(Flux.range(blocksCount / 2, blocksCount / 2).map(FileSpongeTest::block))))).block();
+		var url = new TestURL("slow-late-request");
+
+		var first = sponge.requestContent(url).map(DataBlock::getOffset).collectList().toFuture();
+		// The late request is stuck reading the first blocks from the cache
+		cacheReadsGated.set(true);
+		var late = sponge.requestContent(url).map(DataBlock::getOffset).collectList().toFuture();
+		sourceGate.tryEmitEmpty();
+
+		var offsets = LongStream.range(0, blocksCount).map(i -> i * FileSponge.BLOCK_SIZE).boxed().toList();
+		assertEquals(offsets, first.orTimeout(1, TimeUnit.SECONDS).join());
+		assertFalse(late.isDone());
+		cacheReadsGate.tryEmitEmpty();
+		assertEquals(offsets, late.orTimeout(1, TimeUnit.SECONDS).join());
+	}
+
+	@Test
+	void testSequentialContentRequestsAreNotShared() {
+		var url = new TestURL("sequential");
+		fileSponge.requestContent(url).blockLast();
+		fileSponge.requestContent(url).blockLast();
+		assertEquals(2, contentSubscriptions.get());
+	}
+
+	@Test
+	void testConcurrentMetadataRequestsShareDownload() {
+		var url = new TestURL("metadata");
+		var requests = Flux
+				.range(0, 8)
+				.flatMap(i -> fileSponge.requestMetadata(url))
+				.collectList();
+
+		StepVerifier
+				.create(requests)
+				.assertNext(metas -> {
+					assertEquals(8, metas.size());
+					metas.forEach(meta -> assertEquals(BLOCKS * (long) FileSponge.BLOCK_SIZE, meta.size()));
+				})
+				.verifyComplete();
+		assertEquals(1, metadataSubscriptions.get());
+	}
+
+	@Test
+	void testRangeRequestTrimsBlocks() {
+		var url = new TestURL("range");
+		long offset = FileSponge.BLOCK_SIZE + 10;
+		var range = fileSponge.requestContent(url, offset, FileSponge.BLOCK_SIZE).collectList();
+
+		StepVerifier
+				.create(range)
+				.assertNext(blocks -> {
+					assertEquals(2, blocks.size());
+					assertEquals(offset, blocks.get(0).getOffset());
+					assertEquals(FileSponge.BLOCK_SIZE - 10, blocks.get(0).getLength());
+					assertEquals(FileSponge.BLOCK_SIZE - 10, blocks.get(0).getData().size());
+					assertEquals(2L * FileSponge.BLOCK_SIZE, blocks.get(1).getOffset());
+					assertEquals(10, blocks.get(1).getLength());
+					assertEquals(2, blocks.get(1).getData().getByte(0));
+				})
+				.verifyComplete();
+	}
+
+	@Test
+	void testRangeLongerThanTheFileReadsUntilTheEnd() {
+		var url = new TestURL("long-range");
+		long offset = FileSponge.BLOCK_SIZE + 10;
+
+		StepVerifier
+				.create(fileSponge.requestContent(url, offset, Long.MAX_VALUE).map(DataBlock::getOffset))
+				.expectNext(offset)
+				.expectNextSequence(LongStream.range(2, BLOCKS).map(i -> i * FileSponge.BLOCK_SIZE).boxed().toList())
+				.verifyComplete();
+	}
+
+	@Test
+	void testPartiallyCachedContentDownloadsOnlyMissingBlocks() {
+		var url = new TestURL("partial");
+		var cache = new TestCache(BLOCKS * (long) FileSponge.BLOCK_SIZE);
+		cache.blocks.put(0, block(0));
+		cache.blocks.put(2, block(2));
+		fileSponge.registerCache(cache).block();
+
+		StepVerifier
+				.create(fileSponge.requestContent(url).map(DataBlock::getId).collectList())
+				.expectNext(List.of(0, 1, 2, 3))
+				.verifyComplete();
+		long blockSize = FileSponge.BLOCK_SIZE;
+		assertEquals(List.of(blockSize, blockSize, 3 * blockSize, blockSize), requestedRanges);
+		fileSponge.flushCacheWrites().block();
+		assertEquals(BLOCKS, cache.blocks.size());
+	}
+
+	@Test
+	void testTransferToWritesTheDownloadedRange() {
+		var url = new TestURL("transfer");
+		var out = new ByteArrayOutputStream();
+		long offset = 2L * FileSponge.BLOCK_SIZE - 1;
+
+		StepVerifier
+				.create(fileSponge.transferTo(url, offset, 2, Channels.newChannel(out)))
+				.expectNext(2L)
+				.verifyComplete();
+		assertArrayEquals(new byte[] {0, 2}, out.toByteArray());
+	}
+
+	@Test
+	void testSecondSourceIsNotRequestedWhenTheFirstAnswers() {
+		var hedgedSponge = new FileSponge();
+		var subscriptions = new AtomicInteger();
+		for (int i = 0; i < 2; i++) {
+			hedgedSponge.registerSource(new CountingSource(subscriptions, Flux.just(block(0)))).block();
+		}
+
+		StepVerifier
+				.create(hedgedSponge.requestContent(new TestURL("hedged")).count())
+				.expectNext(1L)
+				.verifyComplete();
+		assertEquals(1, subscriptions.get());
+	}
+
+	@Test
+	void testFailedSourceIsFollowedImmediately() {
+		var hedgedSponge = new FileSponge();
+		var subscriptions = new AtomicInteger();
+		hedgedSponge.registerSource(new CountingSource(subscriptions, Flux.error(new IllegalStateException()))).block();
+		hedgedSponge.registerSource(new CountingSource(subscriptions, Flux.just(block(0)))).block();
+
+		StepVerifier
+				.create(hedgedSponge.requestContent(new TestURL("failed")).count())
+				.expectNext(1L)
+				.expectComplete()
+				.verify(Duration.ofMillis(400));
+	}
+
+	@Test
+	void testSourceThatDoesNotAnswerIsRankedLast() {
+		var hedgedSponge = new FileSponge();
+		var stuckSubscriptions = new AtomicInteger();
+		hedgedSponge.registerSource(new CountingSource(stuckSubscriptions, Flux.never())).block();
+		hedgedSponge.registerSource(new CountingSource(new AtomicInteger(), Flux.just(block(0)))).block();
+
+		// Both sources get measured
+		for (int i = 0; i < 2; i++) {
+			assertEquals(1, hedgedSponge.requestContent(new TestURL("warmup-" + i)).count().block());
+		}
+		int warmupSubscriptions = stuckSubscriptions.get();
+		StepVerifier
+				.create(hedgedSponge.requestContent(new TestURL("ranked")).count())
+				.expectNext(1L)
+				.expectComplete()
+				.verify(Duration.ofMillis(400));
+		assertEquals(warmupSubscriptions, stuckSubscriptions.get());
+	}
+
+	@Test
+	void testFailingSourceIsSkipped() {
+		var hedgedSponge = new FileSponge();
+		var subscriptions = new AtomicInteger();
+		hedgedSponge.registerSource(new CountingSource(subscriptions, Flux.error(new IllegalStateException()))).block();
+
+		for (int i = 0; i < 10; i++) {
+			StepVerifier
+					.create(hedgedSponge.requestContent(new TestURL("failing-" + i)))
+					.expectError(IllegalStateException.class)
+					.verify(Duration.ofSeconds(1));
+		}
+		// The circuit opens after 5 consecutive failures
+		assertEquals(5, subscriptions.get());
+	}
+
+	@Test
+	void testBlocksAreDownloadedFromAllSources() {
+		var swarmSponge = new FileSponge();
+		var cache = new TestCache(SWARM_BLOCKS * (long) FileSponge.BLOCK_SIZE);
+		var firstSourceOffsets = new CopyOnWriteArrayList<Long>();
+		var secondSourceOffsets = new CopyOnWriteArrayList<Long>();
+		swarmSponge.registerCache(cache).block();
+		swarmSponge.registerSource(new RangeSource("first", firstSourceOffsets, Duration.ofMillis(20))).block();
+		swarmSponge.registerSource(new RangeSource("second", secondSourceOffsets, Duration.ofMillis(20))).block();
+
+		var offsets = swarmSponge.requestContent(new TestURL("swarm")).map(DataBlock::getOffset).collectList().block();
+
+		assertEquals(LongStream.range(0, SWARM_BLOCKS).map(i -> i * FileSponge.BLOCK_SIZE).boxed().toList(), offsets);
+		assertFalse(firstSourceOffsets.isEmpty());
+		assertFalse(secondSourceOffsets.isEmpty());
+		var requestedOffsets = new HashSet<>(firstSourceOffsets);
+		requestedOffsets.addAll(secondSourceOffsets);
+		assertEquals(new HashSet<>(offsets), requestedOffsets);
+		swarmSponge.flushCacheWrites().block();
+		assertEquals(SWARM_BLOCKS, cache.blocks.size());
+	}
+
+	@Test
+	void testBlocksOfAStuckSourceAreTakenOver() {
+		var swarmSponge = new FileSponge();
+		var stuckSourceOffsets = new CopyOnWriteArrayList<Long>();
+		swarmSponge.registerCache(new TestCache(SWARM_BLOCKS * (long) FileSponge.BLOCK_SIZE)).block();
+		swarmSponge.registerSource(new RangeSource("stuck", stuckSourceOffsets, null)).block();
+		swarmSponge.registerSource(new RangeSource("fast", new CopyOnWriteArrayList<>(), Duration.ofMillis(5))).block();
+
+		StepVerifier
+				.create(swarmSponge.requestContent(new TestURL("stuck")).map(DataBlock::getOffset))
+				.expectNextSequence(LongStream.range(0, SWARM_BLOCKS).map(i -> i * FileSponge.BLOCK_SIZE).boxed().toList())
+				.expectComplete()
+				.verify(Duration.ofSeconds(2));
+		assertFalse(stuckSourceOffsets.isEmpty());
+	}
+
+	@Test
+	void testBlocksMissingFromASourceAreDownloadedFromTheOthers() {
+		var swarmSponge = new FileSponge();
+		swarmSponge.registerCache(new TestCache(SWARM_BLOCKS * (long) FileSponge.BLOCK_SIZE)).block();
+		// The partial source is registered first, so it's preferred while no source has been measured
+		swarmSponge.registerSource(new URLsHandler() {
+			@Override
+			public Flux<DataBlock> requestContent(URL url) {
+				return Flux.empty();
+			}
+
+			@Override
+			public Flux<DataBlock> requestContent(URL url, long offset, long length) {
+				// Only the first block is available
+				return offset == 0 ? Flux.just(block(0)) : Flux.empty();
+			}
+
+			@Override
+			public boolean supportsRangeRequests() {
+				return true;
+			}
+
+			@Override
+			public Mono<Metadata> requestMetadata(URL url) {
+				return Mono.just(new Metadata(SWARM_BLOCKS * (long) FileSponge.BLOCK_SIZE));
+			}
+		}).block();
+		swarmSponge.registerSource(new RangeSource("full", new CopyOnWriteArrayList<>(), Duration.ofMillis(5))).block();
+
+		StepVerifier
+				.create(swarmSponge.requestContent(new TestURL("partial-source")).map(DataBlock::getOffset))
+				.expectNextSequence(LongStream.range(0, SWARM_BLOCKS).map(i -> i * FileSponge.BLOCK_SIZE).boxed().toList())
+				.expectComplete()
+				.verify(Duration.ofSeconds(2));
+	}
+
+	@Test
+	void testBlocksAreSplitByTheBlockSizeOfTheCache() {
+		var swarmSponge = new FileSponge();
+		int cacheBlockSize = 2 * FileSponge.BLOCK_SIZE;
+		swarmSponge.registerCache(new TestCache(SWARM_BLOCKS * (long) FileSponge.BLOCK_SIZE) {
+			@Override
+			public Mono<DiskMetadata> requestDiskMetadata(URL url) {
+				return Mono.just(DiskMetadata.create(SWARM_BLOCKS * (long) FileSponge.BLOCK_SIZE, cacheBlockSize));
+			}
+		}).block();
+		var firstSourceOffsets = new CopyOnWriteArrayList<Long>();
+		var secondSourceOffsets = new CopyOnWriteArrayList<Long>();
+		swarmSponge.registerSource(new RangeSource("first", firstSourceOffsets, Duration.ofMillis(5))).block();
+		swarmSponge.registerSource(new RangeSource("second", secondSourceOffsets, Duration.ofMillis(5))).block();
+
+		StepVerifier
+				.create(swarmSponge.requestContent(new TestURL("cache-block-size")).map(DataBlock::getOffset))
+				.expectNextSequence(LongStream.range(0, SWARM_BLOCKS).map(i -> i * FileSponge.BLOCK_SIZE).boxed().toList())
+				.expectComplete()
+				.verify(Duration.ofSeconds(2));
+		var requestedOffsets = new HashSet<>(firstSourceOffsets);
+		requestedOffsets.addAll(secondSourceOffsets);
+		assertEquals(LongStream.range(0, SWARM_BLOCKS / 2).map(i -> i * cacheBlockSize).boxed().collect(Collectors.toSet()),
+				requestedOffsets
+		);
+	}
+
+	@Test
+	void testBlocksAreEmittedBeforeTheyAreCached() {
+		var url = new TestURL("write-behind");
+		Sinks.Empty<Void> cacheWritesGate = Sinks.empty();
+		TestCache cache = new GatedCache(BLOCKS * (long) FileSponge.BLOCK_SIZE, cacheWritesGate);
+		fileSponge.registerCache(cache).block();
+
+		StepVerifier
+				.create(fileSponge.requestContent(url).count())
+				.expectNext((long) BLOCKS)
+				.verifyComplete();
+		assertTrue(cache.blocks.isEmpty());
+		assertEquals(BLOCKS, fileSponge.getCacheWriteStats().queuedWrites());
+
+		cacheWritesGate.tryEmitEmpty();
+		fileSponge.flushCacheWrites().block();
+		assertEquals(BLOCKS, cache.blocks.size());
+		assertEquals(0, fileSponge.getCacheWriteStats().queuedWrites());
+	}
+
+	@Test
+	void testFullCacheWriteQueueDropsBlocks() {
+		var droppingSponge = new FileSponge(1, CacheWriteOverflowPolicy.DROP);
+		TestCache cache = new GatedCache(BLOCKS * (long) FileSponge.BLOCK_SIZE, Sinks.empty());
+		droppingSponge.registerCache(cache).block();
+		droppingSponge.registerSource(new CountingSource(new AtomicInteger(), Flux.range(0, BLOCKS).map(FileSpongeTest::block))).block();
+
+		StepVerifier
+				.create(droppingSponge.requestContent(new TestURL("dropped")).count())
+				.expectNext((long) BLOCKS)
+				.verifyComplete();
+		assertEquals(BLOCKS - 1, droppingSponge.getCacheWriteStats().droppedWrites());
+	}
+
+	@Test
+	void testFullCacheWriteQueueBlocksTheDownload() {
+		var blockingSponge = new FileSponge(1, CacheWriteOverflowPolicy.BLOCK);
+		Sinks.Empty<Void> cacheWritesGate = Sinks.empty();
+		TestCache cache = new GatedCache(BLOCKS * (long) FileSponge.BLOCK_SIZE, cacheWritesGate);
+		blockingSponge.registerCache(cache).block();
+		blockingSponge.registerSource(new CountingSource(new AtomicInteger(), Flux.range(0, BLOCKS).map(FileSpongeTest::block))).block();
+
+		StepVerifier
+				.create(blockingSponge.requestContent(new TestURL("blocked")).count())
+				.expectSubscription()
+				.expectNoEvent(Duration.ofMillis(200))
+				.then(() -> {
+					assertEquals(1, blockingSponge.getCacheWriteStats().queuedWrites());
+					assertEquals(1, blockingSponge.getCacheWriteStats().waitingWrites());
+					cacheWritesGate.tryEmitEmpty();
+				})
+				.expectNext((long) BLOCKS)
+				.verifyComplete();
+		blockingSponge.flushCacheWrites().block();
+		assertEquals(BLOCKS, cache.blocks.size());
+	}
+
+	@Test
+	void testMetricsAreRecorded() {
+		var metrics = new MetricsRegistry();
+		var measuredSponge = new FileSponge(metrics);
+		var cache = new TestCache(BLOCKS * (long) FileSponge.BLOCK_SIZE);
+		var source = new CountingSource(new AtomicInteger(), Flux.range(0, BLOCKS).map(FileSpongeTest::block));
+		measuredSponge.registerCache(cache).block();
+		measuredSponge.registerSource(source).block();
+		var url = new TestURL("measured");
+		long fileSize = BLOCKS * (long) FileSponge.BLOCK_SIZE;
+
+		assertEquals(BLOCKS, measuredSponge.requestContent(url).count().block());
+		measuredSponge.flushCacheWrites().block();
+		assertEquals(1, metrics.getCacheMisses(cache));
+		assertEquals(fileSize, metrics.getBytesFromSources());
+		assertEquals(1, metrics.getSourceLatency(source).getCount());
+		assertEquals(BLOCKS, metrics.getBlockWriteLatency(cache).getCount());
+
+		assertEquals(BLOCKS, measuredSponge.requestContent(url).count().block());
+		assertEquals(1, metrics.getCacheHits(cache));
+		assertEquals(fileSize, metrics.getBytesFromCache());
+		assertEquals(0, metrics.getInFlightRequests());
+	}
+
+	@Test
+	void testSourceWithoutTheContentIsNotSkipped() {
+		var hedgedSponge = new FileSponge();
+		var subscriptions = new AtomicInteger();
+		hedgedSponge.registerSource(new CountingSource(subscriptions, Flux.error(new NoSuchElementException()))).block();
+
+		for (int i = 0; i < 10; i++) {
+			hedgedSponge
+					.requestContent(new TestURL("not-found-" + i))
+					.onErrorResume(NoSuchElementException.class, ex -> Flux.empty())
+					.blockLast(Duration.ofSeconds(1));
+		}
+		assertEquals(10, subscriptions.get());
+	}
+
+	@Test
+	void testCancelledRequestIsNotATimeoutIfNoOtherSourceIsStarted() {
+		var hedgedSponge = new FileSponge();
+		var subscriptions = new AtomicInteger();
+		hedgedSponge.registerSource(new URLsHandler() {
+			@Override
+			public Flux<DataBlock> requestContent(URL url) {
+				return Flux.empty();
+			}
+
+			@Override
+			public Mono<Metadata> requestMetadata(URL url) {
+				// The first request is fast, so the hedge delay becomes short
+				return subscriptions.getAndIncrement() == 0 ? Mono.just(new Metadata(FileSponge.BLOCK_SIZE)) : Mono.never();
+			}
+		}).block();
+
+		for (int i = 0; i < 10; i++) {
+			// Each request waits longer than the previous ones, so it's always longer than the hedge delay
+			hedgedSponge.requestMetadata(new TestURL("cancelled-" + i)).take(Duration.ofMillis(20 + 5 * i)).block();
+		}
+		// The requests are cancelled by the subscriber, not abandoned for another source
+		assertEquals(10, subscriptions.get());
+	}
+
+	@Test
+	void testLoneSourceThatDoesNotAnswerTimesOut() {
+		var hedgedSponge = new FileSponge();
+		var subscriptions = new AtomicInteger();
+		hedgedSponge.registerSource(new URLsHandler() {
+			@Override
+			public Flux<DataBlock> requestContent(URL url) {
+				return Flux.empty();
+			}
+
+			@Override
+			public Mono<Metadata> requestMetadata(URL url) {
+				// The first request is fast, so the timeout becomes short
+				return subscriptions.getAndIncrement() == 0 ? Mono.just(new Metadata(FileSponge.BLOCK_SIZE)) : Mono.never();
+			}
+		}).block();
+		hedgedSponge.requestMetadata(new TestURL("answered")).block();
+
+		for (int i = 0; i < 5; i++) {
+			StepVerifier
+					.create(hedgedSponge.requestMetadata(new TestURL("timed-out-" + i)))
+					.expectError(TimeoutException.class)
+					.verify(Duration.ofSeconds(1));
+		}
+		// The circuit of the source is open after the timeouts
+		StepVerifier
+				.create(hedgedSponge.requestMetadata(new TestURL("skipped")))
+				.expectError(IllegalStateException.class)
+				.verify(Duration.ofSeconds(1));
+		assertEquals(6, subscriptions.get());
+	}
+
+	@Test
+	void testSourceErrorsAreRecorded() {
+		var metrics = new MetricsRegistry();
+		var measuredSponge = new FileSponge(metrics);
+		var source = new CountingSource(new AtomicInteger(), Flux.error(new IllegalStateException()));
+		measuredSponge.registerSource(source).block();
+
+		StepVerifier
+				.create(measuredSponge.requestContent(new TestURL("failing")))
+				.expectError(IllegalStateException.class)
+				.verify(Duration.ofSeconds(1));
+		assertEquals(1, metrics.getSourceErrors(source));
+		assertEquals(0, metrics.getSourceLatency(source).getCount());
+		assertEquals(0, metrics.getInFlightRequests());
+	}
+
+	private static DataBlock block(int blockId) {
+		var data = new byte[FileSponge.BLOCK_SIZE];
+		data[0] = (byte) blockId;
+		return DataBlock.of(blockId * (long) FileSponge.BLOCK_SIZE, data.length, Buf.wrap(data));
+	}
+
+	private static class TestCache implements URLsDiskHandler, URLsWriter {
+
+		private final long size;
+		private final Map<Integer, DataBlock> blocks = new ConcurrentHashMap<>();
+
+		private TestCache(long size) {
+			this.size = size;
+		}
+
+		@Override
+		public Mono<DiskMetadata> requestDiskMetadata(URL url) {
+			return Mono.fromCallable(() -> {
+				var downloadedBlocks = new BitSet();
+				blocks.keySet().forEach(downloadedBlocks::set);
+				return new DiskMetadata(size, DiskMetadata.getBlocksCount(size, FileSponge.BLOCK_SIZE), downloadedBlocks);
+			});
+		}
+
+		@Override
+		public Flux<DataBlock> requestContent(URL url) {
+			return requestContent(url, 0, -1);
+		}
+
+		@Override
+		public Flux<DataBlock> requestContent(URL url, long offset, long length) {
+			return requestDiskMetadata(url).flatMapMany(meta -> {
+				long end = FileSpongeUtils.getRangeEnd(offset, length);
+				var range = Flux
+						.range(0, meta.blocksCount())
+						.filter(i -> i * (long) FileSponge.BLOCK_SIZE < end)
+						.filter(i -> (i + 1) * (long) FileSponge.BLOCK_SIZE > offset);
+				return range
+						.all(blocks::containsKey)
+						.flatMapMany(all -> all ? range.map(blocks::get) : Flux.empty());
+			});
+		}
+
+		@Override
+		public Mono<Metadata> requestMetadata(URL url) {
+			return Mono.just(new Metadata(size));
+		}
+
+		@Override
+		public Mono<Void> writeMetadata(URL url, Metadata metadata, boolean force) {
+			return Mono.empty();
+		}
+
+		@Override
+		public Mono<Void> writeContentBlock(URL url, DataBlock dataBlock, boolean force) {
+			return Mono.fromRunnable(() -> blocks.put(dataBlock.getId(), dataBlock));
+		}
+	}
+
+	/**
+	 * Cache that doesn't write the blocks until the gate is opened
+	 */
+	private static class GatedCache extends TestCache {
+
+		private final Sinks.Empty<Void> gate;
+
+		private GatedCache(long size, Sinks.Empty<Void> gate) {
+			super(size);
+			this.gate = gate;
+		}
+
+		@Override
+		public Mono<Void> writeContentBlock(URL url, DataBlock dataBlock, boolean force) {
+			return gate.asMono().then(super.writeContentBlock(url, dataBlock, force));
+		}
+	}
+
+	private record CountingSource(AtomicInteger subscriptions, Flux<DataBlock> content) implements URLsHandler {
+
+		@Override
+		public Flux<DataBlock> requestContent(URL url) {
+			return content.doOnSubscribe(s -> subscriptions.incrementAndGet());
+		}
+
+		@Override
+		public Mono<Metadata> requestMetadata(URL url) {
+			return Mono.just(new Metadata(FileSponge.BLOCK_SIZE));
+		}
+	}
+
+	/**
+	 * @param delay delay of each block, or null if the source never answers
+	 */
+	private record RangeSource(String name, List<Long> requestedOffsets, @Nullable Duration delay) implements URLsHandler {
+
+		@Override
+		public Flux<DataBlock> requestContent(URL url) {
+			return requestContent(url, 0, -1);
+		}
+
+		@Override
+		public Flux<DataBlock> requestContent(URL url, long offset, long length) {
+			requestedOffsets.add(offset);
+			if (delay == null) {
+				return Flux.never();
+			}
+			long end = length == -1 ? SWARM_BLOCKS * (long) FileSponge.BLOCK_SIZE : offset + length;
+			return Flux
+					.range(toIntExact(offset / FileSponge.BLOCK_SIZE), toIntExact((end - offset) / FileSponge.BLOCK_SIZE))
+					.map(FileSpongeTest::block)
+					.delayElements(delay);
+		}
+
+		@Override
+		public boolean supportsRangeRequests() {
+			return true;
+		}
+
+		@Override
+		public Mono<Metadata> requestMetadata(URL url) {
+			return Mono.just(new Metadata(SWARM_BLOCKS * (long) FileSponge.BLOCK_SIZE));
+		}
+	}
+
+	private record TestURL(String id) implements URL {
+
+		@Override
+		public URLSerializer<? extends URL> getSerializer() {
+			return new URLStringSerializer<TestURL>() {
+				@Override
+				public @NotNull String serialize(@NotNull TestURL url) {
+					return url.id();
+				}
+			};
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package org.warp.filesponge;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+public class GroupCommitTest {
+
+	@Test
+	void testConcurrentWritesAreCommittedInBatches() throws Exception {
+		int writers = 16;
+		List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+		var firstBatchStarted = new CountDownLatch(1);
+		var releaseFirstBatch = new CountDownLatch(1);
+		var groupCommit = new GroupCommit<Integer>(4, batch -> {
+			batches.add(List.copyOf(batch));
+			firstBatchStarted.countDown();
+			try {
+				releaseFirstBatch.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			return Map.of();
+		});
+
+		ExecutorService executor = Executors.newFixedThreadPool(writers);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			results.add(executor.submit(() -> groupCommit.write(0)));
+			firstBatchStarted.await();
+			// These writes are queued while the first batch is being committed
+			for (int i = 1; i < writers; i++) {
+				int element = i;
+				results.add(executor.submit(() -> groupCommit.write(element)));
+			}
+			Thread.sleep(100);
+			releaseFirstBatch.countDown();
+			for (Future<?> result : results) {
+				result.get();
+			}
+		} finally {
+			executor.shutdown();
+		}
+
+		assertEquals(List.of(0), batches.get(0));
+		assertEquals(writers, batches.stream().mapToInt(List::size).sum());
+		assertTrue(batches.stream().allMatch(batch -> batch.size() <= 4));
+		assertTrue(batches.size() < writers, "Queued writes should have been grouped");
+	}
+
+	@Test
+	void testBatchErrorIsThrownToEveryWriter() {
+		var groupCommit = new GroupCommit<Integer>(4, batch -> {
+			throw new IllegalStateException("Failed batch");
+		});
+		var ex = assertThrows(IllegalStateException.class, () -> groupCommit.write(1));
+		assertEquals("Failed batch", ex.getMessage());
+		// The next batch can be committed
+		assertThrows(IllegalStateException.class, () -> groupCommit.write(2));
+	}
+
+	@Test
+	void testElementErrorIsThrownOnlyToItsWriter() throws Exception {
+		List<List<Integer>> batches = new CopyOnWriteArrayList<>();
+		var firstBatchStarted = new CountDownLatch(1);
+		var releaseFirstBatch = new CountDownLatch(1);
+		var groupCommit = new GroupCommit<Integer>(4, batch -> {
+			batches.add(List.copyOf(batch));
+			firstBatchStarted.countDown();
+			try {
+				releaseFirstBatch.await();
+			} catch (InterruptedException e) {
+				throw new RuntimeException(e);
+			}
+			var failures = new HashMap<Integer, RuntimeException>();
+			for (int i = 0; i < batch.size(); i++) {
+				if (batch.get(i) < 0) {
+					failures.put(i, new IllegalArgumentException("Negative element"));
+				}
+			}
+			return failures;
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(3);
+		try {
+			Future<?> first = executor.submit(() -> groupCommit.write(0));
+			firstBatchStarted.await();
+			// Both writes are queued while the first batch is being committed
+			Future<?> failed = executor.submit(() -> groupCommit.write(-1));
+			Future<?> committed = executor.submit(() -> groupCommit.write(1));
+			Thread.sleep(100);
+			releaseFirstBatch.countDown();
+			first.get();
+			committed.get();
+			var ex = assertThrows(ExecutionException.class, failed::get);
+			assertInstanceOf(IllegalArgumentException.class, ex.getCause());
+		} finally {
+			executor.shutdown();
+		}
+		assertEquals(2, batches.size());
+		assertEquals(2, batches.get(1).size());
+	}
+}
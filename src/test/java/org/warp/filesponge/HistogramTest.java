@@ -0,0 +1,36 @@
+package org.warp.filesponge;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+public class HistogramTest {
+
+	@Test
+	void testEmptyHistogram() {
+		var histogram = new Histogram();
+		assertEquals(0, histogram.getCount());
+		assertEquals(0, histogram.getMean());
+		assertEquals(0, histogram.getPercentile(0.99));
+	}
+
+	@Test
+	void testPercentilesAreWithinTwiceTheValue() {
+		var histogram = new Histogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.record(i);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(500_500, histogram.getSum());
+		assertEquals(1000, histogram.getMax());
+		long median = histogram.getPercentile(0.5);
+		assertTrue(median >= 500 && median < 1000, "Median: " + median);
+		assertEquals(1000, histogram.getPercentile(1));
+		assertEquals(1, histogram.getPercentile(0));
+	}
+
+	@Test
+	void testNegativeValuesAreRejected() {
+		assertThrows(IllegalArgumentException.class, () -> new Histogram().record(-1));
+	}
+}
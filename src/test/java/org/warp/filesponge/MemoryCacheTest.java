@@ -0,0 +1,174 @@
+package org.warp.filesponge;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+import it.cavallium.buffer.Buf;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import reactor.core.publisher.Mono;
+
+public class MemoryCacheTest {
+
+	private static final int FILE_SIZE = 1000;
+	/**
+	 * Memory used by a cached file of {@link #FILE_SIZE} bytes, and by its block
+	 */
+	private static final int FILE_WEIGHT = FILE_SIZE + 2 * 128;
+
+	@Test
+	void testCachedContentIsServedFromMemory() {
+		var memoryCache = new MemoryCache(1024 * 1024, url -> true);
+		var url = new TestURL("file");
+		write(memoryCache, url, 0);
+
+		assertEquals(FILE_SIZE, memoryCache.requestMetadata(url).block().size());
+		assertTrue(memoryCache.requestDiskMetadata(url).block().isDownloadedFully());
+		var range = memoryCache.requestContent(url, 10, 20).collectList().block();
+		assertEquals(1, range.size());
+		assertEquals(10, range.get(0).getOffset());
+		assertEquals(20, range.get(0).getLength());
+		assertTrue(memoryCache.requestContent(new TestURL("missing")).collectList().block().isEmpty());
+	}
+
+	@Test
+	void testLeastRecentlyUsedBlockIsEvicted() {
+		var memoryCache = new MemoryCache(2 * FILE_WEIGHT + 128, url -> true);
+		var url1 = new TestURL("file-1");
+		var url2 = new TestURL("file-2");
+		var url3 = new TestURL("file-3");
+		write(memoryCache, url1, 1);
+		write(memoryCache, url2, 2);
+		write(memoryCache, url3, 3);
+
+		assertTrue(memoryCache.requestContent(url1).collectList().block().isEmpty());
+		assertEquals(2, read(memoryCache, url2));
+		assertEquals(3, read(memoryCache, url3));
+	}
+
+	@Test
+	void testFrequentBlockIsNotEvictedByNewBlock() {
+		var memoryCache = new MemoryCache(FILE_WEIGHT + 128, url -> true);
+		var hotUrl = new TestURL("hot");
+		var coldUrl = new TestURL("cold");
+		write(memoryCache, hotUrl, 1);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(1, read(memoryCache, hotUrl));
+		}
+		write(memoryCache, coldUrl, 2);
+
+		assertEquals(1, read(memoryCache, hotUrl));
+		assertTrue(memoryCache.requestContent(coldUrl).collectList().block().isEmpty());
+	}
+
+	@Test
+	void testBlocksReadFromDiskAreKeptInMemory() {
+		var url = new TestURL("disk");
+		var diskCache = mock(DiskCache.class);
+		var diskMetadata = DiskMetadata.create(FILE_SIZE).withDownloadedBlock(0);
+		var entry = new DiskCacheEntry(url, Buf.wrap((byte) 1), diskMetadata);
+		when(diskCache.resolve(url)).thenReturn(Mono.just(entry));
+		when(diskCache.requestContentSync(entry, 0, -1)).thenAnswer(invocation -> Stream.of(block(4)));
+		var memoryCache = new MemoryCache(1024 * 1024, u -> true, diskCache);
+
+		assertEquals(4, read(memoryCache, url));
+		assertEquals(4, read(memoryCache, url));
+		verify(diskCache, times(1)).requestContentSync(entry, 0, -1);
+		// The resolved entry is read without resolving the url again
+		verify(diskCache, never()).requestContent(any(), anyLong(), anyLong());
+	}
+
+	@Test
+	void testFilesRemovedFromDiskAreRemovedFromMemory() {
+		var url = new TestURL("removed");
+		var diskKey = Buf.wrap((byte) 1);
+		var diskCache = mock(DiskCache.class);
+		var diskMetadata = DiskMetadata.create(FILE_SIZE).withDownloadedBlock(0);
+		var entry = new DiskCacheEntry(url, diskKey, diskMetadata);
+		when(diskCache.resolve(url)).thenReturn(Mono.just(entry));
+		when(diskCache.requestContentSync(entry, 0, -1)).thenReturn(Stream.of(block(4)), Stream.of(block(5)));
+		var memoryCache = new MemoryCache(1024 * 1024, u -> true, diskCache);
+		ArgumentCaptor<Consumer<Buf>> removalListener = ArgumentCaptor.forClass(Consumer.class);
+		verify(diskCache).addRemovalListener(removalListener.capture());
+
+		assertEquals(4, read(memoryCache, url));
+		removalListener.getValue().accept(Buf.wrap((byte) 2));
+		assertEquals(4, read(memoryCache, url));
+		removalListener.getValue().accept(diskKey);
+		assertEquals(5, read(memoryCache, url));
+		verify(diskCache, times(2)).requestContentSync(entry, 0, -1);
+	}
+
+	@Test
+	void testFilesWrittenToDiskUseTheDiskBlockSize() {
+		var url = new TestURL("disk-blocks");
+		int blockSize = FILE_SIZE / 2;
+		var diskCache = mock(DiskCache.class);
+		when(diskCache.writeMetadata(any(), any(), anyBoolean())).thenReturn(Mono.empty());
+		when(diskCache.writeContentBlock(any(), any(), anyBoolean())).thenReturn(Mono.empty());
+		var diskMetadata = DiskMetadata.create(FILE_SIZE, blockSize);
+		when(diskCache.resolve(url)).thenReturn(Mono.just(new DiskCacheEntry(url, Buf.wrap((byte) 1), diskMetadata)));
+		var memoryCache = new MemoryCache(1024 * 1024, u -> true, diskCache);
+
+		memoryCache.writeMetadata(url, new Metadata(FILE_SIZE), false).block();
+		var data = new byte[blockSize];
+		data[0] = 6;
+		memoryCache.writeContentBlock(url, DataBlock.of(0, blockSize, Buf.wrap(data)), false).block();
+
+		var blocks = memoryCache.requestContent(url, 0, blockSize).collectList().block();
+		assertEquals(1, blocks.size());
+		assertEquals(6, blocks.get(0).getData().getByte(0));
+		verify(diskCache, never()).requestContent(any(), anyLong(), anyLong());
+	}
+
+	@Test
+	void testLargeCacheIsSharded() {
+		var memoryCache = new MemoryCache(1024L * 1024 * 1024, url -> true);
+		List<URL> urls = new ArrayList<>();
+		for (int i = 0; i < 100; i++) {
+			urls.add(new TestURL("sharded-" + i));
+			write(memoryCache, urls.get(i), i);
+		}
+		for (int i = 0; i < urls.size(); i++) {
+			assertEquals(i, read(memoryCache, urls.get(i)));
+		}
+	}
+
+	private static void write(MemoryCache memoryCache, URL url, int content) {
+		memoryCache.writeMetadata(url, new Metadata(FILE_SIZE), false).block();
+		memoryCache.writeContentBlock(url, block(content), false).block();
+	}
+
+	/**
+	 * @return the first byte of the cached content
+	 */
+	private static int read(MemoryCache memoryCache, URL url) {
+		List<DataBlock> blocks = memoryCache.requestContent(url).collectList().block();
+		assertEquals(1, blocks.size());
+		return blocks.get(0).getData().getByte(0);
+	}
+
+	private static DataBlock block(int content) {
+		var data = new byte[FILE_SIZE];
+		data[0] = (byte) content;
+		return DataBlock.of(0, data.length, Buf.wrap(data));
+	}
+
+	private record TestURL(String id) implements URL {
+
+		@Override
+		public URLSerializer<? extends URL> getSerializer() {
+			return new URLStringSerializer<TestURL>() {
+				@Override
+				public @NotNull String serialize(@NotNull TestURL url) {
+					return url.id();
+				}
+			};
+		}
+	}
+}